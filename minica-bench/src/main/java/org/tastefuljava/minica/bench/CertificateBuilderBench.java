@@ -0,0 +1,93 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica.bench;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tastefuljava.minica.CertificateAuthority;
+import org.tastefuljava.minica.X509CertificateBuilder;
+
+/**
+ * Building and signing certificates, self-signed or issued by a CA of the
+ * same key type, and decoding them. The JDK certificate factory caches the
+ * certificates it has recently parsed, so the decoding cycles through more
+ * distinct encodings than that cache holds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CertificateBuilderBench {
+    @Param({"RSA", "EC"})
+    public Fixtures.KeyType keyType;
+
+    private KeyPair subject;
+    private CertificateAuthority ca;
+    private static final int DECODE_POOL_SIZE = 1024;
+
+    private final byte[][] encoded = new byte[DECODE_POOL_SIZE][];
+    private long serial;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        subject = keyType.generateKeyPair();
+        ca = Fixtures.authority(keyType.generateKeyPair(), keyType);
+        for (int i = 0; i < encoded.length; ++i) {
+            encoded[i] = ca.issue(newBuilder())[0].getEncoded();
+        }
+    }
+
+    @Benchmark
+    public X509Certificate buildSelfSigned() throws Exception {
+        X509CertificateBuilder gen = newBuilder();
+        gen.setIssuer(Fixtures.principal("Subject"), subject.getPrivate());
+        return gen.build();
+    }
+
+    @Benchmark
+    public X509Certificate buildIssued() throws Exception {
+        return ca.issue(newBuilder())[0];
+    }
+
+    @Benchmark
+    public X509Certificate decode() throws Exception {
+        next = (next + 1) % encoded.length;
+        return X509CertificateBuilder.decode(encoded[next]);
+    }
+
+    private X509CertificateBuilder newBuilder() {
+        return Fixtures.builder(BigInteger.valueOf(++serial), "Subject",
+                subject, keyType);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica.bench;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tastefuljava.minica.SSHEncoding;
+import org.tastefuljava.minica.X500PrincipalBuilder;
+
+/**
+ * Small encodings: SSH public keys (RSA and DSA, the only types supported
+ * by SSHEncoding) and distinguished names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBench {
+    private KeyPair rsa;
+    private KeyPair dsa;
+
+    @Setup
+    public void setup() throws Exception {
+        rsa = Fixtures.KeyType.RSA.generateKeyPair();
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("DSA");
+        kpg.initialize(2048);
+        dsa = kpg.generateKeyPair();
+    }
+
+    @Benchmark
+    public String sshEncodeRsa() {
+        return SSHEncoding.encode(rsa.getPublic(), "bench@minica");
+    }
+
+    @Benchmark
+    public String sshEncodeDsa() {
+        return SSHEncoding.encode(dsa.getPublic(), "bench@minica");
+    }
+
+    @Benchmark
+    public X500Principal x500PrincipalBuild() {
+        X500PrincipalBuilder builder = new X500PrincipalBuilder();
+        builder.add("CN", "Maurice Perry, #1");
+        builder.add("OU", "  Tasteful  Java ");
+        builder.add("O", "Tastefuljava");
+        builder.add("L", "Geneva");
+        builder.add("ST", "GE");
+        builder.add("C", "CH");
+        return builder.build();
+    }
+}
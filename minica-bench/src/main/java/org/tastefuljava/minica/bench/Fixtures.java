@@ -0,0 +1,101 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica.bench;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.Certificate;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.tastefuljava.minica.CertificateAuthority;
+import org.tastefuljava.minica.X509CertificateBuilder;
+
+/**
+ * Keys and builders shared by the benchmarks. Key pairs are generated once
+ * in the setup, so that the benchmarks measure the certificate operations
+ * and not the key generation. The class is public because JMH generates
+ * the benchmark stubs in another package.
+ */
+public final class Fixtures {
+    public enum KeyType {
+        RSA("RSA", "SHA256withRSA"),
+        EC("ECDSA", "SHA256withECDSA");
+
+        private final String algorithm;
+        private final String signatureAlgorithm;
+
+        KeyType(String algorithm, String signatureAlgorithm) {
+            this.algorithm = algorithm;
+            this.signatureAlgorithm = signatureAlgorithm;
+        }
+
+        String getSignatureAlgorithm() {
+            return signatureAlgorithm;
+        }
+
+        KeyPair generateKeyPair() throws GeneralSecurityException {
+            CertificateAuthority.installProvider();
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(algorithm);
+            if (this == EC) {
+                kpg.initialize(ECNamedCurveTable.getParameterSpec(
+                        "secp256r1"));
+            } else {
+                kpg.initialize(2048);
+            }
+            return kpg.generateKeyPair();
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private Fixtures() {
+    }
+
+    static X500Principal principal(String cn) {
+        return new X500Principal("CN=" + cn + ",OU=Bench,O=Minica,C=CH");
+    }
+
+    /**
+     * Returns a builder for a certificate of the given public key, so that
+     * no key pair is generated when the certificate is built.
+     */
+    static X509CertificateBuilder builder(BigInteger sn, String cn,
+            KeyPair pair, KeyType type) {
+        X509CertificateBuilder gen
+                = new X509CertificateBuilder(sn, principal(cn));
+        gen.setPublicKey(pair.getPublic());
+        gen.setSignatureAlgorithm(type.getSignatureAlgorithm());
+        return gen;
+    }
+
+    /**
+     * Creates a CA from a pre-generated key pair.
+     */
+    static CertificateAuthority authority(KeyPair pair, KeyType type)
+            throws Exception {
+        X509CertificateBuilder gen = builder(BigInteger.ONE, "Bench CA",
+                pair, type);
+        gen.setIssuer(principal("Bench CA"), pair.getPrivate());
+        gen.setBasicConstraints(0);
+        return new CertificateAuthority(pair.getPrivate(),
+                new Certificate[] {gen.build()});
+    }
+}
@@ -0,0 +1,105 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica.bench;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tastefuljava.minica.CertificateAuthority;
+import org.tastefuljava.minica.KeyStoreEntry;
+import org.tastefuljava.minica.KeyStoreIndex;
+
+/**
+ * Listing the entries of an in-memory keystore, and computing their display
+ * names, as done when the main window is refreshed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyStoreEntryBench {
+    @Param({"1000", "10000"})
+    public int size;
+
+    private KeyStore keystore;
+    private KeyStoreIndex index;
+    private KeyStoreEntry[] entries;
+
+    @Setup
+    public void setup() throws Exception {
+        keystore = populate(size);
+        index = new KeyStoreIndex(keystore);
+        entries = KeyStoreEntry.getAll(keystore);
+    }
+
+    /**
+     * Creates a JKS keystore with a CA key entry and the given number of
+     * certificate entries, each with its own certificate.
+     */
+    static KeyStore populate(int size) throws Exception {
+        Fixtures.KeyType type = Fixtures.KeyType.EC;
+        KeyPair caPair = type.generateKeyPair();
+        CertificateAuthority ca = Fixtures.authority(caPair, type);
+        KeyPair pair = type.generateKeyPair();
+        KeyStore keystore = KeyStore.getInstance("JKS");
+        keystore.load(null, null);
+        keystore.setKeyEntry("ca", caPair.getPrivate(),
+                "secret".toCharArray(), ca.getChain());
+        for (int i = 1; i < size; ++i) {
+            X509Certificate[] chain = ca.issue(Fixtures.builder(
+                    BigInteger.valueOf(i + 1), "Subject " + i, pair, type));
+            keystore.setCertificateEntry("cert" + i, chain[0]);
+        }
+        return keystore;
+    }
+
+    @Benchmark
+    public KeyStoreEntry[] getAll() throws Exception {
+        return KeyStoreEntry.getAll(keystore);
+    }
+
+    @Benchmark
+    public void subjectNameKeyStore(Blackhole bh) throws Exception {
+        for (KeyStoreEntry entry: entries) {
+            bh.consume(entry.subjectName(keystore));
+        }
+    }
+
+    @Benchmark
+    public void subjectNameIndex(Blackhole bh) {
+        for (KeyStoreEntry entry: entries) {
+            bh.consume(entry.subjectName(index));
+        }
+    }
+}
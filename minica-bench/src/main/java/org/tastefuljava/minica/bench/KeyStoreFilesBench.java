@@ -0,0 +1,122 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tastefuljava.minica.CertificateAuthority;
+import org.tastefuljava.minica.KeyStoreFiles;
+
+/**
+ * Loading and storing keystore files with KeyStoreFiles, JKS versus PKCS12.
+ * The keystores contain a CA key entry and certificate entries; issuing
+ * 100k distinct certificates would make the setup too slow, so the
+ * certificates are taken from a pool of distinct certificates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class KeyStoreFilesBench {
+    private static final int POOL_SIZE = 1000;
+    private static final char[] PASSWORD = "secret".toCharArray();
+
+    @Param({"JKS", "PKCS12"})
+    public String type;
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    private File dir;
+    private File source;
+    private File target;
+    private KeyStore keystore;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("minica-bench").toFile();
+        String ext = "JKS".equals(type) ? ".jks" : ".p12";
+        source = new File(dir, "source" + ext);
+        target = new File(dir, "target" + ext);
+        keystore = populate(type, size);
+        KeyStoreFiles.store(keystore, source, PASSWORD, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    @Benchmark
+    public KeyStore load() throws Exception {
+        return KeyStoreFiles.load(source, PASSWORD, null);
+    }
+
+    @Benchmark
+    public File store() throws Exception {
+        KeyStoreFiles.store(keystore, target, PASSWORD, null);
+        return target;
+    }
+
+    private static KeyStore populate(String type, int size)
+            throws Exception {
+        Fixtures.KeyType keyType = Fixtures.KeyType.EC;
+        KeyPair caPair = keyType.generateKeyPair();
+        CertificateAuthority ca = Fixtures.authority(caPair, keyType);
+        KeyPair pair = keyType.generateKeyPair();
+        X509Certificate[] pool = new X509Certificate[POOL_SIZE];
+        for (int i = 0; i < pool.length; ++i) {
+            pool[i] = ca.issue(Fixtures.builder(BigInteger.valueOf(i + 2),
+                    "Subject " + i, pair, keyType))[0];
+        }
+        KeyStore keystore = KeyStore.getInstance(type);
+        keystore.load(null, null);
+        keystore.setKeyEntry("ca", caPair.getPrivate(), PASSWORD,
+                ca.getChain());
+        for (int i = 1; i < size; ++i) {
+            keystore.setCertificateEntry("cert" + i, pool[i % pool.length]);
+        }
+        return keystore;
+    }
+}
@@ -0,0 +1,837 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+
+/**
+ * ACME server (RFC 8555), mounted on the issuance server under /acme/.
+ * Supports accounts, orders for dns identifiers, http-01 and dns-01
+ * challenges checked by a pluggable validator, finalization, certificate
+ * download and revocation. Challenges are validated on a bounded pool of
+ * threads; the state is kept in an AcmeStore.
+ */
+public class AcmeServer implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(AcmeServer.class.getName());
+
+    private static final String PREFIX = "/acme";
+    private static final String JSON_TYPE = "application/json";
+    private static final String PROBLEM_TYPE = "application/problem+json";
+    private static final String CHAIN_TYPE
+            = "application/pem-certificate-chain";
+    private static final String ERROR_NS = "urn:ietf:params:acme:error:";
+    private static final long NONCE_TTL = 3600*1000L;
+    private static final int MAX_NONCES = 100000;
+    private static final long ORDER_TTL = 7*24*3600*1000L;
+    private static final long CLOCK_SKEW = 5*60*1000L;
+    // only those that the validator supports are offered
+    private static final String[] CHALLENGE_TYPES = {"http-01", "dns-01"};
+
+    private static final String ACCOUNTS = "accounts";
+    private static final String ORDERS = "orders";
+    private static final String AUTHORIZATIONS = "authz";
+    private static final String CHALLENGES = "challenges";
+
+    private final CertificateAuthority ca;
+    private final SerialNumberAllocator serials;
+    private final IssuedCertificates issued;
+    private final RevocationDatabase revocations;
+    private final AcmeStore store;
+    private final ChallengeValidator validator;
+    private final ExecutorService validators;
+    private final Map<String,Long> nonces = new ConcurrentHashMap<>();
+    private final Map<String,String> accountsByKey
+            = new ConcurrentHashMap<>();
+    private final Map<BigInteger,String> ordersBySerial
+            = new ConcurrentHashMap<>();
+    private int defaultDays = 90;
+
+    public AcmeServer(CertificateAuthority ca, SerialNumberAllocator serials,
+            IssuedCertificates issued, RevocationDatabase revocations,
+            AcmeStore store, ChallengeValidator validator, int threads) {
+        this.ca = ca;
+        this.serials = serials;
+        this.issued = issued;
+        this.revocations = revocations;
+        this.store = store;
+        this.validator = validator;
+        this.validators = Executors.newFixedThreadPool(threads);
+        for (String id: store.ids(ACCOUNTS)) {
+            accountsByKey.put((String)store.get(ACCOUNTS, id)
+                    .get("_thumbprint"), id);
+        }
+        for (String id: store.ids(ORDERS)) {
+            Object serial = store.get(ORDERS, id).get("_serial");
+            if (serial != null) {
+                ordersBySerial.put(new BigInteger((String)serial, 16), id);
+            }
+        }
+        // validations interrupted by a stop
+        for (String id: store.ids(CHALLENGES)) {
+            if ("processing".equals(
+                    store.get(CHALLENGES, id).get("status"))) {
+                validators.execute(() -> validate(id));
+            }
+        }
+    }
+
+    public void setDefaultDays(int defaultDays) {
+        this.defaultDays = defaultDays;
+    }
+
+    public HttpHandler getHandler() {
+        return HttpExchanges.handler("GET,HEAD,POST", this::handle);
+    }
+
+    @Override
+    public void close() {
+        validators.shutdownNow();
+    }
+
+    private void handle(HttpExchange exch) throws IOException {
+        String base = "http://" + exch.getRequestHeaders().getFirst("Host")
+                + PREFIX;
+        String path = exch.getRequestURI().getPath().substring(
+                PREFIX.length());
+        exch.getResponseHeaders().set("Replay-Nonce", newNonce());
+        exch.getResponseHeaders().set("Cache-Control", "no-store");
+        exch.getResponseHeaders().add("Link",
+                "<" + base + "/directory>;rel=\"index\"");
+        try {
+            if (path.equals("/directory")) {
+                sendJson(exch, 200, directory(base));
+            } else if (path.equals("/new-nonce")) {
+                HttpExchanges.send(exch, "GET".equals(
+                        exch.getRequestMethod()) ? 204 : 200, null, null);
+            } else if (!"POST".equals(exch.getRequestMethod())) {
+                exch.getResponseHeaders().set("Allow", "POST");
+                throw new AcmeException(405, "malformed",
+                        "Method not allowed");
+            } else {
+                post(exch, base, path);
+            }
+        } catch (AcmeException e) {
+            sendProblem(exch, e.status, e.type, e.getMessage());
+        } catch (SignatureException e) {
+            sendProblem(exch, 403, "unauthorized", e.getMessage());
+        } catch (IOException | GeneralSecurityException
+                | IllegalArgumentException e) {
+            sendProblem(exch, 400, "malformed", e.getMessage());
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error in " + exch.getRequestURI(), e);
+            sendProblem(exch, 500, "serverInternal", e.getMessage());
+        }
+    }
+
+    private void post(HttpExchange exch, String base, String path)
+            throws Exception {
+        JsonWebSignature jws = JsonWebSignature.parse(new String(
+                HttpExchanges.readAll(exch.getRequestBody()),
+                StandardCharsets.UTF_8));
+        if (jws.getNonce() == null || !consumeNonce(jws.getNonce())) {
+            throw new AcmeException(400, "badNonce", "Invalid nonce");
+        }
+        if (!(base + path).equals(jws.getUrl())) {
+            throw new AcmeException(401, "unauthorized",
+                    "URL mismatch: " + jws.getUrl());
+        }
+        if (path.equals("/new-account")) {
+            newAccount(exch, base, jws);
+            return;
+        }
+        String accountId = authenticate(base, jws);
+        Map<String,Object> payload = jws.getPayload();
+        int ix = path.indexOf('/', 1);
+        String resource = ix < 0 ? path : path.substring(0, ix);
+        String id = ix < 0 ? null : path.substring(ix + 1);
+        switch (resource) {
+            case "/new-order":
+                newOrder(exch, base, accountId, payload);
+                break;
+            case "/acct":
+                account(exch, base, accountId, id, payload);
+                break;
+            case "/order":
+                sendJson(exch, 200, order(base, id,
+                        owned(ORDERS, id, accountId)));
+                break;
+            case "/authz":
+                sendJson(exch, 200, authorization(base, id,
+                        owned(AUTHORIZATIONS, id, accountId)));
+                break;
+            case "/chall":
+                challenge(exch, base, accountId, id, payload);
+                break;
+            case "/finalize":
+                finalizeOrder(exch, base, accountId, id, payload);
+                break;
+            case "/cert":
+                certificate(exch, accountId, id);
+                break;
+            case "/revoke-cert":
+                revoke(exch, accountId, payload);
+                break;
+            default:
+                throw new AcmeException(404, "malformed",
+                        "Unknown resource: " + path);
+        }
+    }
+
+    private Map<String,Object> directory(String base) {
+        Map<String,Object> dir = new LinkedHashMap<>();
+        dir.put("newNonce", base + "/new-nonce");
+        dir.put("newAccount", base + "/new-account");
+        dir.put("newOrder", base + "/new-order");
+        dir.put("revokeCert", base + "/revoke-cert");
+        Map<String,Object> meta = new LinkedHashMap<>();
+        meta.put("externalAccountRequired", false);
+        dir.put("meta", meta);
+        return dir;
+    }
+
+    private void newAccount(HttpExchange exch, String base,
+            JsonWebSignature jws) throws Exception {
+        Map<String,Object> jwk = jws.getJwk();
+        if (jwk == null || jws.getKeyId() != null) {
+            throw new AcmeException(400, "malformed",
+                    "new-account requires a jwk");
+        }
+        jws.verify(JsonWebSignature.toPublicKey(jwk));
+        Map<String,Object> payload = jws.getPayload();
+        if (payload == null) {
+            payload = new LinkedHashMap<>();
+        }
+        String thumbprint = JsonWebSignature.thumbprint(jwk);
+        String id = accountsByKey.get(thumbprint);
+        if (id != null) {
+            exch.getResponseHeaders().set("Location", base + "/acct/" + id);
+            sendJson(exch, 200, account(base, id, store.get(ACCOUNTS, id)));
+            return;
+        }
+        if (Boolean.TRUE.equals(payload.get("onlyReturnExisting"))) {
+            throw new AcmeException(400, "accountDoesNotExist",
+                    "No account for this key");
+        }
+        id = AcmeStore.newId();
+        Map<String,Object> account = new LinkedHashMap<>();
+        account.put("status", "valid");
+        if (payload.get("contact") instanceof List) {
+            account.put("contact", payload.get("contact"));
+        }
+        account.put("createdAt", format(new Date()));
+        account.put("_key", jwk);
+        account.put("_thumbprint", thumbprint);
+        store.put(ACCOUNTS, id, account);
+        accountsByKey.put(thumbprint, id);
+        exch.getResponseHeaders().set("Location", base + "/acct/" + id);
+        sendJson(exch, 201, account(base, id, account));
+    }
+
+    /**
+     * Checks the signature of a request by an existing account, and returns
+     * the account id.
+     */
+    private String authenticate(String base, JsonWebSignature jws)
+            throws Exception {
+        String kid = jws.getKeyId();
+        String prefix = base + "/acct/";
+        if (kid == null || jws.getJwk() != null || !kid.startsWith(prefix)) {
+            throw new AcmeException(400, "malformed", "Invalid kid");
+        }
+        String id = kid.substring(prefix.length());
+        Map<String,Object> account = store.get(ACCOUNTS, id);
+        if (account == null) {
+            throw new AcmeException(400, "accountDoesNotExist",
+                    "Unknown account");
+        }
+        if (!"valid".equals(account.get("status"))) {
+            throw new AcmeException(403, "unauthorized",
+                    "Account is " + account.get("status"));
+        }
+        @SuppressWarnings("unchecked")
+        Map<String,Object> jwk = (Map<String,Object>)account.get("_key");
+        PublicKey key = JsonWebSignature.toPublicKey(jwk);
+        jws.verify(key);
+        return id;
+    }
+
+    private void account(HttpExchange exch, String base, String accountId,
+            String id, Map<String,Object> payload) throws Exception {
+        if (id != null && id.equals(accountId + "/orders")) {
+            List<Object> urls = new ArrayList<>();
+            for (String orderId: store.ids(ORDERS)) {
+                if (accountId.equals(
+                        store.get(ORDERS, orderId).get("_account"))) {
+                    urls.add(base + "/order/" + orderId);
+                }
+            }
+            Map<String,Object> result = new LinkedHashMap<>();
+            result.put("orders", urls);
+            sendJson(exch, 200, result);
+            return;
+        } else if (!accountId.equals(id)) {
+            throw new AcmeException(403, "unauthorized", "Not your account");
+        }
+        Map<String,Object> account = store.get(ACCOUNTS, id);
+        synchronized (account) {
+            if (payload != null) {
+                if (payload.get("contact") instanceof List) {
+                    account.put("contact", payload.get("contact"));
+                }
+                if ("deactivated".equals(payload.get("status"))) {
+                    account.put("status", "deactivated");
+                }
+                store.put(ACCOUNTS, id, account);
+            }
+            sendJson(exch, 200, account(base, id, account));
+        }
+    }
+
+    private void newOrder(HttpExchange exch, String base, String accountId,
+            Map<String,Object> payload) throws Exception {
+        if (payload == null || !(payload.get("identifiers") instanceof List)
+                || ((List<?>)payload.get("identifiers")).isEmpty()) {
+            throw new AcmeException(400, "malformed", "Missing identifiers");
+        }
+        checkValidity(payload);
+        Date expires = new Date(System.currentTimeMillis() + ORDER_TTL);
+        List<Object> identifiers = new ArrayList<>();
+        List<Object> authzIds = new ArrayList<>();
+        for (Object obj: (List<?>)payload.get("identifiers")) {
+            if (!(obj instanceof Map)) {
+                throw new AcmeException(400, "malformed",
+                        "Invalid identifier");
+            }
+            Map<?,?> ident = (Map<?,?>)obj;
+            Object value = ident.get("value");
+            if (!"dns".equals(ident.get("type"))
+                    || !(value instanceof String)
+                    || ((String)value).isEmpty()) {
+                throw new AcmeException(400, "rejectedIdentifier",
+                        "Only dns identifiers are supported");
+            }
+            Map<String,Object> identifier = new LinkedHashMap<>();
+            identifier.put("type", "dns");
+            identifier.put("value",
+                    ((String)value).toLowerCase(Locale.ENGLISH));
+            identifiers.add(identifier);
+            authzIds.add(newAuthorization(accountId, identifier, expires));
+        }
+        String id = AcmeStore.newId();
+        Map<String,Object> order = new LinkedHashMap<>();
+        order.put("status", "pending");
+        order.put("expires", format(expires));
+        order.put("identifiers", identifiers);
+        for (String name: new String[] {"notBefore", "notAfter"}) {
+            if (payload.get(name) instanceof String) {
+                order.put(name, payload.get(name));
+            }
+        }
+        order.put("_account", accountId);
+        order.put("_authz", authzIds);
+        store.put(ORDERS, id, order);
+        exch.getResponseHeaders().set("Location", base + "/order/" + id);
+        sendJson(exch, 201, order(base, id, order));
+    }
+
+    /**
+     * Checks the requested validity now, rather than at finalization: it
+     * cannot start in the past, nor last longer than the default number of
+     * days, nor end after the certificate of the CA.
+     */
+    private void checkValidity(Map<String,Object> payload)
+            throws AcmeException {
+        long now = System.currentTimeMillis();
+        Date start = new Date(now);
+        if (payload.get("notBefore") instanceof String) {
+            start = parse((String)payload.get("notBefore"));
+            if (start.getTime() < now - CLOCK_SKEW) {
+                throw new AcmeException(400, "malformed",
+                        "notBefore is in the past");
+            }
+        }
+        if (payload.get("notAfter") instanceof String) {
+            Date end = parse((String)payload.get("notAfter"));
+            if (!end.after(start)) {
+                throw new AcmeException(400, "malformed",
+                        "notAfter is before notBefore");
+            } else if (end.getTime() > start.getTime() + maxValidity()
+                    || end.after(ca.getCertificate().getNotAfter())) {
+                throw new AcmeException(400, "malformed",
+                        "notAfter is too far in the future");
+            }
+        }
+    }
+
+    private long maxValidity() {
+        return defaultDays*24L*3600*1000;
+    }
+
+    private String newAuthorization(String accountId,
+            Map<String,Object> identifier, Date expires) throws IOException {
+        String id = AcmeStore.newId();
+        List<Object> challengeIds = new ArrayList<>();
+        for (String type: CHALLENGE_TYPES) {
+            if (!validator.supports(type)) {
+                continue;
+            }
+            String challengeId = AcmeStore.newId();
+            Map<String,Object> challenge = new LinkedHashMap<>();
+            challenge.put("type", type);
+            challenge.put("status", "pending");
+            challenge.put("token", AcmeStore.newId() + AcmeStore.newId());
+            challenge.put("_authz", id);
+            challenge.put("_account", accountId);
+            store.put(CHALLENGES, challengeId, challenge);
+            challengeIds.add(challengeId);
+        }
+        Map<String,Object> authz = new LinkedHashMap<>();
+        authz.put("status", "pending");
+        authz.put("expires", format(expires));
+        authz.put("identifier", identifier);
+        authz.put("_account", accountId);
+        authz.put("_challenges", challengeIds);
+        store.put(AUTHORIZATIONS, id, authz);
+        return id;
+    }
+
+    private void challenge(HttpExchange exch, String base, String accountId,
+            String id, Map<String,Object> payload) throws Exception {
+        Map<String,Object> challenge = owned(CHALLENGES, id, accountId);
+        synchronized (challenge) {
+            if (payload != null && "pending".equals(challenge.get("status"))) {
+                // the client is ready: validate in the background
+                challenge.put("status", "processing");
+                store.put(CHALLENGES, id, challenge);
+                validators.execute(() -> validate(id));
+            }
+            String authzId = (String)challenge.get("_authz");
+            exch.getResponseHeaders().add("Link", "<" + base + "/authz/"
+                    + authzId + ">;rel=\"up\"");
+            sendJson(exch, 200, challenge(base, id, challenge));
+        }
+    }
+
+    private void validate(String challengeId) {
+        Map<String,Object> challenge = store.get(CHALLENGES, challengeId);
+        Map<String,Object> authz = store.get(AUTHORIZATIONS,
+                (String)challenge.get("_authz"));
+        Map<String,Object> account = store.get(ACCOUNTS,
+                (String)challenge.get("_account"));
+        boolean valid;
+        String error = null;
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String,Object> jwk = (Map<String,Object>)account.get("_key");
+            String token = (String)challenge.get("token");
+            valid = validator.validate((String)challenge.get("type"),
+                    (String)((Map<?,?>)authz.get("identifier")).get("value"),
+                    token, token + "." + JsonWebSignature.thumbprint(jwk));
+        } catch (IOException | GeneralSecurityException
+                | RuntimeException e) {
+            valid = false;
+            error = e.getMessage();
+        }
+        try {
+            synchronized (challenge) {
+                challenge.put("status", valid ? "valid" : "invalid");
+                if (valid) {
+                    challenge.put("validated", format(new Date()));
+                } else {
+                    challenge.put("error", problem(403, "unauthorized",
+                            error == null ? "Challenge failed" : error));
+                }
+                store.put(CHALLENGES, challengeId, challenge);
+            }
+            synchronized (authz) {
+                if ("pending".equals(authz.get("status"))) {
+                    authz.put("status", valid ? "valid" : "invalid");
+                    store.put(AUTHORIZATIONS,
+                            (String)challenge.get("_authz"), authz);
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Cannot store challenge " + challengeId, e);
+        }
+    }
+
+    private void finalizeOrder(HttpExchange exch, String base,
+            String accountId, String id, Map<String,Object> payload)
+            throws Exception {
+        Map<String,Object> order = owned(ORDERS, id, accountId);
+        if (payload == null || !(payload.get("csr") instanceof String)) {
+            throw new AcmeException(400, "malformed", "Missing csr");
+        }
+        PKCS10CertificationRequest csr = new PKCS10CertificationRequest(
+                JsonWebSignature.decode((String)payload.get("csr")));
+        try {
+            CertificationRequests.verify(csr);
+        } catch (GeneralSecurityException e) {
+            throw new AcmeException(400, "badCSR", e.getMessage());
+        }
+        synchronized (order) {
+            updateStatus(order);
+            if (!"ready".equals(order.get("status"))) {
+                throw new AcmeException(403, "orderNotReady",
+                        "Order is " + order.get("status"));
+            }
+            Set<String> names = dnsNames(csr);
+            if (!names.equals(identifiers(order))) {
+                throw new AcmeException(400, "badCSR",
+                        "The CSR does not match the order identifiers");
+            }
+            order.put("status", "processing");
+            X509CertificateHolder holder;
+            try {
+                holder = issue(order, csr, names);
+                issued.add(holder.getSerialNumber(), holder.getEncoded());
+            } catch (Exception e) {
+                // the order would otherwise stay in processing forever
+                LOG.log(Level.SEVERE, "Cannot issue order " + id, e);
+                order.put("status", "invalid");
+                order.put("error", problem(500, "serverInternal",
+                        e.getMessage()));
+                store.put(ORDERS, id, order);
+                throw new AcmeException(500, "serverInternal",
+                        e.getMessage());
+            }
+            BigInteger sn = holder.getSerialNumber();
+            order.put("status", "valid");
+            order.put("_serial", sn.toString(16));
+            store.put(ORDERS, id, order);
+            ordersBySerial.put(sn, id);
+            exch.getResponseHeaders().set("Location", base + "/order/" + id);
+            sendJson(exch, 200, order(base, id, order));
+        }
+    }
+
+    private X509CertificateHolder issue(Map<String,Object> order,
+            PKCS10CertificationRequest csr, Set<String> names)
+            throws Exception {
+        X509CertificateBuilder gen = new X509CertificateBuilder(
+                serials.next(), CertificationRequests.getSubject(csr));
+        gen.setPublicKey(CertificationRequests.getPublicKey(csr));
+        Date start = order.get("notBefore") instanceof String
+                ? parse((String)order.get("notBefore")) : new Date();
+        Date end = order.get("notAfter") instanceof String
+                ? parse((String)order.get("notAfter"))
+                : new Date(start.getTime() + maxValidity());
+        Date caEnd = ca.getCertificate().getNotAfter();
+        gen.setStart(start);
+        gen.setEnd(end.after(caEnd) ? caEnd : end);
+        gen.setBasicConstraints(-1);
+        GeneralName[] sans = new GeneralName[names.size()];
+        int i = 0;
+        for (String name: names) {
+            sans[i++] = new GeneralName(GeneralName.dNSName, name);
+        }
+        // critical when the subject is empty (RFC 5280, 4.2.1.6)
+        gen.addExtension(Extension.subjectAlternativeName,
+                csr.getSubject().getRDNs().length == 0,
+                new GeneralNames(sans));
+        return ca.issueHolder(gen);
+    }
+
+    private void certificate(HttpExchange exch, String accountId, String id)
+            throws Exception {
+        Map<String,Object> order = owned(ORDERS, id, accountId);
+        Object serial = order.get("_serial");
+        byte[] encoded = serial == null
+                ? null : issued.get(new BigInteger((String)serial, 16));
+        if (encoded == null) {
+            throw new AcmeException(404, "malformed", "No certificate");
+        }
+        Object[] chain = ca.getChain();
+        Object[] objects = new Object[chain.length + 1];
+        objects[0] = new X509CertificateHolder(encoded);
+        System.arraycopy(chain, 0, objects, 1, chain.length);
+        HttpExchanges.sendPem(exch, 200, CHAIN_TYPE, objects);
+    }
+
+    private void revoke(HttpExchange exch, String accountId,
+            Map<String,Object> payload) throws Exception {
+        if (payload == null
+                || !(payload.get("certificate") instanceof String)) {
+            throw new AcmeException(400, "malformed", "Missing certificate");
+        }
+        X509CertificateHolder holder = new X509CertificateHolder(
+                JsonWebSignature.decode((String)payload.get("certificate")));
+        BigInteger sn = holder.getSerialNumber();
+        String orderId = ordersBySerial.get(sn);
+        if (orderId == null || !accountId.equals(
+                store.get(ORDERS, orderId).get("_account"))) {
+            throw new AcmeException(403, "unauthorized",
+                    "Certificate not issued to this account");
+        }
+        String issuerId = RevocationDatabase.issuerId(ca.getCertificate());
+        if (revocations.isRevoked(issuerId, sn)) {
+            throw new AcmeException(400, "alreadyRevoked",
+                    "Certificate already revoked");
+        }
+        Object reason = payload.get("reason");
+        revocations.revoke(issuerId, sn, reason instanceof Number
+                ? ((Number)reason).intValue() : 0);
+        HttpExchanges.send(exch, 200, null, new byte[0]);
+    }
+
+    /**
+     * Moves a pending order to ready when all its authorizations are valid,
+     * or to invalid when one of them is invalid or it has expired.
+     */
+    private void updateStatus(Map<String,Object> order) throws IOException {
+        if (!"pending".equals(order.get("status"))) {
+            return;
+        }
+        String status = "ready";
+        for (Object authzId: (List<?>)order.get("_authz")) {
+            Object authzStatus = store.get(AUTHORIZATIONS, (String)authzId)
+                    .get("status");
+            if ("invalid".equals(authzStatus)) {
+                status = "invalid";
+                break;
+            } else if (!"valid".equals(authzStatus)) {
+                status = "pending";
+            }
+        }
+        try {
+            if (parse((String)order.get("expires")).before(new Date())) {
+                status = "invalid";
+            }
+        } catch (AcmeException e) {
+            // cannot happen: the date was formatted by the server
+        }
+        order.put("status", status);
+    }
+
+    private Map<String,Object> owned(String kind, String id,
+            String accountId) throws AcmeException {
+        Map<String,Object> obj = id == null ? null : store.get(kind, id);
+        if (obj == null) {
+            throw new AcmeException(404, "malformed", "Not found");
+        } else if (!accountId.equals(obj.get("_account"))) {
+            throw new AcmeException(403, "unauthorized", "Not your " + kind);
+        }
+        return obj;
+    }
+
+    private static Set<String> identifiers(Map<String,Object> order) {
+        Set<String> result = new HashSet<>();
+        for (Object ident: (List<?>)order.get("identifiers")) {
+            result.add((String)((Map<?,?>)ident).get("value"));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the DNS names requested by a CSR: its common names, and the
+     * DNS names of the subject alternative name extension.
+     */
+    private static Set<String> dnsNames(PKCS10CertificationRequest csr) {
+        Set<String> names = new HashSet<>();
+        DistinguishedName dn = new DistinguishedName(csr.getSubject());
+        for (String cn: dn.getAll(BCStyle.CN)) {
+            names.add(cn.toLowerCase(Locale.ENGLISH));
+        }
+        for (Attribute attr: csr.getAttributes(
+                PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)) {
+            for (ASN1Encodable value: attr.getAttrValues().toArray()) {
+                GeneralNames sans = GeneralNames.fromExtensions(
+                        Extensions.getInstance(value),
+                        Extension.subjectAlternativeName);
+                if (sans == null) {
+                    continue;
+                }
+                for (GeneralName name: sans.getNames()) {
+                    if (name.getTagNo() == GeneralName.dNSName) {
+                        names.add(name.getName().toString()
+                                .toLowerCase(Locale.ENGLISH));
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    private Map<String,Object> account(String base, String id,
+            Map<String,Object> account) {
+        Map<String,Object> result = publicView(account);
+        result.put("orders", base + "/acct/" + id + "/orders");
+        return result;
+    }
+
+    private Map<String,Object> order(String base, String id,
+            Map<String,Object> order) throws IOException {
+        synchronized (order) {
+            updateStatus(order);
+            Map<String,Object> result = publicView(order);
+            List<Object> urls = new ArrayList<>();
+            for (Object authzId: (List<?>)order.get("_authz")) {
+                urls.add(base + "/authz/" + authzId);
+            }
+            result.put("authorizations", urls);
+            result.put("finalize", base + "/finalize/" + id);
+            if (order.get("_serial") != null) {
+                result.put("certificate", base + "/cert/" + id);
+            }
+            return result;
+        }
+    }
+
+    private Map<String,Object> authorization(String base, String id,
+            Map<String,Object> authz) {
+        synchronized (authz) {
+            Map<String,Object> result = publicView(authz);
+            List<Object> challenges = new ArrayList<>();
+            for (Object challengeId: (List<?>)authz.get("_challenges")) {
+                String cid = (String)challengeId;
+                challenges.add(challenge(base, cid,
+                        store.get(CHALLENGES, cid)));
+            }
+            result.put("challenges", challenges);
+            return result;
+        }
+    }
+
+    private Map<String,Object> challenge(String base, String id,
+            Map<String,Object> challenge) {
+        synchronized (challenge) {
+            Map<String,Object> result = publicView(challenge);
+            result.put("url", base + "/chall/" + id);
+            return result;
+        }
+    }
+
+    /**
+     * Returns a copy of the object without the internal members, whose
+     * names start with an underscore.
+     */
+    private static Map<String,Object> publicView(Map<String,Object> obj) {
+        Map<String,Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String,Object> e: obj.entrySet()) {
+            if (!e.getKey().startsWith("_")) {
+                result.put(e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    private String newNonce() {
+        long now = System.currentTimeMillis();
+        if (nonces.size() >= MAX_NONCES) {
+            nonces.values().removeIf((Long time) -> time + NONCE_TTL < now);
+        }
+        String nonce = AcmeStore.newId();
+        nonces.put(nonce, now);
+        return nonce;
+    }
+
+    private boolean consumeNonce(String nonce) {
+        Long time = nonces.remove(nonce);
+        return time != null
+                && time + NONCE_TTL >= System.currentTimeMillis();
+    }
+
+    private static Map<String,Object> problem(int status, String type,
+            String detail) {
+        Map<String,Object> problem = new LinkedHashMap<>();
+        problem.put("type", ERROR_NS + type);
+        problem.put("detail", detail == null ? type : detail);
+        problem.put("status", status);
+        return problem;
+    }
+
+    private static void sendProblem(HttpExchange exch, int status,
+            String type, String detail) throws IOException {
+        HttpExchanges.send(exch, status, PROBLEM_TYPE,
+                Json.toString(problem(status, type, detail))
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendJson(HttpExchange exch, int status,
+            Map<String,Object> obj) throws IOException {
+        HttpExchanges.send(exch, status, JSON_TYPE,
+                Json.toString(obj).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String format(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static Date parse(String s) throws AcmeException {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            // fractions of seconds and time zones other than Z are ignored
+            return format.parse(s);
+        } catch (ParseException e) {
+            throw new AcmeException(400, "malformed", "Invalid date: " + s);
+        }
+    }
+
+    private static class AcmeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final String type;
+
+        AcmeException(int status, String type, String detail) {
+            super(detail);
+            this.status = status;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent state of the ACME server: accounts, orders, authorizations
+ * and challenges, as JSON objects. Each object is a file
+ * (<keystore>.acme/<kind>/<id>.json), rewritten atomically when the object
+ * changes, so that concurrent orders do not contend on a single file.
+ * Callers synchronize on an object while they modify and store it.
+ */
+public class AcmeStore {
+    private static final Logger LOG
+            = Logger.getLogger(AcmeStore.class.getName());
+
+    private final File dir;
+    private final Map<String,Map<String,Map<String,Object>>> kinds
+            = new ConcurrentHashMap<>();
+
+    public AcmeStore(File dir) throws IOException {
+        this.dir = dir;
+        File[] subdirs = dir.listFiles(File::isDirectory);
+        if (subdirs != null) {
+            for (File subdir: subdirs) {
+                load(subdir);
+            }
+        }
+    }
+
+    public static File dirFor(File keystoreFile) {
+        return new File(keystoreFile.getParentFile(),
+                keystoreFile.getName() + ".acme");
+    }
+
+    public Map<String,Object> get(String kind, String id) {
+        return objects(kind).get(id);
+    }
+
+    public Collection<String> ids(String kind) {
+        return Collections.unmodifiableSet(objects(kind).keySet());
+    }
+
+    public Collection<Map<String,Object>> getAll(String kind) {
+        return new ArrayList<>(objects(kind).values());
+    }
+
+    /**
+     * Returns a new random identifier.
+     */
+    public static String newId() {
+        byte[] bytes = new byte[15];
+        CryptoCache.getSecureRandom().nextBytes(bytes);
+        return JsonWebSignature.encode(bytes);
+    }
+
+    public void put(String kind, String id, Map<String,Object> obj)
+            throws IOException {
+        File subdir = new File(dir, kind);
+        if (!subdir.isDirectory() && !subdir.mkdirs()) {
+            throw new IOException("Cannot create directory " + subdir);
+        }
+        File file = new File(subdir, id + ".json");
+        File tmp = new File(subdir, id + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(Json.toString(obj).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        objects(kind).put(id, obj);
+    }
+
+    private Map<String,Map<String,Object>> objects(String kind) {
+        return kinds.computeIfAbsent(kind,
+                (String k) -> new ConcurrentHashMap<>());
+    }
+
+    private void load(File subdir) throws IOException {
+        Map<String,Map<String,Object>> objects = objects(subdir.getName());
+        File[] files = subdir.listFiles(
+                (File f) -> f.getName().endsWith(".json"));
+        for (File file: files) {
+            String name = file.getName();
+            try {
+                objects.put(name.substring(0, name.length() - 5),
+                        Json.parseObject(new String(Files.readAllBytes(
+                                file.toPath()), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot read " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+
+/**
+ * Signs PKCS#10 certification requests in bulk. Requests are verified and
+ * signed on a pool of worker threads, and the results are written in the
+ * order of the requests, as soon as they are available.
+ */
+public class BatchSigner {
+    private static final Logger LOG
+            = Logger.getLogger(BatchSigner.class.getName());
+
+    private final CertificateAuthority ca;
+    private final int threads;
+    private SerialNumberAllocator serials = new SerialNumberAllocator(
+            SerialNumberAllocator.Mode.RANDOM);
+    private Date start = X509CertificateBuilder.today();
+    private Date end = X509CertificateBuilder.addYears(start, 1);
+    private int basicConstraints = -1;
+    private IssuedCertificates issued;
+
+    public BatchSigner(CertificateAuthority ca) {
+        this(ca, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchSigner(CertificateAuthority ca, int threads) {
+        this.ca = ca;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setStart(Date start) {
+        this.start = start;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
+    public void setBasicConstraints(int basicConstraints) {
+        this.basicConstraints = basicConstraints;
+    }
+
+    /**
+     * Sets the allocator of serial numbers. By default, the serial numbers
+     * are random.
+     */
+    public void setSerialNumberAllocator(SerialNumberAllocator serials) {
+        this.serials = serials;
+    }
+
+    /**
+     * Sets where the certificates issued are recorded, so that they can
+     * later be revoked or checked with OCSP. By default, they are not.
+     */
+    public void setIssuedCertificates(IssuedCertificates issued) {
+        this.issued = issued;
+    }
+
+    /**
+     * Signs all the *.csr files of a directory, and writes each certificate
+     * in the output directory, in a PEM file with the same base name.
+     * Returns the number of certificates issued.
+     */
+    public int signDirectory(File dir, final File outDir) throws IOException {
+        File[] files = dir.listFiles((File f) -> f.isFile()
+                && f.getName().toLowerCase().endsWith(".csr"));
+        if (files == null) {
+            throw new IOException("Cannot read directory " + dir);
+        }
+        Arrays.sort(files);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<Result>> pending = new ArrayDeque<>();
+            int count = 0;
+            for (final File file: files) {
+                pending.add(executor.submit(() -> sign(file)));
+                if (pending.size() >= window()) {
+                    count += writeFile(pending.remove(), outDir);
+                }
+            }
+            while (!pending.isEmpty()) {
+                count += writeFile(pending.remove(), outDir);
+            }
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Signs all the PEM encoded CSRs read from the input, and writes the
+     * PEM encoded certificates to the output, in the same order. Invalid
+     * requests are logged and skipped. Returns the number of certificates
+     * issued.
+     */
+    public int signStream(Reader reader, Writer writer) throws IOException {
+        PEMParser in = new PEMParser(reader);
+        JcaPEMWriter out = new JcaPEMWriter(writer);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<Result>> pending = new ArrayDeque<>();
+            int count = 0;
+            int index = 0;
+            for (PKCS10CertificationRequest csr
+                    = CertificationRequests.readNext(in); csr != null;
+                    csr = CertificationRequests.readNext(in)) {
+                final String name = "#" + (++index);
+                final PKCS10CertificationRequest req = csr;
+                pending.add(executor.submit(() -> sign(name, req)));
+                if (pending.size() >= window()) {
+                    count += write(pending.remove(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                count += write(pending.remove(), out);
+            }
+            out.flush();
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verifies and signs a single CSR. Errors are reported in the result.
+     */
+    public Result sign(String name, PKCS10CertificationRequest csr) {
+        try {
+            CertificationRequests.verify(csr);
+            X500Principal subject = CertificationRequests.getSubject(csr);
+            X509CertificateBuilder gen
+                    = new X509CertificateBuilder(serials.next(), subject);
+            gen.setPublicKey(CertificationRequests.getPublicKey(csr));
+            gen.setStart(start);
+            gen.setEnd(end);
+            gen.setBasicConstraints(basicConstraints);
+            X509CertificateHolder holder = ca.issueHolder(gen);
+            if (issued != null) {
+                issued.add(holder.getSerialNumber(), holder.getEncoded());
+            }
+            return new Result(name, holder, null);
+        } catch (Exception e) {
+            return new Result(name, null, e);
+        }
+    }
+
+    private Result sign(File file) {
+        try {
+            return sign(file.getName(), CertificationRequests.read(file));
+        } catch (IOException e) {
+            return new Result(file.getName(), null, e);
+        }
+    }
+
+    private int window() {
+        return threads*4;
+    }
+
+    private int write(Future<Result> future, JcaPEMWriter out)
+            throws IOException {
+        Result result = get(future);
+        if (!result.isSuccess()) {
+            return 0;
+        }
+        out.writeObject(result.getHolder());
+        out.flush();
+        return 1;
+    }
+
+    private int writeFile(Future<Result> future, File outDir)
+            throws IOException {
+        Result result = get(future);
+        if (!result.isSuccess()) {
+            return 0;
+        }
+        String name = result.getName();
+        int ix = name.lastIndexOf('.');
+        File file = new File(outDir,
+                (ix > 0 ? name.substring(0, ix) : name) + ".pem");
+        try (OutputStream stream = new FileOutputStream(file);
+                Writer writer = new OutputStreamWriter(stream, "UTF-8");
+                JcaPEMWriter out = new JcaPEMWriter(writer)) {
+            out.writeObject(result.getHolder());
+        }
+        return 1;
+    }
+
+    private static Result get(Future<Result> future) throws IOException {
+        try {
+            Result result = future.get();
+            if (!result.isSuccess()) {
+                LOG.log(Level.WARNING, "Could not sign " + result.getName(),
+                        result.getError());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public static class Result {
+        private final String name;
+        private final X509CertificateHolder holder;
+        private final Exception error;
+
+        private Result(String name, X509CertificateHolder holder,
+                Exception error) {
+            this.name = name;
+            this.holder = holder;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public X509CertificateHolder getHolder() {
+            return holder;
+        }
+
+        public X509Certificate getCertificate()
+                throws CertificateException, IOException {
+            return holder == null
+                    ? null : X509CertificateBuilder.toCertificate(holder);
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,570 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Exports many entries in one pass: to a directory of PEM files, to a zip
+ * archive of PEM files, or to a single JKS or PKCS12 keystore. The entries
+ * are encoded on a pool of worker threads, and written in the order of the
+ * keystore as soon as they are ready, so that only a bounded number of
+ * encoded entries is held in memory. JKS files are written entry by entry;
+ * PKCS12 files are encoded as a whole by the JDK when all the entries have
+ * been added. Files, including each file of a directory, are written to a
+ * temporary file, which replaces the target when it is complete. Keys
+ * that cannot be recovered with the given passwords are not exported, but
+ * their certificates are, and they are reported in the result.
+ */
+public class BulkExporter {
+    public enum Target {
+        DIRECTORY, ZIP, PKCS12, JKS;
+
+        /**
+         * Guesses the target from the name of a file or directory.
+         */
+        public static Target forFile(File file) {
+            String name = file.getName().toLowerCase(Locale.ENGLISH);
+            if (name.endsWith(".zip")) {
+                return ZIP;
+            } else if (name.endsWith(".p12") || name.endsWith(".pfx")) {
+                return PKCS12;
+            } else if (name.endsWith(".jks")) {
+                return JKS;
+            } else {
+                return DIRECTORY;
+            }
+        }
+    }
+
+    /**
+     * Selects the entries to export.
+     */
+    public interface Filter {
+        boolean accept(KeyStoreEntry entry, X509Certificate cert);
+
+        default Filter and(Filter other) {
+            return (entry, cert) -> accept(entry, cert)
+                    && other.accept(entry, cert);
+        }
+
+        static Filter all() {
+            return (entry, cert) -> true;
+        }
+
+        static Filter aliases(Collection<String> aliases) {
+            final Set<String> keys = new HashSet<>();
+            for (String alias: aliases) {
+                keys.add(alias.toLowerCase(Locale.ENGLISH));
+            }
+            return (entry, cert) -> keys.contains(
+                    entry.getAlias().toLowerCase(Locale.ENGLISH));
+        }
+
+        static Filter issuedBy(X500Principal issuer) {
+            return (entry, cert) -> cert != null
+                    && cert.getIssuerX500Principal().equals(issuer);
+        }
+
+        static Filter expiresBefore(Date date) {
+            return (entry, cert) -> cert != null
+                    && cert.getNotAfter().before(date);
+        }
+    }
+
+    private final KeyStoreIndex index;
+    private final int threads;
+    private boolean chain;
+    private char[] keyPassword;
+    private final Map<String,char[]> keyPasswords = new HashMap<>();
+    private KeyEncryption keyEncryption = new KeyEncryption();
+    private CertificateValidator validator;
+    private Set<String> unrecovered;
+    private Map<String,List<String>> problems;
+
+    public BulkExporter(KeyStoreIndex index) {
+        this(index, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BulkExporter(KeyStoreIndex index, int threads) {
+        this.index = index;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Exports the chain of each entry instead of its certificate alone.
+     */
+    public void setChain(boolean chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * Sets the password of the keys to export. Without it, only the
+     * certificates of the key entries are exported.
+     */
+    public void setKeyPassword(char[] keyPassword) {
+        this.keyPassword = keyPassword == null ? null : keyPassword.clone();
+    }
+
+    /**
+     * Sets the password of the key of the given alias, which takes
+     * precedence over the common key password.
+     */
+    public void setKeyPassword(String alias, char[] keyPassword) {
+        keyPasswords.put(alias.toLowerCase(Locale.ENGLISH),
+                keyPassword.clone());
+    }
+
+    /**
+     * Sets the encryption of the keys written to PEM files. With a shared
+     * salt, the key is derived once for the whole export; otherwise, the
+     * derivations run in parallel on the worker threads.
+     */
+    public void setKeyEncryption(KeyEncryption keyEncryption) {
+        this.keyEncryption = keyEncryption;
+    }
+
+    /**
+     * Validates the chain of each exported entry; the entries that do not
+     * validate are exported anyway, and reported in the result. By default,
+     * the entries are not validated.
+     */
+    public void setValidator(CertificateValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Exports the entries accepted by the filter. The password protects
+     * the keys of PEM files, and the whole keystore for the JKS and PKCS12
+     * targets. The listener, if any, receives the number of entries
+     * written, and cancels the export by returning false.
+     */
+    public Result export(File file, Target target, Filter filter,
+            char[] pwd, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        List<KeyStoreEntry> entries = new ArrayList<>();
+        for (KeyStoreEntry entry: index.getAll()) {
+            if (filter.accept(entry, index.getCertificate(entry.getAlias()))) {
+                entries.add(entry);
+            }
+        }
+        unrecovered = ConcurrentHashMap.newKeySet();
+        problems = new ConcurrentHashMap<>();
+        try {
+            switch (target) {
+                case DIRECTORY:
+                    exportDirectory(file, entries, pwd, listener);
+                    break;
+                case ZIP:
+                    writeFile(file, (out) -> exportZip(
+                            out, entries, pwd, listener));
+                    break;
+                case JKS:
+                    writeFile(file, (out) -> exportJks(
+                            out, entries, pwd, listener));
+                    break;
+                case PKCS12:
+                    exportPkcs12(file, entries, pwd, listener);
+                    break;
+            }
+        } finally {
+            keyEncryption.clearCache();
+        }
+        Result result = new Result();
+        result.exported = entries.size();
+        for (KeyStoreEntry entry: entries) {
+            if (unrecovered.contains(entry.getAlias())) {
+                result.unrecoveredKeys.add(entry.getAlias());
+            }
+            if (problems.containsKey(entry.getAlias())) {
+                result.problems.put(entry.getAlias(),
+                        problems.get(entry.getAlias()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a temporary file, and moves it over the target when it is
+     * complete.
+     */
+    private static void writeFile(File file, Writer writer)
+            throws IOException, GeneralSecurityException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                OutputStream out = new BufferedOutputStream(stream);
+                writer.write(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private void exportDirectory(File dir, List<KeyStoreEntry> entries,
+            char[] pwd, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        Set<String> names = new HashSet<>();
+        List<String> files = new ArrayList<>();
+        for (KeyStoreEntry entry: entries) {
+            files.add(fileName(entry.getAlias(), names));
+        }
+        run(entries.size(), (i) -> {
+            byte[] pem = encodePem(entries.get(i), pwd);
+            writeFile(new File(dir, files.get(i)), (out) -> out.write(pem));
+            return null;
+        }, (i, data) -> { }, listener);
+    }
+
+    private void exportZip(OutputStream stream, List<KeyStoreEntry> entries,
+            char[] pwd, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        Set<String> names = new HashSet<>();
+        ZipOutputStream out = new ZipOutputStream(stream);
+        run(entries.size(), (i) -> encodePem(entries.get(i), pwd),
+                (i, data) -> {
+            out.putNextEntry(new ZipEntry(
+                    fileName(entries.get(i).getAlias(), names)));
+            out.write(data);
+            out.closeEntry();
+        }, listener);
+        out.finish();
+    }
+
+    /**
+     * Writes a JKS file entry by entry, in the format of the JDK JKS
+     * keystore: a header, the entries, and a SHA-1 digest of the password,
+     * a fixed salt and the content.
+     */
+    private void exportJks(OutputStream stream, List<KeyStoreEntry> entries,
+            char[] pwd, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance("SHA");
+        for (char c: pwd) {
+            md.update((byte)(c >> 8));
+            md.update((byte)c);
+        }
+        md.update(JournalStore.JKS_SALT.getBytes(StandardCharsets.UTF_8));
+        DataOutputStream out = new DataOutputStream(
+                new DigestOutputStream(stream, md));
+        out.writeInt(JournalStore.JKS_MAGIC);
+        out.writeInt(JournalStore.JKS_VERSION);
+        out.writeInt(entries.size());
+        final long now = System.currentTimeMillis();
+        run(entries.size(), (i) -> encodeJks(entries.get(i), now, pwd),
+                (i, data) -> out.write(data), listener);
+        out.flush();
+        stream.write(md.digest());
+    }
+
+    private void exportPkcs12(File file, List<KeyStoreEntry> entries,
+            char[] pwd, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        store.load(null, null);
+        for (int i = 0; i < entries.size(); ++i) {
+            KeyStoreEntry entry = entries.get(i);
+            String alias = entry.getAlias();
+            validate(alias);
+            PrivateKey key = key(entry);
+            if (key != null) {
+                store.setKeyEntry(alias, key, pwd, chain(alias));
+            } else {
+                store.setCertificateEntry(alias, certificate(alias));
+            }
+            progress(listener, i + 1, entries.size());
+        }
+        KeyStoreFiles.store(store, file, pwd, null);
+    }
+
+    private byte[] encodePem(KeyStoreEntry entry, char[] pwd)
+            throws IOException, GeneralSecurityException {
+        String alias = entry.getAlias();
+        validate(alias);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Exporter.export(out, Exporter.Format.PEM, alias, key(entry),
+                certificate(alias), chain ? chain(alias) : null, pwd,
+                keyEncryption);
+        return out.toByteArray();
+    }
+
+    private byte[] encodeJks(KeyStoreEntry entry, long date, char[] pwd)
+            throws IOException, GeneralSecurityException {
+        String alias = entry.getAlias();
+        validate(alias);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PrivateKey key = key(entry);
+        if (key != null) {
+            Certificate[] certs = chain(alias);
+            out.writeInt(JournalStore.JKS_KEY_ENTRY);
+            out.writeUTF(alias);
+            out.writeLong(date);
+            byte[] protectedKey = JournalStore.protectKey(key, pwd, certs);
+            out.writeInt(protectedKey.length);
+            out.write(protectedKey);
+            out.writeInt(certs.length);
+            for (Certificate cert: certs) {
+                writeCertificate(out, cert);
+            }
+        } else {
+            out.writeInt(JournalStore.JKS_CERT_ENTRY);
+            out.writeUTF(alias);
+            out.writeLong(date);
+            writeCertificate(out, certificate(alias));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeCertificate(DataOutputStream out,
+            Certificate cert) throws IOException, GeneralSecurityException {
+        byte[] encoded = cert.getEncoded();
+        out.writeUTF(cert.getType());
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    /**
+     * Returns the key of the entry, or null if the keys are not exported,
+     * or if the key cannot be recovered with the password.
+     */
+    private PrivateKey key(KeyStoreEntry entry)
+            throws GeneralSecurityException {
+        String alias = entry.getAlias();
+        char[] pwd = keyPasswords.get(alias.toLowerCase(Locale.ENGLISH));
+        if (pwd == null) {
+            pwd = keyPassword;
+        }
+        if (pwd == null || !entry.isKey()) {
+            return null;
+        }
+        try {
+            // not through the index: its lock would serialize the workers,
+            // and the keys would stay in its cache after the export
+            Key key = index.getKeyStore().getKey(alias, pwd);
+            if (!(key instanceof PrivateKey)) {
+                throw new KeyStoreException("Not a private key: " + alias);
+            }
+            return (PrivateKey)key;
+        } catch (UnrecoverableKeyException e) {
+            unrecovered.add(alias);
+            return null;
+        }
+    }
+
+    private void validate(String alias) throws GeneralSecurityException {
+        if (validator != null) {
+            X509Certificate[] certs = new ChainBuilder(index).getChain(alias);
+            CertificateValidator.Result result = certs == null
+                    ? null : validator.validate(certs, new Date());
+            if (result != null && !result.isValid()) {
+                problems.put(alias, result.getProblems());
+            }
+        }
+    }
+
+    private X509Certificate certificate(String alias)
+            throws GeneralSecurityException {
+        X509Certificate cert = index.getCertificate(alias);
+        if (cert == null) {
+            throw new GeneralSecurityException("No certificate for " + alias);
+        }
+        return cert;
+    }
+
+    private Certificate[] chain(String alias)
+            throws GeneralSecurityException {
+        Certificate[] certs = index.getKeyStore().getCertificateChain(alias);
+        if (chain || certs == null) {
+            certs = new ChainBuilder(index).getChain(alias);
+        }
+        return certs;
+    }
+
+    /**
+     * Returns a file name derived from the alias, that is not in the set,
+     * ignoring the case.
+     */
+    private static String fileName(String alias, Set<String> names) {
+        StringBuilder buf = new StringBuilder();
+        for (char c: alias.toCharArray()) {
+            buf.append(Character.isLetterOrDigit(c) || c == '-' || c == '.'
+                    ? c : '_');
+        }
+        String base = buf.toString();
+        String name = base + ".pem";
+        for (int i = 2; !names.add(name.toLowerCase(Locale.ENGLISH)); ++i) {
+            name = base + "-" + i + ".pem";
+        }
+        return name;
+    }
+
+    /**
+     * Encodes the items on the worker threads, and passes the results to
+     * the writer, in order, on the calling thread.
+     */
+    private void run(int count, Encoder encoder, Consumer writer,
+            ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            int next = 0;
+            for (int i = 0; i < count; ++i) {
+                final int item = i;
+                pending.add(executor.submit(() -> encoder.encode(item)));
+                if (pending.size() >= window()) {
+                    writer.write(next, get(pending.remove()));
+                    progress(listener, ++next, count);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(next, get(pending.remove()));
+                progress(listener, ++next, count);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int window() {
+        return threads*4;
+    }
+
+    private static void progress(ProgressListener listener, long done,
+            long total) throws InterruptedIOException {
+        if (listener != null && !listener.progress(done, total)) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+    private static byte[] get(Future<byte[]> future)
+            throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * The outcome of an export.
+     */
+    public static class Result {
+        private int exported;
+        private final List<String> unrecoveredKeys = new ArrayList<>();
+        private final Map<String,List<String>> problems
+                = new LinkedHashMap<>();
+
+        private Result() {
+        }
+
+        /**
+         * Returns the number of entries exported.
+         */
+        public int getExported() {
+            return exported;
+        }
+
+        /**
+         * Returns the aliases of the keys that could not be recovered with
+         * the passwords, and of which only the certificates were exported.
+         */
+        public List<String> getUnrecoveredKeys() {
+            return unrecoveredKeys;
+        }
+
+        /**
+         * Returns the problems found by the validator, by alias, for the
+         * entries that do not validate.
+         */
+        public Map<String,List<String>> getProblems() {
+            return problems;
+        }
+    }
+
+    private interface Encoder {
+        byte[] encode(int item) throws IOException, GeneralSecurityException;
+    }
+
+    private interface Consumer {
+        void write(int item, byte[] data)
+                throws IOException, GeneralSecurityException;
+    }
+
+    private interface Writer {
+        void write(OutputStream out)
+                throws IOException, GeneralSecurityException;
+    }
+}
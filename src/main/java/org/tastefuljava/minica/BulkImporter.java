@@ -0,0 +1,432 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Imports the certificates of whole directory trees and of large PEM or DER
+ * bundles. The files are cut into chunks of about the chunk size, on
+ * certificate boundaries, and the chunks are parsed on a pool of worker
+ * threads. The certificates that are already in the keystore, or that
+ * appear twice, are recognized by their fingerprint and skipped; the others
+ * are added to the keystore in batches of BATCH_SIZE, so that the memory
+ * used does not grow with the size of the files. Private keys and
+ * password-protected keystores are not handled here: they go through the
+ * Importer, one file at a time.
+ */
+public class BulkImporter {
+    private static final Logger LOG
+            = Logger.getLogger(BulkImporter.class.getName());
+    private static final int DEFAULT_CHUNK_SIZE = 4*1024*1024;
+    private static final int BATCH_SIZE = 10000;
+    private static final byte[] PEM_BEGIN
+            = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+
+    private final KeyStoreIndex index;
+    private final int threads;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    public BulkImporter(KeyStoreIndex index) {
+        this(index, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BulkImporter(KeyStoreIndex index, int threads) {
+        this.index = index;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Imports the certificates of the given files and directories. The
+     * listener, if any, receives the number of bytes parsed; the import is
+     * cancelled when it returns false, and only the batches already added
+     * to the keystore remain.
+     */
+    public Result importFiles(List<File> files, ProgressListener listener)
+            throws IOException, KeyStoreException {
+        Result result = new Result();
+        List<Chunk> chunks = new ArrayList<>();
+        long total = 0;
+        for (File file: files) {
+            for (File f: list(file)) {
+                Importer.Format format = Importer.Format.forFile(f);
+                if (format == Importer.Format.PKCS12
+                        || format == Importer.Format.JKS) {
+                    LOG.log(Level.INFO, "Skipping keystore {0}", f);
+                    ++result.skipped;
+                } else {
+                    total += split(f, chunks);
+                }
+            }
+        }
+        Map<String,X509Certificate> batch = new LinkedHashMap<>();
+        Set<String> fingerprints = new HashSet<>();
+        Set<String> aliases = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<Parsed>> pending = new ArrayDeque<>();
+            long done = 0;
+            for (Chunk chunk: chunks) {
+                pending.add(executor.submit(() -> parse(chunk)));
+                if (pending.size() >= window()) {
+                    done += merge(get(pending.remove()), batch, fingerprints,
+                            aliases, result);
+                    progress(listener, done, total);
+                }
+            }
+            while (!pending.isEmpty()) {
+                done += merge(get(pending.remove()), batch, fingerprints,
+                        aliases, result);
+                progress(listener, done, total);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        flush(batch, fingerprints, aliases, result);
+        return result;
+    }
+
+    /**
+     * Adds a batch to the keystore. The certificates of the next batches
+     * are then checked against the keystore, rather than against the
+     * fingerprints and aliases of the batch.
+     */
+    private void flush(Map<String,X509Certificate> batch,
+            Set<String> fingerprints, Set<String> aliases, Result result)
+            throws KeyStoreException {
+        if (!batch.isEmpty()) {
+            index.setCertificateEntries(batch);
+        }
+        result.imported += batch.size();
+        batch.clear();
+        fingerprints.clear();
+        aliases.clear();
+    }
+
+    private int window() {
+        return threads*2;
+    }
+
+    private static List<File> list(File file) throws IOException {
+        if (!file.isDirectory()) {
+            List<File> result = new ArrayList<>();
+            result.add(file);
+            return result;
+        }
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            return paths.filter(Files::isRegularFile).sorted()
+                    .map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Cuts a file into chunks, and returns its size. A PEM chunk ends
+     * before a BEGIN line, and a DER chunk after a complete top-level
+     * structure.
+     */
+    private long split(File file, List<Chunk> chunks) throws IOException {
+        long length = file.length();
+        if (length <= chunkSize) {
+            chunks.add(new Chunk(file, 0, length));
+            return length;
+        } else if (length > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + file);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, length);
+            boolean der = PemScanner.isDer(buf, true);
+            int start = 0;
+            while (start < length) {
+                int end = der ? nextDerBoundary(buf, start)
+                        : nextPemBoundary(buf, start);
+                chunks.add(new Chunk(file, start, end - start));
+                start = end;
+            }
+        }
+        return length;
+    }
+
+    private int nextPemBoundary(ByteBuffer buf, int start) {
+        int limit = buf.limit();
+        for (int i = start + chunkSize; i < limit; ++i) {
+            if (buf.get(i - 1) == '\n' && startsWith(buf, i, PEM_BEGIN)) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int pos,
+            byte[] prefix) {
+        if (pos + prefix.length > buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buf.get(pos + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips top-level DER structures until the chunk is large enough. Only
+     * the tags and lengths are read.
+     */
+    private int nextDerBoundary(ByteBuffer buf, int start) throws IOException {
+        int limit = buf.limit();
+        int pos = start;
+        while (pos < limit && pos - start < chunkSize) {
+            if (pos + 2 > limit) {
+                return limit;
+            }
+            int len = buf.get(pos + 1) & 0xFF;
+            pos += 2;
+            if (len > 0x7F) {
+                int n = len & 0x7F;
+                if (n == 0 || n > 4 || pos + n > limit) {
+                    throw new IOException("Invalid DER length at " + pos);
+                }
+                len = 0;
+                for (int i = 0; i < n; ++i) {
+                    len = (len << 8) | (buf.get(pos++) & 0xFF);
+                }
+                if (len < 0) {
+                    throw new IOException("Invalid DER length at " + pos);
+                }
+            }
+            pos = (int)Math.min(limit, (long)pos + len);
+        }
+        return pos;
+    }
+
+    /**
+     * Parses a chunk, mapped in memory, and computes the fingerprints of
+     * its certificates. Invalid PEM blocks are counted, and the rest of the
+     * chunk is still read; a DER chunk cannot be read past an error.
+     */
+    private static Parsed parse(Chunk chunk) throws IOException {
+        Parsed result = new Parsed(chunk);
+        try (RandomAccessFile raf = new RandomAccessFile(chunk.file, "r");
+                FileChannel channel = raf.getChannel()) {
+            PemScanner in = new PemScanner(channel.map(
+                    FileChannel.MapMode.READ_ONLY, chunk.offset,
+                    chunk.length));
+            while (true) {
+                PemScanner.Block block;
+                try {
+                    block = in.next();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Invalid DER data in {0}",
+                            chunk.file);
+                    ++result.errors;
+                    break;
+                }
+                if (block == null) {
+                    break;
+                } else if (!block.isCertificate()) {
+                    ++result.skipped;
+                } else {
+                    try {
+                        result.add(X509CertificateBuilder.decode(
+                                block.getContent()));
+                    } catch (IOException | CertificateException e) {
+                        LOG.log(Level.WARNING, "Invalid certificate in {0}: "
+                                + "{1}", new Object[] {chunk.file,
+                                    e.getMessage()});
+                        ++result.errors;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private long merge(Parsed parsed, Map<String,X509Certificate> batch,
+            Set<String> fingerprints, Set<String> aliases, Result result)
+            throws KeyStoreException {
+        result.errors += parsed.errors;
+        result.skipped += parsed.skipped;
+        for (int i = 0; i < parsed.certs.size(); ++i) {
+            X509Certificate cert = parsed.certs.get(i);
+            byte[] fingerprint = parsed.fingerprints.get(i);
+            if (!fingerprints.add(Hex.toHexString(fingerprint))
+                    || !index.findByFingerprint(fingerprint).isEmpty()) {
+                ++result.duplicates;
+            } else {
+                String alias = alias(cert, aliases);
+                aliases.add(alias.toLowerCase(Locale.ENGLISH));
+                batch.put(alias, cert);
+                if (batch.size() >= BATCH_SIZE) {
+                    flush(batch, fingerprints, aliases, result);
+                }
+            }
+        }
+        return parsed.chunk.length;
+    }
+
+    /**
+     * Chooses an alias as the Importer does: the subject name, followed by
+     * the serial number if the name is already used.
+     */
+    private String alias(X509Certificate cert, Set<String> aliases) {
+        // same form as the aliases of Importer
+        String name = cert.getSubjectX500Principal().toString();
+        if (isFree(name, aliases)) {
+            return name;
+        }
+        BigInteger sn = cert.getSerialNumber();
+        String base = name + " (" + sn.toString(16) + ")";
+        String alias = base;
+        for (int i = 2; !isFree(alias, aliases); ++i) {
+            alias = base + " " + i;
+        }
+        return alias;
+    }
+
+    private boolean isFree(String alias, Set<String> aliases) {
+        return !aliases.contains(alias.toLowerCase(Locale.ENGLISH))
+                && !index.containsAlias(alias);
+    }
+
+    private static void progress(ProgressListener listener, long done,
+            long total) throws InterruptedIOException {
+        if (listener != null && !listener.progress(done, total)) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+    private static Parsed get(Future<Parsed> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public static class Result {
+        private int imported;
+        private int duplicates;
+        private int skipped;
+        private int errors;
+
+        private Result() {
+        }
+
+        /**
+         * Returns the number of certificates added to the keystore.
+         */
+        public int getImported() {
+            return imported;
+        }
+
+        /**
+         * Returns the number of certificates that were already in the
+         * keystore, or that appeared more than once.
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Returns the number of PEM objects that are not certificates, and
+         * of keystore files.
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the number of objects that could not be parsed.
+         */
+        public int getErrors() {
+            return errors;
+        }
+    }
+
+    private static class Chunk {
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        private Chunk(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Parsed {
+        private final Chunk chunk;
+        private final List<X509Certificate> certs = new ArrayList<>();
+        private final List<byte[]> fingerprints = new ArrayList<>();
+        private int skipped;
+        private int errors;
+
+        private Parsed(Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+        private void add(X509Certificate cert) throws CertificateException {
+            certs.add(cert);
+            fingerprints.add(KeyStoreIndex.fingerprint(cert));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+
+/**
+ * Issues certificates under a key entry of a keystore. This class does not
+ * depend on Swing, so it can be used from a server or a command line tool.
+ */
+public class CertificateAuthority {
+    private final PrivateKey key;
+    private final X509Certificate[] chain;
+    private String signatureAlgorithm;
+
+    public CertificateAuthority(PrivateKey key, Certificate[] chain) {
+        if (chain == null || chain.length == 0) {
+            throw new IllegalArgumentException("Issuer chain is empty");
+        }
+        this.key = key;
+        this.chain = new X509Certificate[chain.length];
+        for (int i = 0; i < chain.length; ++i) {
+            this.chain[i] = (X509Certificate)chain[i];
+        }
+        SignatureAlgorithm alg = SignatureAlgorithm.defaultFor(
+                this.chain[0].getPublicKey().getAlgorithm());
+        this.signatureAlgorithm = alg == null
+                ? this.chain[0].getSigAlgName() : alg.name();
+    }
+
+    public static CertificateAuthority fromKeyStore(KeyStore keystore,
+            String alias, char[] password) throws GeneralSecurityException {
+        if (!keystore.isKeyEntry(alias)) {
+            throw new KeyStoreException("Not a key entry: " + alias);
+        }
+        PrivateKey key = (PrivateKey)keystore.getKey(alias, password);
+        return new CertificateAuthority(key,
+                keystore.getCertificateChain(alias));
+    }
+
+    /**
+     * Returns the authority of a key entry, using the key if it is already
+     * unlocked. The password is erased.
+     */
+    public static CertificateAuthority fromKeyStore(KeyStoreIndex index,
+            String alias, char[] password) throws GeneralSecurityException {
+        KeyStore keystore = index.getKeyStore();
+        if (!keystore.isKeyEntry(alias)) {
+            throw new KeyStoreException("Not a key entry: " + alias);
+        }
+        return new CertificateAuthority(index.getPrivateKey(alias, password),
+                keystore.getCertificateChain(alias));
+    }
+
+    public static void installProvider() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    public PrivateKey getKey() {
+        return key;
+    }
+
+    public X509Certificate getCertificate() {
+        return chain[0];
+    }
+
+    public X509Certificate[] getChain() {
+        return chain.clone();
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public void setSignatureAlgorithm(String signatureAlgorithm) {
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    /**
+     * Signs the certificate described by the builder, and returns the
+     * resulting chain, the new certificate being the first element.
+     */
+    public X509Certificate[] issue(X509CertificateBuilder gen)
+            throws GeneralSecurityException, IOException,
+            OperatorCreationException {
+        X509Certificate cert = X509CertificateBuilder.toCertificate(
+                issueHolder(gen));
+        X509Certificate[] result = new X509Certificate[chain.length+1];
+        result[0] = cert;
+        System.arraycopy(chain, 0, result, 1, chain.length);
+        return result;
+    }
+
+    /**
+     * Signs the certificate described by the builder, and returns it in its
+     * ASN.1 form. This avoids parsing the certificate again when only its
+     * encoding is needed.
+     */
+    public X509CertificateHolder issueHolder(X509CertificateBuilder gen)
+            throws GeneralSecurityException, IOException,
+            OperatorCreationException {
+        gen.setSignatureAlgorithm(signatureAlgorithm);
+        gen.setIssuer(chain[0].getSubjectX500Principal(), key);
+        return gen.buildHolder();
+    }
+
+    /**
+     * Generates a new key pair and a certificate signed by this authority.
+     */
+    public PrivateKeyEntry generateKey(String alias, X509CertificateBuilder gen)
+            throws GeneralSecurityException, IOException,
+            OperatorCreationException {
+        X509Certificate[] certs = issue(gen);
+        return new PrivateKeyEntry(alias, gen.getPrivateKey(), certs);
+    }
+
+    /**
+     * Renews an existing certificate: same subject, serial number and public
+     * key, but new validity dates and signed by this authority.
+     */
+    public X509Certificate[] sign(X509Certificate cert, Date start, Date end)
+            throws GeneralSecurityException, IOException,
+            OperatorCreationException {
+        X509CertificateBuilder gen = new X509CertificateBuilder(cert);
+        gen.setStart(start);
+        gen.setEnd(end);
+        return issue(gen);
+    }
+
+    /**
+     * Generates a new key pair with a self-signed certificate.
+     */
+    public static PrivateKeyEntry selfSigned(String alias,
+            X509CertificateBuilder gen) throws GeneralSecurityException,
+            IOException, OperatorCreationException {
+        X509Certificate cert = gen.build();
+        return new PrivateKeyEntry(alias, gen.getPrivateKey(),
+                new X509Certificate[] {cert});
+    }
+
+    static {
+        installProvider();
+    }
+}
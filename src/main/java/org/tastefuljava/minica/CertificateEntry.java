@@ -17,7 +17,6 @@
 */
 package org.tastefuljava.minica;
 
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.cert.X509Certificate;
 
@@ -39,7 +38,8 @@ public class CertificateEntry extends KeyStoreEntry {
     }
 
     @Override
-    public void addTo(KeyStore ks, char[] password) throws KeyStoreException {
-        ks.setCertificateEntry(getAlias(), cert);
+    public void addTo(KeyStoreIndex index, char[] password)
+            throws KeyStoreException {
+        index.setCertificateEntry(getAlias(), cert);
     }
 }
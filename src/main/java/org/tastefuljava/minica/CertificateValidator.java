@@ -0,0 +1,336 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralSubtree;
+import org.bouncycastle.asn1.x509.NameConstraints;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.jce.provider.PKIXNameConstraintValidator;
+import org.bouncycastle.jce.provider.PKIXNameConstraintValidatorException;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Validates certificate paths. The trust anchors are the CA certificates of
+ * the keystore: a path ends with the first certificate that is a CA entry
+ * of the keystore. The signatures, validity periods, basic constraints and
+ * path lengths, key usage of the issuers, and name constraints are
+ * checked. The results of the signature verifications are kept per
+ * (issuer, subject) pair, so that the certificates of the intermediate CAs
+ * are only verified once when many leaf certificates are validated.
+ */
+public class CertificateValidator {
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+    private static final int KEY_CERT_SIGN = 5;
+
+    private final KeyStoreIndex index;
+    private final ChainBuilder chains;
+    private final Map<String,Boolean> signatures;
+    private final AtomicLong verifications = new AtomicLong();
+    private volatile int maxCacheSize = DEFAULT_CACHE_SIZE;
+
+    public CertificateValidator(KeyStoreIndex index) {
+        this(index, new ChainBuilder(index));
+    }
+
+    /**
+     * Creates a validator that builds the paths with the given chain
+     * builder, which may know other certificates than the keystore.
+     */
+    public CertificateValidator(KeyStoreIndex index, ChainBuilder chains) {
+        this.index = index;
+        this.chains = chains;
+        this.signatures = Collections.synchronizedMap(
+                new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String,Boolean> eldest) {
+                return size() > maxCacheSize;
+            }
+        });
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = Math.max(1, maxCacheSize);
+    }
+
+    /**
+     * Returns the number of signatures actually verified, the others having
+     * been found in the cache.
+     */
+    public long getVerificationCount() {
+        return verifications.get();
+    }
+
+    public Result validate(X509Certificate cert) {
+        return validate(cert, new Date());
+    }
+
+    public Result validate(X509Certificate cert, Date date) {
+        return validate(chains.build(cert), date);
+    }
+
+    /**
+     * Validates a chain, such as the chain of a key entry, at the given
+     * date. The chain is completed if it does not reach a trust anchor.
+     */
+    public Result validate(X509Certificate[] chain, Date date) {
+        List<String> problems = new ArrayList<>();
+        int top = findAnchor(chain);
+        if (top < 0) {
+            X509Certificate last = chain[chain.length-1];
+            X509Certificate[] rest = chains.build(last);
+            if (rest.length > 1) {
+                chain = concat(chain, rest);
+                top = findAnchor(chain);
+            }
+        }
+        if (top < 0) {
+            top = chain.length-1;
+            problems.add("No trusted CA for "
+                    + chain[top].getIssuerX500Principal());
+        } else {
+            chain = Arrays.copyOf(chain, top+1);
+        }
+        checkValidity(chain[top], date, problems);
+        checkPathLengths(chain, problems);
+        PKIXNameConstraintValidator names = new PKIXNameConstraintValidator();
+        addNameConstraints(chain[top], names, problems);
+        for (int i = top; --i >= 0; ) {
+            X509Certificate cert = chain[i];
+            X509Certificate issuer = chain[i+1];
+            String name = cert.getSubjectX500Principal().toString();
+            if (!cert.getIssuerX500Principal().equals(
+                    issuer.getSubjectX500Principal())) {
+                problems.add(name + ": issuer name does not match");
+            } else if (!verifies(cert, issuer)) {
+                problems.add(name + ": invalid signature");
+            }
+            checkValidity(cert, date, problems);
+            if (issuer.getBasicConstraints() < 0) {
+                problems.add(issuer.getSubjectX500Principal()
+                        + ": not a CA");
+            }
+            boolean[] usage = issuer.getKeyUsage();
+            if (usage != null && !usage[KEY_CERT_SIGN]) {
+                problems.add(issuer.getSubjectX500Principal()
+                        + ": key usage does not allow certificate signing");
+            }
+            if (i == 0 || !ChainBuilder.isSelfIssued(cert)) {
+                checkNames(cert, names, problems);
+            }
+            if (i > 0) {
+                addNameConstraints(cert, names, problems);
+            }
+        }
+        return new Result(chain, problems);
+    }
+
+    /**
+     * Returns the index of the first certificate of the chain that is a CA
+     * certificate of the keystore, or -1.
+     */
+    private int findAnchor(X509Certificate[] chain) {
+        for (int i = 0; i < chain.length; ++i) {
+            X509Certificate cert = chain[i];
+            try {
+                if (cert.getBasicConstraints() >= 0
+                        && !index.findByFingerprint(
+                                KeyStoreIndex.fingerprint(cert)).isEmpty()) {
+                    return i;
+                }
+            } catch (CertificateEncodingException e) {
+                // cannot be in the keystore
+            }
+        }
+        return -1;
+    }
+
+    private boolean verifies(X509Certificate cert, X509Certificate issuer) {
+        String key;
+        try {
+            key = Hex.toHexString(KeyStoreIndex.fingerprint(issuer)) + ":"
+                    + Hex.toHexString(KeyStoreIndex.fingerprint(cert));
+        } catch (CertificateEncodingException e) {
+            return false;
+        }
+        Boolean result = signatures.get(key);
+        if (result == null) {
+            verifications.incrementAndGet();
+            try {
+                cert.verify(issuer.getPublicKey());
+                result = true;
+            } catch (GeneralSecurityException e) {
+                result = false;
+            }
+            signatures.put(key, result);
+        }
+        return result;
+    }
+
+    private static void checkValidity(X509Certificate cert, Date date,
+            List<String> problems) {
+        try {
+            cert.checkValidity(date);
+        } catch (CertificateException e) {
+            problems.add(cert.getSubjectX500Principal() + ": not valid on "
+                    + date + " (" + cert.getNotBefore() + " - "
+                    + cert.getNotAfter() + ")");
+        }
+    }
+
+    /**
+     * Checks that each CA has at most as many non-self-issued intermediate
+     * CAs below it as its path length constraint allows.
+     */
+    private static void checkPathLengths(X509Certificate[] chain,
+            List<String> problems) {
+        int intermediates = 0;
+        for (int j = 1; j < chain.length; ++j) {
+            int pathLen = chain[j].getBasicConstraints();
+            if (pathLen >= 0 && intermediates > pathLen) {
+                problems.add(chain[j].getSubjectX500Principal()
+                        + ": path length constraint exceeded");
+            }
+            if (!ChainBuilder.isSelfIssued(chain[j])) {
+                ++intermediates;
+            }
+        }
+    }
+
+    private static void addNameConstraints(X509Certificate cert,
+            PKIXNameConstraintValidator names, List<String> problems) {
+        byte[] ext = cert.getExtensionValue(
+                Extension.nameConstraints.getId());
+        if (ext == null) {
+            return;
+        }
+        try {
+            NameConstraints nc = NameConstraints.getInstance(
+                    JcaX509ExtensionUtils.parseExtensionValue(ext));
+            GeneralSubtree[] permitted = nc.getPermittedSubtrees();
+            if (permitted != null) {
+                names.intersectPermittedSubtree(permitted);
+            }
+            GeneralSubtree[] excluded = nc.getExcludedSubtrees();
+            if (excluded != null) {
+                for (GeneralSubtree subtree: excluded) {
+                    names.addExcludedSubtree(subtree);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            problems.add(cert.getSubjectX500Principal()
+                    + ": invalid name constraints");
+        }
+    }
+
+    private static void checkNames(X509Certificate cert,
+            PKIXNameConstraintValidator names, List<String> problems) {
+        try {
+            ASN1Sequence dn = ASN1Sequence.getInstance(
+                    cert.getSubjectX500Principal().getEncoded());
+            names.checkPermittedDN(dn);
+            names.checkExcludedDN(dn);
+            Collection<List<?>> alts = cert.getSubjectAlternativeNames();
+            if (alts != null) {
+                for (List<?> alt: alts) {
+                    GeneralName name = altName(alt);
+                    if (name != null) {
+                        names.checkPermitted(name);
+                        names.checkExcluded(name);
+                    }
+                }
+            }
+        } catch (PKIXNameConstraintValidatorException e) {
+            problems.add(cert.getSubjectX500Principal() + ": "
+                    + e.getMessage());
+        } catch (CertificateException e) {
+            problems.add(cert.getSubjectX500Principal()
+                    + ": invalid subject alternative names");
+        }
+    }
+
+    /**
+     * Converts an entry of X509Certificate.getSubjectAlternativeNames, for
+     * the name types that name constraints apply to.
+     */
+    private static GeneralName altName(List<?> alt) {
+        int tag = (Integer)alt.get(0);
+        Object value = alt.get(1);
+        switch (tag) {
+            case GeneralName.rfc822Name:
+            case GeneralName.dNSName:
+            case GeneralName.uniformResourceIdentifier:
+            case GeneralName.iPAddress:
+                return value instanceof String
+                        ? new GeneralName(tag, (String)value) : null;
+            default:
+                return null;
+        }
+    }
+
+    private static X509Certificate[] concat(X509Certificate[] chain,
+            X509Certificate[] rest) {
+        X509Certificate[] result
+                = Arrays.copyOf(chain, chain.length + rest.length - 1);
+        System.arraycopy(rest, 1, result, chain.length, rest.length - 1);
+        return result;
+    }
+
+    public static class Result {
+        private final X509Certificate[] chain;
+        private final List<String> problems;
+
+        private Result(X509Certificate[] chain, List<String> problems) {
+            this.chain = chain;
+            this.problems = Collections.unmodifiableList(problems);
+        }
+
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+
+        /**
+         * Returns the validated path, from the certificate to the trust
+         * anchor, or to the last certificate found.
+         */
+        public X509Certificate[] getChain() {
+            return chain.clone();
+        }
+
+        public List<String> getProblems() {
+            return problems;
+        }
+    }
+}
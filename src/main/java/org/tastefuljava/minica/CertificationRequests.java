@@ -0,0 +1,172 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.PKCS10CertificationRequestBuilder;
+import org.bouncycastle.pkcs.PKCSException;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+
+public class CertificationRequests {
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private CertificationRequests() {
+    }
+
+    /**
+     * Reads a CSR from a file, either PEM or DER encoded.
+     */
+    public static PKCS10CertificationRequest read(File file)
+            throws IOException {
+        byte[] data;
+        try (InputStream in = new FileInputStream(file)) {
+            data = readAll(in);
+        }
+        return decode(data);
+    }
+
+    public static PKCS10CertificationRequest decode(byte[] data)
+            throws IOException {
+        if (isPem(data)) {
+            try (Reader reader = new StringReader(
+                    new String(data, "US-ASCII"))) {
+                PKCS10CertificationRequest csr
+                        = readNext(new PEMParser(reader));
+                if (csr == null) {
+                    throw new IOException("No certification request found");
+                }
+                return csr;
+            }
+        }
+        return new PKCS10CertificationRequest(data);
+    }
+
+    /**
+     * Returns the next CSR read by the parser, skipping any other PEM
+     * object, or null at the end of the stream.
+     */
+    public static PKCS10CertificationRequest readNext(PEMParser in)
+            throws IOException {
+        for (Object obj = in.readObject(); obj != null;
+                obj = in.readObject()) {
+            if (obj instanceof PKCS10CertificationRequest) {
+                return (PKCS10CertificationRequest)obj;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a CSR for the subject and public key of a certificate, signed
+     * with the matching private key.
+     */
+    public static PKCS10CertificationRequest create(PrivateKey key,
+            X509Certificate cert) throws OperatorCreationException {
+        PKCS10CertificationRequestBuilder builder
+                = new JcaPKCS10CertificationRequestBuilder(
+                        cert.getSubjectX500Principal(), cert.getPublicKey());
+        return builder.build(
+                CryptoCache.getContentSigner(cert.getSigAlgName(), key));
+    }
+
+    /**
+     * Writes a CSR in PEM format.
+     */
+    public static void write(PKCS10CertificationRequest csr, File file)
+            throws IOException {
+        try (OutputStream stream = new FileOutputStream(file);
+                Writer writer = new OutputStreamWriter(stream, "UTF-8");
+                JcaPEMWriter out = new JcaPEMWriter(writer)) {
+            out.writeObject(csr);
+        }
+    }
+
+    public static PublicKey getPublicKey(PKCS10CertificationRequest csr)
+            throws GeneralSecurityException {
+        return new JcaPKCS10CertificationRequest(csr).getPublicKey();
+    }
+
+    public static X500Principal getSubject(PKCS10CertificationRequest csr)
+            throws IOException {
+        return new X500Principal(csr.getSubject().getEncoded());
+    }
+
+    /**
+     * Checks that the CSR is signed by the private key matching the public
+     * key it contains.
+     */
+    public static void verify(PKCS10CertificationRequest csr)
+            throws GeneralSecurityException {
+        try {
+            if (!csr.isSignatureValid(new JcaContentVerifierProviderBuilder()
+                    .setProvider("BC").build(csr.getSubjectPublicKeyInfo()))) {
+                throw new SignatureException(
+                        "Invalid signature on certification request");
+            }
+        } catch (OperatorCreationException | PKCSException e) {
+            throw new SignatureException(e.getMessage(), e);
+        }
+    }
+
+    private static boolean isPem(byte[] data) {
+        for (byte b: data) {
+            if (b == '-') {
+                return true;
+            } else if (!Character.isWhitespace((char)b)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    static {
+        CertificateAuthority.installProvider();
+    }
+}
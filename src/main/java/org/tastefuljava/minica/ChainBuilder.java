@@ -0,0 +1,283 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Builds certificate chains from a set of certificates, such as the content
+ * of an imported file, and from the certificates of a keystore. Both are
+ * indexed by subject, subject key identifier and public key hash, so that
+ * each link of a chain is found without scanning the certificates. When
+ * several certificates can be the issuer (cross-signed or renewed CAs), the
+ * one whose subject key identifier matches the authority key identifier is
+ * preferred, then one that was valid when the certificate was issued, then
+ * one that is valid now, then the most recent one.
+ */
+public class ChainBuilder {
+    private static final Logger LOG
+            = Logger.getLogger(ChainBuilder.class.getName());
+
+    private final KeyStoreIndex index;
+    private final Map<X500Principal,List<X509Certificate>> bySubject
+            = new HashMap<>();
+    private final Map<String,List<X509Certificate>> bySki = new HashMap<>();
+    private final Map<String,List<X509Certificate>> byKeyHash
+            = new HashMap<>();
+
+    public ChainBuilder() {
+        this(null);
+    }
+
+    /**
+     * Creates a chain builder that also looks for certificates in the
+     * given keystore index, which may be null.
+     */
+    public ChainBuilder(KeyStoreIndex index) {
+        this.index = index;
+    }
+
+    public void add(X509Certificate cert) {
+        put(bySubject, cert.getSubjectX500Principal(), cert);
+        put(byKeyHash, Hex.toHexString(
+                KeyStoreIndex.keyHash(cert.getPublicKey())), cert);
+        String ski = ski(cert);
+        if (ski != null) {
+            put(bySki, ski, cert);
+        }
+    }
+
+    public void addAll(X509Certificate... certs) {
+        addAll(Arrays.asList(certs));
+    }
+
+    public void addAll(Collection<X509Certificate> certs) {
+        for (X509Certificate cert: certs) {
+            add(cert);
+        }
+    }
+
+    /**
+     * Returns a certificate of the public key, or null if there is none.
+     * The added certificates are searched first.
+     */
+    public X509Certificate findByPublicKey(PublicKey key) {
+        List<X509Certificate> found = byKeyHash.get(
+                Hex.toHexString(KeyStoreIndex.keyHash(key)));
+        if (found != null) {
+            return found.get(0);
+        }
+        if (index != null) {
+            for (KeyStoreEntry entry: index.findByPublicKey(key)) {
+                X509Certificate cert = index.getCertificate(
+                        entry.getAlias());
+                if (cert != null) {
+                    return cert;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the certificates that may have issued the given certificate,
+     * the most likely first.
+     */
+    public List<X509Certificate> findIssuers(final X509Certificate cert) {
+        X500Principal issuer = cert.getIssuerX500Principal();
+        Set<X509Certificate> found = new LinkedHashSet<>();
+        final String aki = aki(cert);
+        if (aki != null) {
+            addCerts(found, bySki.get(aki));
+            if (index != null) {
+                addEntries(found, index.findBySubjectKeyId(Hex.decode(aki)));
+            }
+        }
+        addCerts(found, bySubject.get(issuer));
+        if (index != null) {
+            addEntries(found, index.findBySubject(issuer));
+        }
+        List<X509Certificate> result = new ArrayList<>();
+        for (X509Certificate c: found) {
+            if (c.getSubjectX500Principal().equals(issuer)) {
+                result.add(c);
+            }
+        }
+        final Date issued = cert.getNotBefore();
+        final Date now = new Date();
+        result.sort(Comparator
+                .comparing((X509Certificate c) -> !(aki != null
+                        && aki.equals(ski(c))))
+                .thenComparing((X509Certificate c) -> !isValid(c, issued))
+                .thenComparing((X509Certificate c) -> !isValid(c, now))
+                .thenComparing(X509Certificate::getNotBefore,
+                        Comparator.reverseOrder()));
+        if (aki == null && result.size() > 1) {
+            // without an AKI, only the signature tells which key is right
+            for (int i = 0; i < result.size(); ++i) {
+                if (verifies(cert, result.get(i))) {
+                    result.add(0, result.remove(i));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the chain of a certificate, starting with the certificate
+     * itself. The chain ends with a self-issued certificate, or with the
+     * last certificate whose issuer could be found.
+     */
+    public X509Certificate[] build(X509Certificate cert) {
+        List<X509Certificate> chain = new ArrayList<>();
+        chain.add(cert);
+        X509Certificate current = cert;
+        while (!isSelfIssued(current)) {
+            X509Certificate next = null;
+            for (X509Certificate c: findIssuers(current)) {
+                // a loop of cross-certificates ends the chain
+                if (!chain.contains(c)) {
+                    next = c;
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            chain.add(next);
+            current = next;
+        }
+        return chain.toArray(new X509Certificate[chain.size()]);
+    }
+
+    /**
+     * Returns the chain of a keystore entry: the chain stored with a key
+     * entry, completed if it does not end with a self-issued certificate,
+     * or the chain built for a certificate entry.
+     */
+    public X509Certificate[] getChain(String alias)
+            throws GeneralSecurityException {
+        if (index == null) {
+            throw new IllegalStateException("No keystore index");
+        }
+        Certificate[] stored = index.getKeyStore().getCertificateChain(alias);
+        if (stored == null || stored.length == 0) {
+            X509Certificate cert = index.getCertificate(alias);
+            return cert == null ? null : build(cert);
+        }
+        X509Certificate[] chain = new X509Certificate[stored.length];
+        for (int i = 0; i < stored.length; ++i) {
+            chain[i] = (X509Certificate)stored[i];
+        }
+        X509Certificate last = chain[chain.length-1];
+        if (isSelfIssued(last)) {
+            return chain;
+        }
+        X509Certificate[] rest = build(last);
+        X509Certificate[] result
+                = Arrays.copyOf(chain, chain.length + rest.length - 1);
+        System.arraycopy(rest, 1, result, chain.length, rest.length - 1);
+        return result;
+    }
+
+    public static boolean isSelfIssued(X509Certificate cert) {
+        return cert.getSubjectX500Principal().equals(
+                cert.getIssuerX500Principal());
+    }
+
+    private static boolean isValid(X509Certificate cert, Date date) {
+        return !date.before(cert.getNotBefore())
+                && !date.after(cert.getNotAfter());
+    }
+
+    private static boolean verifies(X509Certificate cert,
+            X509Certificate issuer) {
+        try {
+            cert.verify(issuer.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static void addCerts(Set<X509Certificate> set,
+            List<X509Certificate> certs) {
+        if (certs != null) {
+            set.addAll(certs);
+        }
+    }
+
+    private void addEntries(Set<X509Certificate> set,
+            List<KeyStoreEntry> entries) {
+        for (KeyStoreEntry entry: entries) {
+            X509Certificate cert = index.getCertificate(entry.getAlias());
+            if (cert != null) {
+                set.add(cert);
+            }
+        }
+    }
+
+    private static String ski(X509Certificate cert) {
+        try {
+            byte[] id = KeyStoreIndex.getSubjectKeyId(cert);
+            return id == null ? null : Hex.toHexString(id);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Invalid subject key identifier", e);
+            return null;
+        }
+    }
+
+    private static String aki(X509Certificate cert) {
+        try {
+            byte[] id = KeyStoreIndex.getAuthorityKeyId(cert);
+            return id == null ? null : Hex.toHexString(id);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Invalid authority key identifier", e);
+            return null;
+        }
+    }
+
+    private static <K> void put(Map<K,List<X509Certificate>> map, K key,
+            X509Certificate cert) {
+        List<X509Certificate> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(key, list);
+        }
+        list.add(cert);
+    }
+}
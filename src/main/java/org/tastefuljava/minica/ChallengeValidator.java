@@ -0,0 +1,47 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+
+/**
+ * Checks that an ACME challenge has been fulfilled for an identifier.
+ */
+public interface ChallengeValidator {
+    /**
+     * Accepts every challenge, for tests and closed networks.
+     */
+    ChallengeValidator ACCEPT_ALL = (String type, String identifier,
+            String token, String keyAuthorization) -> true;
+
+    /**
+     * Tells whether challenges of the given type can be validated, so that
+     * they are offered to the clients.
+     */
+    default boolean supports(String type) {
+        return true;
+    }
+
+    /**
+     * Returns true when the challenge of the given type (http-01, dns-01)
+     * has been fulfilled. Called from a bounded pool of threads, so it can
+     * block.
+     */
+    boolean validate(String type, String identifier, String token,
+            String keyAuthorization) throws IOException;
+}
@@ -18,26 +18,21 @@
 package org.tastefuljava.minica;
 
 import java.awt.Rectangle;
-import java.security.Key;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.Certificate;
+import java.security.GeneralSecurityException;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import org.bouncycastle.util.Arrays;
 
 public class ChangePasswordDialog extends JDialog {
-    private final KeyStore keystore;
+    private final KeyStoreIndex index;
     private final String alias;
     boolean done;
 
-    public ChangePasswordDialog(JFrame parent, KeyStore keystore, 
+    public ChangePasswordDialog(JFrame parent, KeyStoreIndex index,
             String alias) {
         super(parent, true);
-        this.keystore = keystore;
+        this.index = index;
         this.alias = alias;
         init();
     }
@@ -153,14 +148,10 @@ public class ChangePasswordDialog extends JDialog {
                 newPassword.requestFocus();
                 return;                
             }
-            Key privateKey = keystore.getKey(alias, pwd);
-            Certificate[] certs
-                    = keystore.getCertificateChain(alias);
-            keystore.setKeyEntry(alias, privateKey, newPwd, certs);
+            index.changePassword(alias, pwd, newPwd);
             done = true;
             dispose();
-        } catch (KeyStoreException | NoSuchAlgorithmException
-                | UnrecoverableKeyException ex) {
+        } catch (GeneralSecurityException ex) {
             JOptionPane.showMessageDialog(this, ex.getMessage(),
                     "Could change password", JOptionPane.ERROR_MESSAGE);
             password.requestFocus();
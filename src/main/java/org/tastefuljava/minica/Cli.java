@@ -0,0 +1,1069 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.io.pem.PemObject;
+
+/**
+ * Command-line interface. All the commands work on the keystore given by
+ * the --keystore option. Modifications go through the journal of JKS
+ * keystores when there is one, so that the store password is only needed
+ * to create a keystore, or to compact it. The journal is compacted at the
+ * end of every command that is given the store password.
+ */
+public class Cli {
+    private static final String USAGE
+            = "usage: minica -k <keystore> [--storepass <pwd>] <command> [args]\n"
+            + "commands:\n"
+            + "  list\n"
+            + "  generate <alias> [--cn <cn>] [--ou <ou>] [--o <o>] [--l <l>]\n"
+            + "           [--st <st>] [--c <c>] [--keyalg rsa|ec|dsa]\n"
+            + "           [--keysize <n>] [--curve <name>] [--sigalg <alg>]\n"
+            + "           [--start <dd-MM-yyyy>]\n"
+            + "           [--end <dd-MM-yyyy>] [--serial <n>] [--ca]\n"
+            + "           [--issuer <alias>] [--issuerpass <pwd>]\n"
+            + "           [--keypass <pwd>]\n"
+            + "  sign --issuer <alias> [--issuerpass <pwd>] [--sigalg <alg>]\n"
+            + "       [--start <dd-MM-yyyy>] [--end <dd-MM-yyyy>]\n"
+            + "       (<alias> | --csr <file> [--out <file>] [--ca])\n"
+            + "  import <file> [--format pem|pkcs12|jks|cert] [--alias <alias>]\n"
+            + "         [--filepass <pwd>] [--keypass <pwd>]\n"
+            + "  bulk-import <file or directory>... [--threads <n>]\n"
+            + "  export <alias> --out <file> [--format pem|pkcs12|jks|der]\n"
+            + "         [--chain] [--no-key] [--keypass <pwd>]\n"
+            + "         [--exportpass <pwd>] [--keyenc <scheme>]\n"
+            + "         [--keyenc-cost <n>]\n"
+            + "  bulk-export [<alias>...] --out <dir|file.zip|file.p12|file.jks>\n"
+            + "              [--issued-by <alias>] [--expires-before <dd-MM-yyyy>]\n"
+            + "              [--chain] [--with-keys [--keypass <pwd>]]\n"
+            + "              [--exportpass <pwd>] [--keyenc <scheme>]\n"
+            + "              [--keyenc-cost <n>] [--salt-per-key] [--threads <n>]\n"
+            + "  csr <alias> [--out <file>] [--keypass <pwd>]\n"
+            + "  rename <alias> <new-alias> [--keypass <pwd>]\n"
+            + "  delete <alias>...\n"
+            + "  passwd <alias> [--keypass <pwd>] [--newpass <pwd>]\n"
+            + "  ssh-encode <alias> [--comment <comment>]\n"
+            + "  verify [<alias>...] [--file <file>] [--date <dd-MM-yyyy>]\n"
+            + "  revoke <hex serial> --issuer <alias> [--reason <reason>]\n"
+            + "  crl --issuer <alias> [--issuerpass <pwd>] [--out <file>]\n"
+            + "      [--crl-period <minutes>]\n"
+            + "  compact\n"
+            + "  serve --issuer <alias> [--issuerpass <pwd>] [--sigalg <alg>]\n"
+            + "        [--port <port>] [--threads <n>] [--days <n>]\n"
+            + "        [--token <token>]\n"
+            + "        [--keypool <depth>] [--acme] [--validator http|accept]\n"
+            + "        [--est] [--crl-period <minutes>]\n"
+            + "        [--ocsp [--ocsp-signer <alias>]\n"
+            + "        [--ocsp-signerpass <pwd>] [--ocsp-validity <minutes>]]\n"
+            + "key encryption schemes: legacy, pbkdf2-aes-256-cbc (default),\n"
+            + "  pbkdf2-aes-256-gcm, scrypt-aes-256-cbc, scrypt-aes-256-gcm";
+    private static final Set<String> FLAGS = new HashSet<>(Arrays.asList(
+            "--ca", "--chain", "--no-key", "--with-keys", "--salt-per-key",
+            "--acme", "--est", "--ocsp", "--help"));
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy");
+    private final Map<String,String> options = new HashMap<>();
+    private final Map<String,char[]> passwords = new HashMap<>();
+    private final List<char[]> issuedPasswords = new ArrayList<>();
+    private final List<String> args = new ArrayList<>();
+    private File keystoreFile;
+    private KeyStore keystore;
+    private KeyStoreIndex index;
+    private JournalStore journal;
+    private boolean modified;
+
+    public Cli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Runs the command, and returns the exit status: 0 on success, 1 when
+     * the command failed, and 2 when the command line is invalid.
+     */
+    public static int run(String[] args) {
+        return new Cli(System.out, System.err).execute(args);
+    }
+
+    public int execute(String[] argv) {
+        try {
+            parse(argv);
+            if (args.isEmpty() || options.containsKey("--help")) {
+                throw new UsageException(null);
+            }
+            String command = args.remove(0);
+            openKeyStore(command.equals("compact"));
+            try {
+                switch (command) {
+                    case "list":
+                        list();
+                        break;
+                    case "generate":
+                        generate();
+                        break;
+                    case "sign":
+                        sign();
+                        break;
+                    case "import":
+                        importFile();
+                        break;
+                    case "bulk-import":
+                        bulkImport();
+                        break;
+                    case "export":
+                        export();
+                        break;
+                    case "bulk-export":
+                        bulkExport();
+                        break;
+                    case "csr":
+                        csr();
+                        break;
+                    case "rename":
+                        rename();
+                        break;
+                    case "delete":
+                        delete();
+                        break;
+                    case "passwd":
+                        passwd();
+                        break;
+                    case "ssh-encode":
+                        sshEncode();
+                        break;
+                    case "verify":
+                        verify();
+                        break;
+                    case "revoke":
+                        revoke();
+                        break;
+                    case "crl":
+                        crl();
+                        break;
+                    case "compact":
+                        compact();
+                        break;
+                    case "serve":
+                        serve();
+                        break;
+                    default:
+                        throw new UsageException("Unknown command: " + command);
+                }
+                saveKeyStore();
+            } finally {
+                if (journal != null) {
+                    journal.close();
+                }
+            }
+            return 0;
+        } catch (UsageException e) {
+            if (e.getMessage() != null) {
+                err.println("minica: " + e.getMessage());
+            }
+            err.println(USAGE);
+            return 2;
+        } catch (IOException | GeneralSecurityException
+                | OperatorCreationException | RuntimeException e) {
+            err.println("minica: " + (e.getMessage() == null
+                    ? e.toString() : e.getMessage()));
+            return 1;
+        } finally {
+            wipePasswords();
+        }
+    }
+
+    private void parse(String[] argv) throws UsageException {
+        for (int i = 0; i < argv.length; ++i) {
+            String arg = argv[i];
+            if (arg.equals("-k")) {
+                arg = "--keystore";
+            } else if (arg.equals("-h")) {
+                arg = "--help";
+            }
+            if (!arg.startsWith("--")) {
+                args.add(arg);
+            } else if (FLAGS.contains(arg)) {
+                options.put(arg, "");
+            } else if (arg.endsWith("pass") && i+1 < argv.length) {
+                passwords.put(arg, argv[++i].toCharArray());
+            } else if (i+1 < argv.length) {
+                options.put(arg, argv[++i]);
+            } else {
+                throw new UsageException("Missing value for " + arg);
+            }
+        }
+    }
+
+    private void list() throws GeneralSecurityException {
+        for (KeyStoreEntry entry: index.getAll()) {
+            X509Certificate cert = index.getCertificate(entry.getAlias());
+            out.println((entry.isKey() ? "key  " : "cert ") + entry.getAlias()
+                    + (cert == null ? "" : "\t" + cert.getSubjectX500Principal()
+                    + "\t" + dateFormat.format(cert.getNotAfter())));
+        }
+    }
+
+    private void generate() throws UsageException, IOException,
+            GeneralSecurityException, OperatorCreationException {
+        String alias = argument(0);
+        if (index.containsAlias(alias)) {
+            throw new KeyStoreException("Alias already exists: " + alias);
+        }
+        X500PrincipalBuilder nb = new X500PrincipalBuilder();
+        addField("C", "--c", nb);
+        addField("ST", "--st", nb);
+        addField("L", "--l", nb);
+        addField("O", "--o", nb);
+        addField("OU", "--ou", nb);
+        String cn = options.get("--cn");
+        nb.add("CN", cn == null ? alias : cn);
+        X500Principal principal = nb.build();
+
+        SerialNumberAllocator serials
+                = SerialNumberAllocator.forKeyStore(keystoreFile, index);
+        BigInteger sn;
+        if (options.containsKey("--serial")) {
+            sn = new BigInteger(options.get("--serial"));
+            serials.markUsed(sn);
+        } else {
+            sn = serials.next();
+        }
+        X509CertificateBuilder gen = new X509CertificateBuilder(sn, principal);
+        String keyAlg = keyAlgorithm();
+        if ("ECDSA".equals(keyAlg)) {
+            ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec(
+                    option("--curve", "prime256v1"));
+            if (ecSpec == null) {
+                throw new UsageException("Unknown curve: "
+                        + options.get("--curve"));
+            }
+            gen.setAlgorithm(keyAlg, ecSpec);
+        } else {
+            gen.setAlgorithm(keyAlg,
+                    Integer.parseInt(option("--keysize", "2048")));
+        }
+        Date start = startDate();
+        gen.setStart(start);
+        gen.setEnd(endDate(start));
+        gen.setBasicConstraints(options.containsKey("--ca") ? 0 : -1);
+
+        PrivateKeyEntry entry;
+        if (options.containsKey("--issuer")) {
+            // --sigalg is the algorithm of the issuer's signature
+            entry = issuer().generateKey(alias, gen);
+        } else {
+            SignatureAlgorithm alg = signatureAlgorithm(
+                    SignatureAlgorithm.defaultFor(keyAlg));
+            checkSignatureAlgorithm(alg, keyAlg);
+            gen.setSignatureAlgorithm(alg.name());
+            entry = CertificateAuthority.selfSigned(alias, gen);
+        }
+        entry.addTo(index, password("--keypass", "Key password: "));
+        modified = true;
+        out.println(entry.getChain()[0].getSerialNumber());
+    }
+
+    private void sign() throws UsageException, IOException,
+            GeneralSecurityException, OperatorCreationException {
+        if (!options.containsKey("--issuer")) {
+            throw new UsageException("Missing --issuer");
+        }
+        CertificateAuthority ca = issuer();
+        warnIfInvalid(options.get("--issuer"), ca.getChain());
+        Date start = startDate();
+        Date end = endDate(start);
+        String csr = options.get("--csr");
+        if (csr == null) {
+            // renew an entry of the keystore
+            String alias = argument(0);
+            X509Certificate cert = index.getCertificate(alias);
+            if (cert == null) {
+                throw new KeyStoreException("No certificate for " + alias);
+            }
+            X509Certificate[] chain = ca.sign(cert, start, end);
+            if (index.get(alias).isKey()) {
+                char[] pwd = password("--keypass", "Key password: ");
+                index.setKeyEntry(alias, keystore.getKey(alias, pwd), pwd,
+                        chain);
+            } else {
+                index.setCertificateEntry(alias, chain[0]);
+            }
+            modified = true;
+        } else {
+            BatchSigner signer = new BatchSigner(ca);
+            signer.setStart(start);
+            signer.setEnd(end);
+            signer.setBasicConstraints(options.containsKey("--ca") ? 0 : -1);
+            signer.setSerialNumberAllocator(
+                    SerialNumberAllocator.forKeyStore(keystoreFile, index));
+            int count;
+            try (IssuedCertificates issued = new IssuedCertificates(
+                    IssuedCertificates.fileFor(keystoreFile));
+                    InputStream in = csr.equals("-")
+                    ? System.in : new FileInputStream(csr);
+                    Reader reader = new BufferedReader(
+                            new InputStreamReader(in, "UTF-8"));
+                    OutputStream stream = outputStream();
+                    Writer writer = new OutputStreamWriter(stream, "UTF-8")) {
+                signer.setIssuedCertificates(issued);
+                count = signer.signStream(reader, writer);
+            }
+            if (count == 0) {
+                throw new IOException("No certificate issued");
+            }
+        }
+    }
+
+    private void importFile() throws UsageException, IOException,
+            GeneralSecurityException {
+        File file = new File(argument(0));
+        Importer importer = new Importer((String prompt) -> {
+            try {
+                return password("--filepass", prompt + ": ");
+            } catch (IOException e) {
+                return null;
+            }
+        });
+        String format = options.get("--format");
+        importer.load(file, format == null ? Importer.Format.forFile(file)
+                : Importer.Format.valueOf(format.toUpperCase()));
+        if (!importer.isComplete()) {
+            // too many certificates to hold in memory: stream them
+            if (importer.getKeys() != null) {
+                err.println("minica: warning: the private key of " + file
+                        + " is not imported with its many certificates");
+            }
+            BulkImporter.Result result = new BulkImporter(index).importFiles(
+                    Collections.singletonList(file), null);
+            out.println(result.getImported() + " imported, "
+                    + result.getDuplicates() + " duplicates, "
+                    + result.getErrors() + " errors");
+            if (result.getImported() == 0) {
+                throw new IOException("Nothing new to import from " + file);
+            }
+            modified = true;
+            return;
+        }
+        List<KeyStoreEntry> entries = importer.getEntries(index);
+        if (entries.isEmpty()) {
+            throw new IOException("Nothing new to import from " + file);
+        }
+        char[] pwd = null;
+        for (KeyStoreEntry entry: entries) {
+            if (entry.isKey()) {
+                entry = entry.copy(option("--alias", file.getName()));
+                pwd = password("--keypass", "Key password: ");
+            }
+            if (index.containsAlias(entry.getAlias())) {
+                throw new KeyStoreException("Alias already exists: "
+                        + entry.getAlias());
+            }
+            entry.addTo(index, pwd);
+            modified = true;
+            out.println(entry.getAlias());
+            warnIfInvalid(entry.getAlias(),
+                    new ChainBuilder(index).getChain(entry.getAlias()));
+        }
+    }
+
+    private void bulkImport() throws UsageException, IOException,
+            GeneralSecurityException {
+        argument(0);
+        List<File> files = new ArrayList<>();
+        for (String name: args) {
+            files.add(new File(name));
+        }
+        BulkImporter importer = new BulkImporter(index,
+                Integer.parseInt(option("--threads", Integer.toString(
+                        Runtime.getRuntime().availableProcessors()))));
+        BulkImporter.Result result = importer.importFiles(files, null);
+        out.println(result.getImported() + " imported, "
+                + result.getDuplicates() + " duplicates, "
+                + result.getSkipped() + " skipped, "
+                + result.getErrors() + " errors");
+        if (result.getImported() == 0) {
+            throw new IOException("Nothing new to import");
+        }
+        modified = true;
+    }
+
+    private void export() throws UsageException, IOException,
+            GeneralSecurityException {
+        String alias = entry(argument(0)).getAlias();
+        if (!options.containsKey("--out")) {
+            throw new UsageException("Missing --out");
+        }
+        String name = options.get("--out");
+        Exporter.Format format = options.containsKey("--format")
+                ? Exporter.Format.forName(options.get("--format"))
+                : Exporter.Format.forFile(new File(name));
+        Key key = null;
+        char[] pwd = null;
+        if (keystore.isKeyEntry(alias) && !options.containsKey("--no-key")) {
+            key = keystore.getKey(alias,
+                    password("--keypass", "Key password: "));
+            pwd = password("--exportpass", "Export password: ");
+        } else if (format != Exporter.Format.PEM
+                && format != Exporter.Format.DER) {
+            pwd = password("--exportpass", "Export password: ");
+        }
+        Certificate[] chain = options.containsKey("--chain")
+                ? new ChainBuilder(index).getChain(alias) : null;
+        try (OutputStream stream = outputStream()) {
+            Exporter.export(stream, format, alias, key,
+                    keystore.getCertificate(alias), chain, pwd,
+                    keyEncryption());
+        }
+        warnIfInvalid(alias, new ChainBuilder(index).getChain(alias));
+    }
+
+    /**
+     * Exports the given entries, or all the entries accepted by the
+     * filters, to a directory of PEM files, a zip archive, or a keystore.
+     */
+    private void bulkExport() throws UsageException, IOException,
+            GeneralSecurityException {
+        if (!options.containsKey("--out")) {
+            throw new UsageException("Missing --out");
+        }
+        File file = new File(options.get("--out"));
+        BulkExporter.Target target = BulkExporter.Target.forFile(file);
+        BulkExporter.Filter filter = BulkExporter.Filter.all();
+        if (!args.isEmpty()) {
+            List<String> aliases = new ArrayList<>();
+            for (String alias: args) {
+                aliases.add(entry(alias).getAlias());
+            }
+            filter = BulkExporter.Filter.aliases(aliases);
+        }
+        if (options.containsKey("--issued-by")) {
+            X509Certificate issuer = index.getCertificate(
+                    entry(options.get("--issued-by")).getAlias());
+            filter = filter.and(BulkExporter.Filter.issuedBy(
+                    issuer.getSubjectX500Principal()));
+        }
+        if (options.containsKey("--expires-before")) {
+            filter = filter.and(BulkExporter.Filter.expiresBefore(
+                    date("--expires-before")));
+        }
+        BulkExporter exporter = new BulkExporter(index,
+                Integer.parseInt(option("--threads", Integer.toString(
+                        Runtime.getRuntime().availableProcessors()))));
+        exporter.setChain(options.containsKey("--chain"));
+        exporter.setKeyEncryption(keyEncryption());
+        exporter.setValidator(new CertificateValidator(index));
+        char[] pwd = null;
+        if (options.containsKey("--with-keys")) {
+            exporter.setKeyPassword(password("--keypass", "Key password: "));
+            pwd = password("--exportpass", "Export password: ");
+        } else if (target == BulkExporter.Target.PKCS12
+                || target == BulkExporter.Target.JKS) {
+            pwd = password("--exportpass", "Export password: ");
+        }
+        BulkExporter.Result result = exporter.export(
+                file, target, filter, pwd, null);
+        for (String alias: result.getUnrecoveredKeys()) {
+            err.println("minica: warning: cannot recover the key of " + alias
+                    + ", only its certificate was exported");
+        }
+        for (Map.Entry<String,List<String>> e
+                : result.getProblems().entrySet()) {
+            warnInvalid(e.getKey(), e.getValue());
+        }
+        out.println(result.getExported() + " exported to " + file);
+    }
+
+    private KeyEncryption keyEncryption() throws UsageException {
+        KeyEncryption encryption;
+        try {
+            encryption = new KeyEncryption(KeyEncryption.Scheme.forName(
+                    option("--keyenc", "pbkdf2-aes-256-cbc")));
+            if (options.containsKey("--keyenc-cost")) {
+                encryption.setCost(Integer.parseInt(
+                        options.get("--keyenc-cost")));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new UsageException("Invalid key encryption: "
+                    + e.getMessage());
+        }
+        encryption.setSharedSalt(!options.containsKey("--salt-per-key"));
+        return encryption;
+    }
+
+    private void csr() throws UsageException, IOException,
+            GeneralSecurityException, OperatorCreationException {
+        KeyStoreEntry entry = entry(argument(0));
+        if (!entry.isKey()) {
+            throw new KeyStoreException("Not a key entry: " + entry.getAlias());
+        }
+        PrivateKey key = entry.getPrivateKey(keystore,
+                password("--keypass", "Key password: "));
+        File file = new File(option("--out",
+                entry.subjectName(index) + ".csr"));
+        CertificationRequests.write(CertificationRequests.create(key,
+                entry.getCertificate(keystore)), file);
+        out.println(file);
+    }
+
+    private void rename() throws UsageException, IOException,
+            GeneralSecurityException {
+        KeyStoreEntry entry = entry(argument(0));
+        char[] pwd = entry.isKey()
+                ? password("--keypass", "Key password: ") : null;
+        index.rename(entry.getAlias(), argument(1), pwd);
+        modified = true;
+    }
+
+    private void delete() throws UsageException, GeneralSecurityException {
+        argument(0);
+        for (String alias: args) {
+            index.deleteEntry(entry(alias).getAlias());
+            modified = true;
+        }
+    }
+
+    private void passwd() throws UsageException, IOException,
+            GeneralSecurityException {
+        String alias = entry(argument(0)).getAlias();
+        char[] pwd = password("--keypass", "Key password: ");
+        boolean verify = !passwords.containsKey("--newpass");
+        char[] newPwd = password("--newpass", "New key password: ");
+        if (verify) {
+            char[] verification
+                    = System.console().readPassword("Verification: ");
+            boolean same = Arrays.equals(newPwd, verification);
+            if (verification != null) {
+                Arrays.fill(verification, '\0');
+            }
+            if (!same) {
+                throw new IOException("Passwords do not match");
+            }
+        }
+        index.changePassword(alias, pwd, newPwd);
+        modified = true;
+    }
+
+    private void sshEncode() throws UsageException,
+            GeneralSecurityException {
+        String alias = entry(argument(0)).getAlias();
+        Certificate cert = keystore.getCertificate(alias);
+        if (cert == null) {
+            throw new KeyStoreException("No certificate for " + alias);
+        }
+        out.println(SSHEncoding.encode(cert.getPublicKey(),
+                option("--comment", alias)));
+    }
+
+    /**
+     * Validates the given entries, or the certificates of a PEM or DER
+     * file, or all the entries of the keystore.
+     */
+    private void verify() throws UsageException, IOException,
+            GeneralSecurityException {
+        Date date = options.containsKey("--date")
+                ? date("--date") : new Date();
+        int invalid = 0;
+        String file = options.get("--file");
+        if (file != null) {
+            // two passes, so that only the CA certificates are kept
+            ChainBuilder chains = new ChainBuilder(index);
+            Importer.scanCertificates(new File(file), (cert) -> {
+                if (cert.getBasicConstraints() >= 0
+                        || ChainBuilder.isSelfIssued(cert)) {
+                    chains.add(cert);
+                }
+            });
+            CertificateValidator validator
+                    = new CertificateValidator(index, chains);
+            int[] count = {0};
+            Importer.scanCertificates(new File(file), (cert) -> {
+                count[0] += report(cert.getSubjectX500Principal().toString(),
+                        validator.validate(cert, date));
+            });
+            invalid += count[0];
+        } else {
+            CertificateValidator validator = new CertificateValidator(index);
+            List<String> aliases = new ArrayList<>(args);
+            if (aliases.isEmpty()) {
+                for (KeyStoreEntry entry: index.getAll()) {
+                    aliases.add(entry.getAlias());
+                }
+            }
+            ChainBuilder chains = new ChainBuilder(index);
+            for (String alias: aliases) {
+                X509Certificate[] chain
+                        = chains.getChain(entry(alias).getAlias());
+                if (chain != null) {
+                    invalid += report(alias, validator.validate(chain, date));
+                }
+            }
+        }
+        if (invalid > 0) {
+            throw new IOException(invalid + " invalid certificate(s)");
+        }
+    }
+
+    private int report(String name, CertificateValidator.Result result) {
+        if (result.isValid()) {
+            out.println(name + ": OK");
+            return 0;
+        }
+        out.println(name + ": INVALID");
+        for (String problem: result.getProblems()) {
+            out.println("    " + problem);
+        }
+        return 1;
+    }
+
+    /**
+     * Warns about an invalid chain, without stopping the command.
+     */
+    private void warnIfInvalid(String name, X509Certificate[] chain) {
+        if (chain == null) {
+            return;
+        }
+        CertificateValidator.Result result
+                = new CertificateValidator(index).validate(chain, new Date());
+        if (!result.isValid()) {
+            warnInvalid(name, result.getProblems());
+        }
+    }
+
+    private void warnInvalid(String name, List<String> problems) {
+        err.println("minica: warning: " + name + " does not validate: "
+                + String.join("; ", problems));
+    }
+
+    private void revoke() throws UsageException, IOException,
+            GeneralSecurityException {
+        if (!options.containsKey("--issuer")) {
+            throw new UsageException("Missing --issuer");
+        }
+        BigInteger sn = new BigInteger(argument(0), 16);
+        X509Certificate issuer = index.getCertificate(
+                entry(options.get("--issuer")).getAlias());
+        try (RevocationDatabase revocations = new RevocationDatabase(
+                RevocationDatabase.fileFor(keystoreFile))) {
+            RevocationDatabase.Revocation rev = revocations.revoke(
+                    RevocationDatabase.issuerId(issuer), sn,
+                    RevocationDatabase.reasonCode(
+                            option("--reason", "unspecified")));
+            out.println(rev.getSerialNumber().toString(16) + " "
+                    + dateFormat.format(rev.getDate()) + " "
+                    + RevocationDatabase.reasonName(rev.getReason()));
+        }
+    }
+
+    private void crl() throws UsageException, IOException,
+            GeneralSecurityException, OperatorCreationException {
+        if (!options.containsKey("--issuer")) {
+            throw new UsageException("Missing --issuer");
+        }
+        CertificateAuthority ca = issuer();
+        byte[] crl;
+        try (RevocationDatabase revocations = new RevocationDatabase(
+                RevocationDatabase.fileFor(keystoreFile))) {
+            CrlPublisher publisher = new CrlPublisher(ca, revocations);
+            publisher.setPeriod(crlPeriod());
+            crl = publisher.getFullCrl();
+        }
+        String name = options.get("--out");
+        if (name == null) {
+            JcaPEMWriter writer = new JcaPEMWriter(
+                    new OutputStreamWriter(out, "US-ASCII"));
+            writer.writeObject(new PemObject("X509 CRL", crl));
+            writer.flush();
+        } else {
+            try (OutputStream stream = new FileOutputStream(name)) {
+                stream.write(crl);
+            }
+            out.println(name);
+        }
+    }
+
+    private long crlPeriod() {
+        return Long.parseLong(option("--crl-period", "60"))*60*1000;
+    }
+
+    private void serve() throws UsageException, IOException,
+            GeneralSecurityException, OperatorCreationException {
+        if (!options.containsKey("--issuer")) {
+            throw new UsageException("Missing --issuer");
+        }
+        SerialNumberAllocator serials
+                = SerialNumberAllocator.forKeyStore(keystoreFile, index);
+        // larger blocks: fewer writes to the serial file
+        serials.setBlockSize(1000);
+        CertificateAuthority ca = issuer();
+        IssuedCertificates issued = new IssuedCertificates(
+                IssuedCertificates.fileFor(keystoreFile));
+        RevocationDatabase revocations = new RevocationDatabase(
+                RevocationDatabase.fileFor(keystoreFile));
+        IssuanceServer server = new IssuanceServer(ca, index, serials,
+                issued, revocations);
+        int depth = Integer.parseInt(option("--keypool", "32"));
+        KeyPairPool pool = depth > 0 ? new KeyPairPool(1, depth) : null;
+        server.setKeyPairPool(pool);
+        CrlPublisher crls = new CrlPublisher(ca, revocations);
+        crls.setPeriod(crlPeriod());
+        crls.start();
+        server.setCrlPublisher(crls);
+        server.setDefaultDays(Integer.parseInt(option("--days", "365")));
+        server.setToken(options.get("--token"));
+        server.start(Integer.parseInt(option("--port", "8099")),
+                Integer.parseInt(option("--threads", Integer.toString(
+                        Runtime.getRuntime().availableProcessors()))));
+        AcmeServer acme = null;
+        if (options.containsKey("--acme")) {
+            String validator = option("--validator", "http");
+            acme = new AcmeServer(ca, serials, issued, revocations,
+                    new AcmeStore(AcmeStore.dirFor(keystoreFile)),
+                    validator.equals("accept") ? ChallengeValidator.ACCEPT_ALL
+                            : new Http01Validator(), 4);
+            server.addContext("/acme/", acme.getHandler());
+        }
+        if (options.containsKey("--est")) {
+            EstServer est = new EstServer(ca, serials, issued,
+                    revocations);
+            est.setDefaultDays(Integer.parseInt(option("--days", "365")));
+            server.addContext("/.well-known/est/", est.getHandler());
+        }
+        OcspResponder ocsp = null;
+        if (options.containsKey("--ocsp")) {
+            ocsp = new OcspResponder(ca, index, issued, revocations);
+            if (options.containsKey("--ocsp-signer")) {
+                String alias = entry(options.get("--ocsp-signer")).getAlias();
+                CertificateAuthority signer = CertificateAuthority.fromKeyStore(
+                        keystore, alias,
+                        password("--ocsp-signerpass", "Signer password: "));
+                ocsp.setSigner(signer.getKey(), signer.getCertificate(),
+                        signer.getSignatureAlgorithm());
+            }
+            ocsp.setValidity(Long.parseLong(
+                    option("--ocsp-validity", "60"))*60*1000);
+            ocsp.start();
+            server.addContext("/ocsp", ocsp.getHandler());
+        }
+        OcspResponder ocspResponder = ocsp;
+        AcmeServer acmeServer = acme;
+        out.println("listening on " + server.getAddress());
+        if (!options.containsKey("--token")) {
+            out.println("token " + server.getToken());
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                err.println("minica: " + e.getMessage());
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+            crls.close();
+            if (ocspResponder != null) {
+                ocspResponder.close();
+            }
+            if (acmeServer != null) {
+                acmeServer.close();
+            }
+            stopped.countDown();
+        }));
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * JKS keystores are loaded without password, unless the password is
+     * given, or required to rewrite the keystore.
+     */
+    private void openKeyStore(boolean storePassword) throws UsageException,
+            IOException, GeneralSecurityException {
+        String name = options.get("--keystore");
+        if (name == null) {
+            throw new UsageException("Missing --keystore");
+        }
+        keystoreFile = new File(name);
+        String type = KeyStoreFiles.getType(keystoreFile);
+        if (keystoreFile.isFile()) {
+            char[] pwd = storePassword
+                    || passwords.containsKey("--storepass")
+                    || !"JKS".equals(type)
+                    ? password("--storepass", "Keystore password: ") : null;
+            keystore = KeyStoreFiles.load(keystoreFile, pwd, null);
+            if (JournalStore.isSupported(keystore)) {
+                journal = new JournalStore(keystoreFile);
+                journal.replay(keystore);
+            }
+        } else {
+            keystore = KeyStore.getInstance(type);
+            keystore.load(null, null);
+        }
+        index = new KeyStoreIndex(keystore);
+        index.setJournal(journal);
+    }
+
+    /**
+     * Rewrites the keystore file when it has been modified and there is no
+     * journal, or when the journal is not empty and the store password is
+     * available, so that other readers of the keystore see the
+     * modifications. Otherwise the modifications stay in the journal.
+     */
+    private void saveKeyStore() throws IOException,
+            GeneralSecurityException {
+        if (journal == null) {
+            if (modified) {
+                KeyStoreFiles.store(keystore, keystoreFile,
+                        password("--storepass", "Keystore password: "), null);
+            }
+        } else if (journal.getSize() > 0
+                && passwords.containsKey("--storepass")) {
+            journal.compact(keystore,
+                    password("--storepass", "Keystore password: "));
+        } else if (journal.needsCompaction()) {
+            err.println("minica: warning: the journal of " + keystoreFile
+                    + " is large, use the compact command");
+        }
+    }
+
+    private void compact() throws IOException, GeneralSecurityException {
+        if (journal == null) {
+            out.println("No journal to compact");
+            return;
+        }
+        int count = journal.getRecordCount();
+        journal.compact(keystore,
+                password("--storepass", "Keystore password: "));
+        out.println(count + " journal records compacted into "
+                + keystoreFile);
+    }
+
+    /**
+     * The signature algorithm defaults to the one that matches the issuer
+     * key.
+     */
+    private CertificateAuthority issuer() throws UsageException,
+            IOException, GeneralSecurityException {
+        CertificateAuthority ca = CertificateAuthority.fromKeyStore(keystore,
+                entry(options.get("--issuer")).getAlias(),
+                password("--issuerpass", "Issuer password: "));
+        if (options.containsKey("--sigalg")) {
+            SignatureAlgorithm alg = signatureAlgorithm(null);
+            checkSignatureAlgorithm(alg, ca.getKey().getAlgorithm());
+            ca.setSignatureAlgorithm(alg.name());
+        }
+        return ca;
+    }
+
+    /**
+     * Returns the algorithm of a new key: the --keyalg option, or for a
+     * self-signed certificate, the algorithm implied by --sigalg.
+     */
+    private String keyAlgorithm() throws UsageException {
+        String name = options.get("--keyalg");
+        if (name != null) {
+            switch (name.toUpperCase(Locale.ENGLISH)) {
+                case "RSA":
+                    return "RSA";
+                case "EC":
+                case "ECDSA":
+                    return "ECDSA";
+                case "DSA":
+                    return "DSA";
+                default:
+                    throw new UsageException("Unknown key algorithm: "
+                            + name);
+            }
+        } else if (!options.containsKey("--issuer")
+                && options.containsKey("--sigalg")) {
+            return signatureAlgorithm(null).getCrypto();
+        }
+        return "RSA";
+    }
+
+    private static void checkSignatureAlgorithm(SignatureAlgorithm alg,
+            String keyAlg) throws UsageException {
+        SignatureAlgorithm def = SignatureAlgorithm.defaultFor(keyAlg);
+        if (def == null || !def.getCrypto().equals(alg.getCrypto())) {
+            throw new UsageException("Signature algorithm " + alg.name()
+                    + " does not match a " + keyAlg + " key");
+        }
+    }
+
+    private SignatureAlgorithm signatureAlgorithm(SignatureAlgorithm def) {
+        String name = options.get("--sigalg");
+        if (name == null) {
+            return def;
+        }
+        SignatureAlgorithm alg = SignatureAlgorithm.forName(name);
+        if (alg == null) {
+            throw new IllegalArgumentException(
+                    "Unknown signature algorithm: " + name);
+        }
+        return alg;
+    }
+
+    private Date startDate() throws UsageException {
+        return options.containsKey("--start")
+                ? date("--start") : X509CertificateBuilder.today();
+    }
+
+    private Date endDate(Date start) throws UsageException {
+        return options.containsKey("--end")
+                ? date("--end") : X509CertificateBuilder.addYears(start, 1);
+    }
+
+    private Date date(String name) throws UsageException {
+        try {
+            return dateFormat.parse(options.get(name));
+        } catch (ParseException e) {
+            throw new UsageException("Invalid date for " + name + ": "
+                    + options.get(name));
+        }
+    }
+
+    private void addField(String attr, String name, X500PrincipalBuilder nb) {
+        String value = options.get(name);
+        if (value != null && value.trim().length() > 0) {
+            nb.add(attr, value.trim());
+        }
+    }
+
+    private KeyStoreEntry entry(String alias) throws KeyStoreException {
+        KeyStoreEntry entry = index.get(alias);
+        if (entry == null) {
+            throw new KeyStoreException("No such entry: " + alias);
+        }
+        return entry;
+    }
+
+    private String argument(int i) throws UsageException {
+        if (i >= args.size()) {
+            throw new UsageException("Missing argument");
+        }
+        return args.get(i);
+    }
+
+    private String option(String name, String def) {
+        String value = options.get(name);
+        return value == null ? def : value;
+    }
+
+    private OutputStream outputStream() throws IOException {
+        String name = options.get("--out");
+        if (name == null || name.equals("-")) {
+            // System.out must stay open
+            return new FilterOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+        return new FileOutputStream(name);
+    }
+
+    /**
+     * Returns a copy of the password given by the option, or read from the
+     * console. The copies are erased at the end of the command, as the
+     * passwords themselves.
+     */
+    private char[] password(String name, String prompt) throws IOException {
+        char[] value = passwords.get(name);
+        if (value == null) {
+            Console console = System.console();
+            if (console == null) {
+                throw new IOException("Password required: " + name);
+            }
+            value = console.readPassword("%s", prompt);
+            if (value == null) {
+                throw new IOException("Password required: " + name);
+            }
+            passwords.put(name, value);
+        }
+        char[] pwd = value.clone();
+        issuedPasswords.add(pwd);
+        return pwd;
+    }
+
+    private void wipePasswords() {
+        for (char[] pwd: passwords.values()) {
+            Arrays.fill(pwd, '\0');
+        }
+        for (char[] pwd: issuedPasswords) {
+            Arrays.fill(pwd, '\0');
+        }
+        passwords.clear();
+        issuedPasswords.clear();
+    }
+
+    private static class UsageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.operator.OperatorCreationException;
+
+/**
+ * Publishes the CRLs of a certificate authority. The full CRL is
+ * regenerated periodically; between two full CRLs, the revocations are
+ * published in a delta CRL (RFC 5280, 5.2.4) relative to the last full
+ * CRL, which is regenerated when it is requested after a revocation. The
+ * size of a delta CRL depends on the number of revocations made since the
+ * last full CRL, not on the total number of revocations.
+ * CRL numbers are shared by full and delta CRLs, and are derived from the
+ * current time so that they keep increasing across restarts.
+ */
+public class CrlPublisher implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(CrlPublisher.class.getName());
+
+    private final CertificateAuthority ca;
+    private final RevocationDatabase revocations;
+    private final String issuerId;
+    private long period = 3600*1000L;
+    private ScheduledExecutorService scheduler;
+    private long lastNumber;
+    private byte[] full;
+    private BigInteger fullNumber;
+    private int fullCount;
+    private byte[] delta;
+    private int deltaCount;
+
+    public CrlPublisher(CertificateAuthority ca,
+            RevocationDatabase revocations) {
+        this.ca = ca;
+        this.revocations = revocations;
+        this.issuerId = RevocationDatabase.issuerId(ca.getCertificate());
+    }
+
+    /**
+     * Sets the interval between two full CRLs, in milliseconds. It is also
+     * the validity of the CRLs (their next update).
+     */
+    public synchronized void setPeriod(long period) {
+        this.period = period;
+    }
+
+    /**
+     * Starts the periodic generation of the full CRL.
+     */
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    (Runnable r) -> {
+                        Thread thread = new Thread(r, "CRL publisher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    regenerate();
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Could not generate the CRL", e);
+                }
+            }, 0, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returns the last full CRL (DER), generating it if needed.
+     */
+    public synchronized byte[] getFullCrl()
+            throws IOException, GeneralSecurityException,
+            OperatorCreationException {
+        if (full == null) {
+            regenerate();
+        }
+        return full;
+    }
+
+    /**
+     * Returns the delta CRL (DER) relative to the last full CRL.
+     */
+    public synchronized byte[] getDeltaCrl()
+            throws IOException, GeneralSecurityException,
+            OperatorCreationException {
+        getFullCrl();
+        revocations.refresh(false);
+        int count = revocations.size(issuerId);
+        if (delta == null || deltaCount != count) {
+            delta = build(revocations.getSince(issuerId, fullCount),
+                    fullNumber).getEncoded();
+            deltaCount = count;
+        }
+        return delta;
+    }
+
+    /**
+     * Generates a new full CRL, with all the revocations made so far.
+     */
+    public synchronized void regenerate()
+            throws IOException, GeneralSecurityException,
+            OperatorCreationException {
+        revocations.refresh(true);
+        List<RevocationDatabase.Revocation> revoked
+                = revocations.getAll(issuerId);
+        full = build(revoked, null).getEncoded();
+        fullNumber = BigInteger.valueOf(lastNumber);
+        fullCount = revoked.size();
+        delta = null;
+        LOG.log(Level.FINE, "Full CRL generated, {0} entries", fullCount);
+    }
+
+    private X509CRLHolder build(List<RevocationDatabase.Revocation> revoked,
+            BigInteger baseNumber) throws IOException,
+            GeneralSecurityException, OperatorCreationException {
+        X509Certificate cert = ca.getCertificate();
+        Date now = new Date();
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(
+                X500Name.getInstance(
+                        cert.getSubjectX500Principal().getEncoded()), now);
+        builder.setNextUpdate(new Date(now.getTime() + period));
+        for (RevocationDatabase.Revocation rev: revoked) {
+            // a reason code of 0 is omitted
+            builder.addCRLEntry(rev.getSerialNumber(), rev.getDate(),
+                    rev.getReason());
+        }
+        lastNumber = Math.max(lastNumber + 1, now.getTime());
+        builder.addExtension(Extension.cRLNumber, false,
+                new CRLNumber(BigInteger.valueOf(lastNumber)));
+        builder.addExtension(Extension.authorityKeyIdentifier, false,
+                new JcaX509ExtensionUtils()
+                        .createAuthorityKeyIdentifier(cert));
+        if (baseNumber != null) {
+            builder.addExtension(Extension.deltaCRLIndicator, true,
+                    new CRLNumber(baseNumber));
+        }
+        return builder.build(CryptoCache.getContentSigner(
+                ca.getSignatureAlgorithm(), ca.getKey()));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Per-thread cache of the cryptographic objects used to build certificates.
+ * Content signers are keyed by signature algorithm and signing key (by
+ * identity), key pair generators by algorithm and key size or curve. None
+ * of these objects are thread-safe, but they can be reused sequentially, so
+ * each thread gets its own instances.
+ */
+public class CryptoCache {
+    private static final int MAX_ENTRIES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final Set<ThreadCache> CACHES = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final ThreadLocal<ThreadCache> CACHE
+            = ThreadLocal.withInitial(() -> {
+                ThreadCache cache = new ThreadCache();
+                CACHES.add(cache);
+                return cache;
+            });
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private CryptoCache() {
+    }
+
+    public static ContentSigner getContentSigner(String algorithm,
+            PrivateKey key) throws OperatorCreationException {
+        CacheKey ck = new CacheKey("signer", algorithm, key);
+        ContentSigner signer = (ContentSigner)lookup(ck);
+        if (signer == null) {
+            JcaContentSignerBuilder builder
+                    = new JcaContentSignerBuilder(algorithm);
+            builder.setProvider("BC");
+            builder.setSecureRandom(RANDOM);
+            signer = builder.build(key);
+            CACHE.get().put(ck, signer);
+        }
+        return signer;
+    }
+
+    public static KeyPairGenerator getKeyPairGenerator(String algorithm,
+            int keySize, ECParameterSpec ecSpec)
+            throws NoSuchAlgorithmException, NoSuchProviderException,
+            InvalidAlgorithmParameterException {
+        boolean ec = "ECDSA".equals(algorithm) && ecSpec != null;
+        CacheKey ck;
+        if (!ec) {
+            ck = new CacheKey("generator", algorithm + ":" + keySize, null);
+        } else if (ecSpec instanceof ECNamedCurveParameterSpec) {
+            ck = new CacheKey("generator", algorithm + ":"
+                    + ((ECNamedCurveParameterSpec)ecSpec).getName(), null);
+        } else {
+            ck = new CacheKey("generator", algorithm, ecSpec);
+        }
+        KeyPairGenerator gen = (KeyPairGenerator)lookup(ck);
+        if (gen == null) {
+            if (ec) {
+                gen = KeyPairGenerator.getInstance("ECDSA", "BC");
+                gen.initialize(ecSpec, RANDOM);
+            } else {
+                gen = KeyPairGenerator.getInstance(algorithm);
+                gen.initialize(keySize, RANDOM);
+            }
+            CACHE.get().put(ck, gen);
+        }
+        return gen;
+    }
+
+    public static CertificateFactory getCertificateFactory()
+            throws CertificateException {
+        CacheKey ck = new CacheKey("factory", "X.509", null);
+        CertificateFactory factory = (CertificateFactory)lookup(ck);
+        if (factory == null) {
+            factory = CertificateFactory.getInstance("X.509");
+            CACHE.get().put(ck, factory);
+        }
+        return factory;
+    }
+
+    public static SecureRandom getSecureRandom() {
+        return RANDOM;
+    }
+
+    /**
+     * Drops the objects cached by the current thread.
+     */
+    public static void clear() {
+        CACHE.get().clear();
+    }
+
+    /**
+     * Drops the signers of a key cached by all the threads, when the key is
+     * no longer needed: they would otherwise keep it in memory.
+     */
+    public static void forget(PrivateKey key) {
+        for (ThreadCache cache: caches()) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Drops the objects cached by all the threads, in particular the
+     * signers, which hold private keys.
+     */
+    public static void clearAll() {
+        for (ThreadCache cache: caches()) {
+            cache.clear();
+        }
+    }
+
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    public static void resetCounters() {
+        HITS.set(0);
+        MISSES.set(0);
+    }
+
+    private static ThreadCache[] caches() {
+        synchronized (CACHES) {
+            return CACHES.toArray(new ThreadCache[CACHES.size()]);
+        }
+    }
+
+    private static Object lookup(CacheKey ck) {
+        Object result = CACHE.get().get(ck);
+        if (result == null) {
+            MISSES.incrementAndGet();
+        } else {
+            HITS.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * The cache of one thread. It is only used by its thread, except to be
+     * cleared, hence the locks, which are normally uncontended. It has the
+     * identity of an object, for the weak set of all caches.
+     */
+    private static class ThreadCache {
+        private final Map<CacheKey,Object> map
+                = new LinkedHashMap<CacheKey,Object>(
+                        MAX_ENTRIES, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<CacheKey,Object> eldest) {
+                        return size() > MAX_ENTRIES;
+                    }
+                };
+
+        private synchronized Object get(CacheKey ck) {
+            return map.get(ck);
+        }
+
+        private synchronized void put(CacheKey ck, Object value) {
+            map.put(ck, value);
+        }
+
+        private synchronized void remove(Object ref) {
+            map.keySet().removeIf((CacheKey ck) -> ck.ref == ref);
+        }
+
+        private synchronized void clear() {
+            map.clear();
+        }
+    }
+
+    private static class CacheKey {
+        private final String kind;
+        private final String name;
+        private final Object ref;
+
+        private CacheKey(String kind, String name, Object ref) {
+            this.kind = kind;
+            this.name = name;
+            this.ref = ref;
+        }
+
+        @Override
+        public int hashCode() {
+            return kind.hashCode()*31 + name.hashCode()
+                    + System.identityHashCode(ref);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            } else if (!(other instanceof CacheKey)) {
+                return false;
+            } else {
+                CacheKey ock = (CacheKey)other;
+                return ref == ock.ref && kind.equals(ock.kind)
+                        && name.equals(ock.name);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1String;
+import org.bouncycastle.asn1.x500.AttributeTypeAndValue;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+
+/**
+ * The attributes of a distinguished name, decoded once from its ASN.1
+ * structure. The subject names of certificates are cached for as long as
+ * the certificates themselves are in use.
+ */
+public class DistinguishedName {
+    private static final Map<X509Certificate,DistinguishedName> SUBJECTS
+            = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final ASN1ObjectIdentifier[] types;
+    private final String[] values;
+
+    public DistinguishedName(X500Principal principal) {
+        this(X500Name.getInstance(principal.getEncoded()));
+    }
+
+    public DistinguishedName(X500Name name) {
+        List<AttributeTypeAndValue> atvs = new ArrayList<>();
+        for (RDN rdn: name.getRDNs()) {
+            Collections.addAll(atvs, rdn.getTypesAndValues());
+        }
+        types = new ASN1ObjectIdentifier[atvs.size()];
+        values = new String[atvs.size()];
+        for (int i = 0; i < types.length; ++i) {
+            AttributeTypeAndValue atv = atvs.get(i);
+            types[i] = atv.getType();
+            ASN1Encodable value = atv.getValue();
+            values[i] = value instanceof ASN1String
+                    ? ((ASN1String)value).getString()
+                    : IETFUtils.valueToString(value);
+        }
+    }
+
+    /**
+     * Returns the subject name of a certificate.
+     */
+    public static DistinguishedName of(X509Certificate cert) {
+        DistinguishedName result = SUBJECTS.get(cert);
+        if (result == null) {
+            result = new DistinguishedName(cert.getSubjectX500Principal());
+            SUBJECTS.put(cert, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value of an attribute, or null if the name has no such
+     * attribute. When the attribute occurs more than once, the value of the
+     * most specific RDN is returned: the last one in the order of the
+     * encoding, which is the first one of the RFC 2253 string form.
+     */
+    public String get(ASN1ObjectIdentifier type) {
+        for (int i = types.length; --i >= 0; ) {
+            if (types[i].equals(type)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of an attribute given by its name, such as "CN" or
+     * "OU"; see get(ASN1ObjectIdentifier).
+     */
+    public String get(String name) {
+        return get(BCStyle.INSTANCE.attrNameToOID(name));
+    }
+
+    /**
+     * Returns all the values of an attribute, in the order of the encoding
+     * (the reverse of the RFC 2253 string form).
+     */
+    public List<String> getAll(ASN1ObjectIdentifier type) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i].equals(type)) {
+                result.add(values[i]);
+            }
+        }
+        return result;
+    }
+
+    public List<String> getAll(String name) {
+        return getAll(BCStyle.INSTANCE.attrNameToOID(name));
+    }
+
+    public String getCommonName() {
+        return get(BCStyle.CN);
+    }
+
+    public String getOrganization() {
+        return get(BCStyle.O);
+    }
+
+    public List<String> getOrganizationalUnits() {
+        return getAll(BCStyle.OU);
+    }
+
+    public String getLocality() {
+        return get(BCStyle.L);
+    }
+
+    public String getState() {
+        return get(BCStyle.ST);
+    }
+
+    public String getCountry() {
+        return get(BCStyle.C);
+    }
+
+    public String getEmailAddress() {
+        return get(BCStyle.EmailAddress);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.util.CollectionStore;
+
+/**
+ * Enrollment over Secure Transport (RFC 7030), mounted on the issuance
+ * server under /.well-known/est/:
+ * <pre>
+ * GET  cacerts          the chain of the issuer
+ * POST simpleenroll     with a CSR, returns the new certificate
+ * POST simplereenroll   same, for a client renewing its certificate
+ * </pre>
+ * A re-enrollment must have the subject and subject alternative names of a
+ * certificate issued by the server, that is still valid and not revoked
+ * (RFC 7030, 4.2.2).
+ * Certificates are exchanged as base64-encoded certs-only CMS messages.
+ * The cacerts response does not change while the server runs, it is
+ * encoded once. An optional CA label before the operation name is ignored.
+ * Client authentication is left to the TLS proxy in front of the server.
+ */
+public class EstServer {
+    private static final String PKCS7_TYPE = "application/pkcs7-mime";
+    private static final String CERTS_ONLY_TYPE
+            = PKCS7_TYPE + "; smime-type=certs-only";
+
+    private final CertificateAuthority ca;
+    private final SerialNumberAllocator serials;
+    private final IssuedCertificates issued;
+    private final byte[] cacerts;
+    private final X500Name issuer;
+    private final String issuerId;
+    private final RevocationDatabase revocations;
+    private int defaultDays = 365;
+
+    public EstServer(CertificateAuthority ca, SerialNumberAllocator serials,
+            IssuedCertificates issued, RevocationDatabase revocations)
+            throws IOException, GeneralSecurityException {
+        this.ca = ca;
+        this.serials = serials;
+        this.issued = issued;
+        this.revocations = revocations;
+        List<X509CertificateHolder> chain = new ArrayList<>();
+        for (X509Certificate cert: ca.getChain()) {
+            chain.add(new X509CertificateHolder(cert.getEncoded()));
+        }
+        this.cacerts = base64(certsOnly(chain));
+        this.issuer = chain.get(0).getSubject();
+        this.issuerId = RevocationDatabase.issuerId(ca.getCertificate());
+    }
+
+    public void setDefaultDays(int defaultDays) {
+        this.defaultDays = defaultDays;
+    }
+
+    public HttpHandler getHandler() {
+        return HttpExchanges.handler("GET,HEAD,POST", this::handle);
+    }
+
+    private void handle(HttpExchange exch) throws Exception {
+        String path = exch.getRequestURI().getPath();
+        String operation = path.substring(path.lastIndexOf('/') + 1);
+        boolean post = "POST".equals(exch.getRequestMethod());
+        switch (operation) {
+            case "cacerts":
+                if (post) {
+                    notAllowed(exch, "GET,HEAD");
+                } else {
+                    sendBase64(exch, PKCS7_TYPE, cacerts);
+                }
+                break;
+            case "simpleenroll":
+            case "simplereenroll":
+                if (!post) {
+                    notAllowed(exch, "POST");
+                } else {
+                    enroll(exch, operation.equals("simplereenroll"));
+                }
+                break;
+            default:
+                HttpExchanges.send(exch, 404, "Unknown operation: "
+                        + operation);
+                break;
+        }
+    }
+
+    private void enroll(HttpExchange exch, boolean renewal)
+            throws Exception {
+        PKCS10CertificationRequest csr = new PKCS10CertificationRequest(
+                decode(HttpExchanges.readAll(exch.getRequestBody())));
+        CertificationRequests.verify(csr);
+        if (renewal && !isRenewal(csr)) {
+            HttpExchanges.send(exch, 403, "No certificate to renew for "
+                    + csr.getSubject());
+            return;
+        }
+        X509CertificateBuilder gen = new X509CertificateBuilder(
+                serials.next(), CertificationRequests.getSubject(csr));
+        gen.setPublicKey(CertificationRequests.getPublicKey(csr));
+        Date start = new Date();
+        gen.setStart(start);
+        gen.setEnd(new Date(start.getTime() + defaultDays*24L*3600*1000));
+        gen.setBasicConstraints(-1);
+        GeneralNames sans = subjectAltNames(csr);
+        if (sans != null) {
+            // critical when the subject is empty (RFC 5280, 4.2.1.6)
+            gen.addExtension(Extension.subjectAlternativeName,
+                    csr.getSubject().getRDNs().length == 0, sans);
+        }
+        X509CertificateHolder holder = ca.issueHolder(gen);
+        issued.add(holder.getSerialNumber(), holder.getEncoded());
+        exch.getResponseHeaders().set("X-Serial-Number",
+                holder.getSerialNumber().toString(16));
+        sendBase64(exch, CERTS_ONLY_TYPE,
+                base64(certsOnly(Collections.singletonList(holder))));
+    }
+
+    /**
+     * Tells whether the CSR has the subject and alternative names of a
+     * valid certificate issued by the CA.
+     */
+    private boolean isRenewal(PKCS10CertificationRequest csr)
+            throws IOException {
+        GeneralNames sans = subjectAltNames(csr);
+        revocations.refresh(false);
+        Date now = new Date();
+        for (BigInteger sn: issued.findBySubject(csr.getSubject())) {
+            X509CertificateHolder cert = new X509CertificateHolder(
+                    issued.get(sn));
+            GeneralNames certSans = cert.getExtensions() == null ? null
+                    : GeneralNames.fromExtensions(cert.getExtensions(),
+                            Extension.subjectAlternativeName);
+            if (cert.getIssuer().equals(issuer) && cert.isValidOn(now)
+                    && (sans == null ? certSans == null
+                            : sans.equals(certSans))
+                    && !revocations.isRevoked(issuerId, sn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static GeneralNames subjectAltNames(
+            PKCS10CertificationRequest csr) {
+        for (Attribute attr: csr.getAttributes(
+                PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)) {
+            for (ASN1Encodable value: attr.getAttrValues().toArray()) {
+                GeneralNames sans = GeneralNames.fromExtensions(
+                        Extensions.getInstance(value),
+                        Extension.subjectAlternativeName);
+                if (sans != null) {
+                    return sans;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] certsOnly(List<X509CertificateHolder> certs)
+            throws IOException {
+        try {
+            CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+            gen.addCertificates(new CollectionStore<>(certs));
+            // BC encodes in BER with indefinite lengths by default
+            return gen.generate(new CMSAbsentContent()).toASN1Structure()
+                    .getEncoded(ASN1Encoding.DER);
+        } catch (CMSException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decodes a base64 body; DER is also accepted.
+     */
+    private static byte[] decode(byte[] body) {
+        for (byte b: body) {
+            if (b == 0x30) {
+                return body;
+            } else if (!Character.isWhitespace((char)b)) {
+                break;
+            }
+        }
+        return Base64.getMimeDecoder().decode(body);
+    }
+
+    private static byte[] base64(byte[] data) {
+        return Base64.getMimeEncoder().encodeToString(data)
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void sendBase64(HttpExchange exch, String type,
+            byte[] body) throws IOException {
+        exch.getResponseHeaders().set("Content-Transfer-Encoding", "base64");
+        HttpExchanges.send(exch, 200, type, body);
+    }
+
+    private static void notAllowed(HttpExchange exch, String methods)
+            throws IOException {
+        exch.getResponseHeaders().set("Allow", methods);
+        HttpExchanges.send(exch, 405, "Method not allowed");
+    }
+}
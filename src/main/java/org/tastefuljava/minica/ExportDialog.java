@@ -23,40 +23,38 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
-import org.bouncycastle.openssl.PEMEncryptor;
 import org.bouncycastle.openssl.PEMWriter;
-import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
-import org.bouncycastle.openssl.jcajce.JcePEMEncryptorBuilder;
 
 public class ExportDialog extends JDialog {
+    private final KeyStoreIndex index;
     private final KeyStore keystore;
     private final Configuration conf;
     private boolean done;
 
-    public ExportDialog(Frame parent, Configuration conf, KeyStore keystore,
+    public ExportDialog(Frame parent, Configuration conf, KeyStoreIndex index,
             KeyStoreEntry current) throws KeyStoreException, IOException {
         super(parent, true);
         this.conf = conf;
-        this.keystore = keystore;
+        this.index = index;
+        this.keystore = index.getKeyStore();
         initComponents();
         String s = conf.getString("export.file", "");
         File dir = s.length() == 0
                 ? new File(".") : new File(s).getParentFile();
         String name = current != null
-                ? current.subjectName(keystore)
+                ? current.subjectName(index)
                 : "export";
         name = Util.cleanupName(name);
         String format = conf.getString("export.format", "pem");
@@ -95,8 +93,7 @@ public class ExportDialog extends JDialog {
                 setButtonStatus();
             }
         });
-        KeyStoreEntry entries[] = KeyStoreEntry.getAll(keystore);
-        Arrays.sort(entries, KeyStoreEntry.TYPE_ALIAS_ORDER);
+        KeyStoreEntry entries[] = index.getAll();
         alias.setRenderer(new KeyStoreEntryRenderer());
         alias.removeAllItems();
         for (int i = 0; i < entries.length; ++i) {
@@ -104,6 +101,11 @@ public class ExportDialog extends JDialog {
             alias.addItem(entry);
         }
         alias.setSelectedItem(current);
+        for (KeyEncryption.Scheme scheme: KeyEncryption.Scheme.values()) {
+            keyEncryption.addItem(scheme);
+        }
+        keyEncryption.setSelectedItem(KeyEncryption.Scheme.forName(
+                conf.getString("export.keyenc", "pbkdf2-aes-256-cbc")));
         init(parent);
         KeyStoreEntry entry = (KeyStoreEntry)alias.getSelectedItem();
         if (entry != null && entry.isKey()) {
@@ -140,11 +142,13 @@ public class ExportDialog extends JDialog {
             char pwd[] = {};
             Key key = null;
             if (exportKey.isSelected()) {
-                pwd = password.getPassword();
-                key = keystore.getKey(entry.getAlias(), pwd);
+                key = index.getPrivateKey(entry.getAlias(),
+                        password.getPassword());
                 pwd = outPassword.getPassword();
                 char ver[] = verification.getPassword();
-                if (!new String(pwd).equals(new String(ver))) {
+                boolean same = Arrays.equals(pwd, ver);
+                Arrays.fill(ver, '\0');
+                if (!same) {
                     throw new Exception("Output password and verification "
                             + "are different");
                 }
@@ -152,28 +156,40 @@ public class ExportDialog extends JDialog {
             Certificate cert = null;
             Certificate chain[] = null;
             if (exportChain.isSelected()) {
-                chain = keystore.getCertificateChain(
+                chain = new ChainBuilder(index).getChain(
                         entry.getAlias());
             } else if (exportCert.isSelected()) {
                 cert = keystore.getCertificate(
                         entry.getAlias());
             }
 
-            if (pem.isSelected()) {
-                exportPem(out, key, cert, chain, pwd);
-                conf.setString("export.format", "pem");
-            } else if (pkcs12.isSelected()) {
-                exportPkcs12(out, entry.getAlias(), key, cert, chain, pwd);
-                conf.setString("export.format", "pkcs12");
+            Exporter.Format format = Exporter.Format.PEM;
+            if (pkcs12.isSelected()) {
+                format = Exporter.Format.PKCS12;
             } else if (jks.isSelected()) {
-                exportJks(out, entry.getAlias(), key, cert, chain, pwd);
-                conf.setString("export.format", "jks");
+                format = Exporter.Format.JKS;
             } else if (der.isSelected()) {
-                exportDer(out, entry.getAlias(), key, cert, chain, pwd);
-                conf.setString("export.format", "der");
+                format = Exporter.Format.DER;
+            }
+            KeyEncryption.Scheme scheme
+                    = (KeyEncryption.Scheme)keyEncryption.getSelectedItem();
+            KeyEncryption encryption = new KeyEncryption(scheme);
+            int cost = conf.getInt("export.keyenc.cost", 0);
+            if (cost > 0) {
+                encryption.setCost(cost);
             }
+            Exporter.export(out, format, entry.getAlias(), key, cert, chain,
+                    pwd, encryption);
+            Arrays.fill(pwd, '\0');
+            encryption.clearCache();
+            conf.setString("export.keyenc",
+                    scheme.name().toLowerCase(Locale.ENGLISH).replace('_', '-'));
+            conf.setString("export.format",
+                    format.name().toLowerCase(Locale.ENGLISH));
             conf.setString("export.file", file.getText());
             done = true;
+            Util.warnIfInvalid(getParent(), index,
+                    Collections.singleton(entry.getAlias()));
         } catch (Exception e) {
             done = false;
             JOptionPane.showMessageDialog(getParent(),
@@ -182,88 +198,6 @@ public class ExportDialog extends JDialog {
         }
     }
 
-    private void exportPem(OutputStream stream, Key key,
-            Certificate cert, Certificate chain[], char pwd[])
-            throws Exception {
-        try (Writer writer = new OutputStreamWriter(stream, "UTF-8")) {
-            JcaPEMWriter out = new JcaPEMWriter(writer);
-            if (key != null) {
-                if (pwd.length > 0)  {
-                    JcePEMEncryptorBuilder builder
-                            = new JcePEMEncryptorBuilder("DES-EDE3-CBC");
-                    builder.setSecureRandom(
-                            SecureRandom.getInstance("SHA1PRNG"));
-                    PEMEncryptor pemEncryptor = builder.build(pwd);
-                    out.writeObject(key, pemEncryptor);
-                } else {
-                    out.writeObject(key);
-                }
-            }
-            if (chain != null) {
-                for (int i = 0; i < chain.length; ++i) {
-                    out.writeObject(chain[i]);
-                }
-            } else if (cert != null) {
-                out.writeObject(cert);
-            }
-            out.flush();
-        }
-    }
-
-    private void exportPkcs12(OutputStream out, String alias, Key key,
-            Certificate cert, Certificate chain[], char pwd[])
-            throws Exception {
-        KeyStore store = KeyStore.getInstance("PKCS12");
-        store.load(null, null);
-        if (key != null) {
-            for (int i = 1; i < chain.length; ++i) {
-                store.setCertificateEntry("issuer" + i, chain[i]);
-            }
-            store.setKeyEntry(alias, key, pwd, chain);
-        } else if (chain != null) {
-            for (int i = 0; i < chain.length; ++i) {
-                String al = i == 0 ? alias : "issuer" + i;
-                store.setCertificateEntry(al, chain[i]);
-            }
-        } else {
-            store.setCertificateEntry(alias, cert);
-        }
-        store.store(out, pwd);
-    }
-
-    private void exportJks(OutputStream out, String alias, Key key,
-            Certificate cert, Certificate[] chain, char[] pwd)
-            throws Exception {
-        KeyStore store = KeyStore.getInstance("JKS");
-        store.load(null, null);
-        if (key != null) {
-            for (int i = 1; i < chain.length; ++i) {
-                store.setCertificateEntry("issuer" + i, chain[i]);
-            }
-            store.setKeyEntry(alias, key, pwd, chain);
-        } else if (chain != null) {
-            for (int i = 0; i < chain.length; ++i) {
-                String al = i == 0 ? alias : "issuer" + i;
-                store.setCertificateEntry(al, chain[i]);
-            }
-        } else {
-            store.setCertificateEntry(alias, cert);
-        }
-        store.store(out, pwd);
-    }
-
-    private void exportDer(OutputStream out, String alias, Key key,
-            Certificate cert, Certificate[] chain, char[] pwd)
-            throws Exception {
-        if (chain != null) {
-            for (Certificate cer: chain) {
-                out.write(cer.getEncoded());
-            }
-        } else if (cert != null) {
-            out.write(cert.getEncoded());
-        }
-    }
-
     /** This method is called from within the constructor to
      * initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is
@@ -298,6 +232,8 @@ public class ExportDialog extends JDialog {
         outPassword = new javax.swing.JPasswordField();
         jLabel5 = new javax.swing.JLabel();
         verification = new javax.swing.JPasswordField();
+        jLabel7 = new javax.swing.JLabel();
+        keyEncryption = new javax.swing.JComboBox<>();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("Export key and/or certificate");
@@ -519,6 +455,19 @@ public class ExportDialog extends JDialog {
         gridBagConstraints.insets = new java.awt.Insets(5, 0, 0, 11);
         optionPanel.add(verification, gridBagConstraints);
 
+        jLabel7.setText("Key encryption:");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.insets = new java.awt.Insets(5, 12, 0, 11);
+        optionPanel.add(jLabel7, gridBagConstraints);
+
+        keyEncryption.setEnabled(false);
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridwidth = java.awt.GridBagConstraints.REMAINDER;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.insets = new java.awt.Insets(5, 0, 0, 11);
+        optionPanel.add(keyEncryption, gridBagConstraints);
+
         getContentPane().add(optionPanel, java.awt.BorderLayout.NORTH);
 
         pack();
@@ -604,6 +553,7 @@ public class ExportDialog extends JDialog {
         password.setEditable(exportKey.isSelected());
         outPassword.setEditable(exportKey.isSelected());
         verification.setEditable(exportKey.isSelected());
+        keyEncryption.setEnabled(exportKey.isSelected() && pem.isSelected());
     }
 
     private void pemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_pemActionPerformed
@@ -640,7 +590,9 @@ public class ExportDialog extends JDialog {
     private javax.swing.JLabel jLabel4;
     private javax.swing.JLabel jLabel5;
     private javax.swing.JLabel jLabel6;
+    private javax.swing.JLabel jLabel7;
     private javax.swing.JRadioButton jks;
+    private javax.swing.JComboBox<KeyEncryption.Scheme> keyEncryption;
     private javax.swing.JButton ok;
     private javax.swing.JPanel optionPanel;
     private javax.swing.JPasswordField outPassword;
@@ -659,5 +611,6 @@ public class ExportDialog extends JDialog {
         }
         name += fmt;
         file.setText(new File(f.getParentFile(), name).getAbsolutePath());
+        exportKeyChanged();
     }
 }
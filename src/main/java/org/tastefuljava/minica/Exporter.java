@@ -0,0 +1,157 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Locale;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+
+/**
+ * Writes a key and/or certificates in one of the supported formats.
+ */
+public class Exporter {
+    public enum Format {
+        PEM, PKCS12, JKS, DER;
+
+        public static Format forName(String name) {
+            return valueOf(name.toUpperCase(Locale.ENGLISH));
+        }
+
+        /**
+         * Guesses the format of a file from its extension.
+         */
+        public static Format forFile(File file) {
+            String name = file.getName().toLowerCase(Locale.ENGLISH);
+            if (name.endsWith(".p12") || name.endsWith(".pfx")) {
+                return PKCS12;
+            } else if (name.endsWith(".jks")) {
+                return JKS;
+            } else if (name.endsWith(".der") || name.endsWith(".cer")
+                    || name.endsWith(".crt")) {
+                return DER;
+            } else {
+                return PEM;
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private Exporter() {
+    }
+
+    /**
+     * Writes either the certificate, or the chain when it is not null, and
+     * the key when it is not null. The password protects the key, or the
+     * whole file for the PKCS12 and JKS formats. PEM keys are encrypted
+     * with the default scheme of KeyEncryption.
+     */
+    public static void export(OutputStream out, Format format, String alias,
+            Key key, Certificate cert, Certificate[] chain, char[] pwd)
+            throws IOException, GeneralSecurityException {
+        export(out, format, alias, key, cert, chain, pwd,
+                new KeyEncryption());
+    }
+
+    /**
+     * Same as above, with the given encryption of PEM keys.
+     */
+    public static void export(OutputStream out, Format format, String alias,
+            Key key, Certificate cert, Certificate[] chain, char[] pwd,
+            KeyEncryption encryption)
+            throws IOException, GeneralSecurityException {
+        switch (format) {
+            case PEM:
+                exportPem(out, key, cert, chain, pwd, encryption);
+                break;
+            case PKCS12:
+            case JKS:
+                exportKeyStore(out, format.name(), alias, key, cert, chain,
+                        pwd);
+                break;
+            case DER:
+                exportDer(out, cert, chain);
+                break;
+        }
+    }
+
+    private static void exportPem(OutputStream stream, Key key,
+            Certificate cert, Certificate chain[], char pwd[],
+            KeyEncryption encryption)
+            throws IOException, GeneralSecurityException {
+        JcaPEMWriter out = new JcaPEMWriter(
+                new OutputStreamWriter(stream, "UTF-8"));
+        if (key != null) {
+            if (pwd != null && pwd.length > 0)  {
+                out.writeObject(encryption.encrypt(key, pwd));
+            } else {
+                out.writeObject(key);
+            }
+        }
+        if (chain != null) {
+            for (int i = 0; i < chain.length; ++i) {
+                out.writeObject(chain[i]);
+            }
+        } else if (cert != null) {
+            out.writeObject(cert);
+        }
+        out.flush();
+    }
+
+    private static void exportKeyStore(OutputStream out, String type,
+            String alias, Key key, Certificate cert, Certificate chain[],
+            char pwd[]) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(type);
+        store.load(null, null);
+        if (key != null) {
+            Certificate[] keyChain = chain != null
+                    ? chain : new Certificate[] {cert};
+            for (int i = 1; i < keyChain.length; ++i) {
+                store.setCertificateEntry("issuer" + i, keyChain[i]);
+            }
+            store.setKeyEntry(alias, key, pwd, keyChain);
+        } else if (chain != null) {
+            for (int i = 0; i < chain.length; ++i) {
+                String al = i == 0 ? alias : "issuer" + i;
+                store.setCertificateEntry(al, chain[i]);
+            }
+        } else {
+            store.setCertificateEntry(alias, cert);
+        }
+        store.store(out, pwd);
+    }
+
+    private static void exportDer(OutputStream out, Certificate cert,
+            Certificate[] chain) throws IOException, GeneralSecurityException {
+        if (chain != null) {
+            for (Certificate cer: chain) {
+                out.write(cer.getEncoded());
+            }
+        } else if (cert != null) {
+            out.write(cert.getEncoded());
+        }
+    }
+}
@@ -22,20 +22,15 @@ import java.awt.Frame;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Enumeration;
 import java.util.Set;
@@ -47,7 +42,6 @@ import javax.swing.JPasswordField;
 import javax.swing.JTextField;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.operator.OperatorCreationException;
 
 public class GenerateKeyDialog extends JDialog {
     private final DateFormat dateFormat
@@ -55,19 +49,26 @@ public class GenerateKeyDialog extends JDialog {
     private boolean done;
     private PrivateKey privateKey;
     private Certificate[] chain;
+    private final KeyStoreIndex index;
     private final KeyStore keystore;
     private final Configuration conf;
+    private final KeyPairPool keyPairPool;
+    private final SerialNumberAllocator serials;
 
     public GenerateKeyDialog(Frame parent, Configuration conf, 
-            KeyStore keystore) throws KeyStoreException {
+            KeyStoreIndex index, KeyPairPool keyPairPool,
+            SerialNumberAllocator serials) {
         super(parent, true);
         this.conf = conf;
-        this.keystore = keystore;
+        this.index = index;
+        this.keystore = index.getKeyStore();
+        this.keyPairPool = keyPairPool;
+        this.serials = serials;
         initComponents();
         init(parent);
     }
 
-    private void init(Frame parent) throws KeyStoreException {
+    private void init(Frame parent) {
         algorithm.removeAllItems();
         SignatureAlgorithm algs[] = SignatureAlgorithm.values();
         for (int i = 0; i < algs.length; ++i) {
@@ -76,16 +77,10 @@ public class GenerateKeyDialog extends JDialog {
         algorithm.setSelectedItem(SignatureAlgorithm.SHA256withRSA);
         signer.setRenderer(new KeyStoreEntryRenderer());
         signer.removeAllItems();
-        KeyStoreEntry[] entries = KeyStoreEntry.getAll(keystore);
-        Arrays.sort(entries, KeyStoreEntry.TYPE_ALIAS_ORDER);
-        for (KeyStoreEntry entry : entries) {
-            if (entry.isKey()) {
-                Certificate[] certs
-                        = keystore.getCertificateChain(entry.getAlias());
-                X509Certificate ic = (X509Certificate)certs[0];
-                if (ic.getBasicConstraints() >= 0) {
-                    signer.addItem(entry);
-                }
+        for (KeyStoreEntry entry : index.getAllKeys()) {
+            X509Certificate ic = index.getCertificate(entry.getAlias());
+            if (ic != null && ic.getBasicConstraints() >= 0) {
+                signer.addItem(entry);
             }
         }
         if (signer.getItemCount() == 0) {
@@ -111,17 +106,9 @@ public class GenerateKeyDialog extends JDialog {
             ec.addItem(curve);
         }
         loadSomeFields();
-        BigInteger limit = BigInteger.valueOf(10000);
-        BigInteger maxSn = BigInteger.ZERO;
-        for (KeyStoreEntry entry : entries) {
-            X509Certificate ic = (X509Certificate) keystore.getCertificate(
-                    entry.getAlias());
-            BigInteger sn = ic.getSerialNumber();
-            if (sn.compareTo(limit) < 0 && sn.compareTo(maxSn) > 0) {
-                maxSn = sn;
-            }
-        }
-        serialNumber.setText(maxSn.add(BigInteger.ONE).toString());
+        // the serial number is only allocated when the key is generated
+        serialNumber.setToolTipText(
+                "Leave empty to allocate the next serial number");
         pack();
         Rectangle rc = parent.getBounds();
         int x = Math.max(rc.x + (rc.width-getWidth())/2, 0);
@@ -583,9 +570,12 @@ public class GenerateKeyDialog extends JDialog {
         addField("CN", commonName, nb);
         X500Principal principal = nb.build();
         System.out.println("principal: " + principal);
-        BigInteger sn;
+        BigInteger sn = null;
         try {
-            sn = new BigInteger(serialNumber.getText());
+            String text = serialNumber.getText().trim();
+            if (!text.isEmpty()) {
+                sn = new BigInteger(text);
+            }
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Invalid serial number",
                     "Error", JOptionPane.ERROR_MESSAGE);
@@ -594,6 +584,7 @@ public class GenerateKeyDialog extends JDialog {
         }
 
         X509CertificateBuilder gen = new X509CertificateBuilder(sn, principal);
+        gen.setKeyPairPool(keyPairPool);
         SignatureAlgorithm alg = (SignatureAlgorithm)algorithm.getSelectedItem();
         int ksize;
         try {
@@ -633,24 +624,19 @@ public class GenerateKeyDialog extends JDialog {
             return;
         }
 
-        Certificate sgnrchain[] = null;
+        CertificateAuthority issuer = null;
         if (signedBy.isSelected() && signer.getSelectedItem() != null
                 && signatureAlg.getSelectedItem() != null) {
             KeyStoreEntry sgnr = (KeyStoreEntry)signer.getSelectedItem();
             char sgnrpwd[] = signerPassword.getPassword();
 
             try {
-                sgnrchain = keystore.getCertificateChain(sgnr.getAlias());
-                X509Certificate ic = (X509Certificate)sgnrchain[0];
-                PrivateKey issuerKey = (PrivateKey)keystore.getKey(
+                issuer = CertificateAuthority.fromKeyStore(index,
                         sgnr.getAlias(), sgnrpwd);
                 SignatureAlgorithm issuerAlg
                         = (SignatureAlgorithm)signatureAlg.getSelectedItem();
-                gen.setSignatureAlgorithm(alg.name());
-                gen.setIssuer(ic.getSubjectX500Principal(), issuerKey);
-             } catch (RuntimeException | KeyStoreException
-                     | NoSuchAlgorithmException
-                     | UnrecoverableKeyException ex) {
+                issuer.setSignatureAlgorithm(issuerAlg.name());
+             } catch (RuntimeException | GeneralSecurityException ex) {
                 JOptionPane.showMessageDialog(this, ex.getMessage(), "Error",
                         JOptionPane.ERROR_MESSAGE);
                 return;
@@ -662,31 +648,59 @@ public class GenerateKeyDialog extends JDialog {
             gen.setBasicConstraints(-1);
         }
 
-        try {
-            Certificate certificate = gen.build();
-            privateKey = gen.getPrivateKey();
-            if (sgnrchain == null) {
-                chain = new Certificate[] {certificate};
-            } else {
-                chain = new Certificate[sgnrchain.length+1];
-                chain[0] = certificate;
-                int ix = 0;
-                for (Certificate c: sgnrchain) {
-                    chain[++ix] = c;
+        generate(gen, sn, issuer);
+    }//GEN-LAST:event_okActionPerformed
+
+    /**
+     * Allocates the serial number, if it was not entered manually, and
+     * generates the key in the background.
+     */
+    private void generate(final X509CertificateBuilder gen,
+            final BigInteger sn, final CertificateAuthority issuer) {
+        final String name = getAlias();
+        ok.setEnabled(false);
+        new ProgressTask<PrivateKeyEntry,Void>(this, "Generating the key") {
+            @Override
+            protected PrivateKeyEntry doInBackground() throws Exception {
+                if (sn == null) {
+                    gen.setSerialNumber(serials.next());
+                }
+                PrivateKeyEntry entry = issuer == null
+                        ? CertificateAuthority.selfSigned(name, gen)
+                        : issuer.generateKey(name, gen);
+                if (sn != null) {
+                    serials.markUsed(sn);
                 }
+                return entry;
             }
-            saveSomeFields();
-        } catch (RuntimeException | OperatorCreationException
-                | CertificateException | IOException
-                | NoSuchAlgorithmException | NoSuchProviderException
-                | InvalidAlgorithmParameterException e) {
-            JOptionPane.showMessageDialog(this, e.getMessage(),
-                    "Signature Error", JOptionPane.ERROR_MESSAGE);
-            return;
-        }
-        done = true;
-        dispose();
-    }//GEN-LAST:event_okActionPerformed
+
+            @Override
+            protected void finished() {
+                ok.setEnabled(true);
+            }
+
+            @Override
+            protected void succeeded(PrivateKeyEntry entry) {
+                privateKey = entry.getKey();
+                chain = entry.getChain();
+                try {
+                    saveSomeFields();
+                } catch (IOException e) {
+                    failed(e);
+                    return;
+                }
+                done = true;
+                dispose();
+            }
+
+            @Override
+            protected void failed(Throwable e) {
+                JOptionPane.showMessageDialog(GenerateKeyDialog.this,
+                        e.getMessage(), "Signature Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
 
     private void autoSignedActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_autoSignedActionPerformed
         setSignerState();
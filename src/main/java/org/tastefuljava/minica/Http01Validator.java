@@ -0,0 +1,80 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Validates http-01 challenges, by fetching
+ * http://&lt;identifier&gt;/.well-known/acme-challenge/&lt;token&gt;.
+ */
+public class Http01Validator implements ChallengeValidator {
+    private static final int MAX_SIZE = 4096;
+
+    private final int port;
+    private final int timeout;
+
+    public Http01Validator() {
+        this(80, 10000);
+    }
+
+    public Http01Validator(int port, int timeout) {
+        this.port = port;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public boolean supports(String type) {
+        return "http-01".equals(type);
+    }
+
+    @Override
+    public boolean validate(String type, String identifier, String token,
+            String keyAuthorization) throws IOException {
+        if (!supports(type)) {
+            return false;
+        }
+        URL url = new URL("http", identifier, port,
+                "/.well-known/acme-challenge/" + token);
+        HttpURLConnection cnt = (HttpURLConnection)url.openConnection();
+        cnt.setConnectTimeout(timeout);
+        cnt.setReadTimeout(timeout);
+        cnt.setInstanceFollowRedirects(true);
+        try {
+            if (cnt.getResponseCode() != 200) {
+                return false;
+            }
+            byte[] buf = new byte[MAX_SIZE];
+            int length = 0;
+            try (InputStream in = cnt.getInputStream()) {
+                for (int n = in.read(buf); n > 0 && length < MAX_SIZE;
+                        n = in.read(buf, length, MAX_SIZE - length)) {
+                    length += n;
+                }
+            }
+            return new String(buf, 0, length, StandardCharsets.US_ASCII)
+                    .trim().equals(keyAuthorization);
+        } finally {
+            cnt.disconnect();
+        }
+    }
+}
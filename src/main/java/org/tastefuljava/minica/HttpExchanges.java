@@ -0,0 +1,175 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+
+/**
+ * Helpers for the HTTP handlers of the servers.
+ */
+final class HttpExchanges {
+    private static final Logger LOG
+            = Logger.getLogger(HttpExchanges.class.getName());
+
+    static final String PEM_TYPE = "application/x-pem-file";
+    private static final String FORM_TYPE
+            = "application/x-www-form-urlencoded";
+    private static final String MULTIPART_TYPE = "multipart/form-data";
+
+    interface Action {
+        void run(HttpExchange exch) throws Exception;
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private HttpExchanges() {
+    }
+
+    /**
+     * Returns a handler that accepts the given methods (separated by
+     * commas), runs the action, and maps the exceptions to error responses.
+     */
+    static HttpHandler handler(String methods, Action action) {
+        List<String> allowed = Arrays.asList(methods.split(","));
+        return (HttpExchange exch) -> {
+            try {
+                if (!allowed.contains(exch.getRequestMethod())) {
+                    exch.getResponseHeaders().set("Allow", methods);
+                    send(exch, 405, "Method not allowed");
+                } else {
+                    action.run(exch);
+                }
+            } catch (IllegalArgumentException | IOException
+                    | GeneralSecurityException e) {
+                // NumberFormatException is an IllegalArgumentException
+                send(exch, e instanceof KeyStoreException ? 500 : 400,
+                        e.getMessage());
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Error in " + exch.getRequestURI(), e);
+                send(exch, 500, e.getMessage());
+            } finally {
+                exch.close();
+            }
+        };
+    }
+
+    static void send(HttpExchange exch, int status, String message)
+            throws IOException {
+        send(exch, status, "text/plain; charset=UTF-8",
+                ((message == null ? "Error" : message) + "\n")
+                        .getBytes("UTF-8"));
+    }
+
+    static void send(HttpExchange exch, int status, String type,
+            byte[] body) throws IOException {
+        if (type != null) {
+            exch.getResponseHeaders().set("Content-Type", type);
+        }
+        if (body == null || "HEAD".equals(exch.getRequestMethod())) {
+            exch.sendResponseHeaders(status, -1);
+        } else {
+            exch.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exch.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    static void sendPem(HttpExchange exch, int status, String type,
+            Object... objects) throws IOException {
+        send(exch, status, type, toPem(objects));
+    }
+
+    static byte[] toPem(Object... objects) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (JcaPEMWriter out = new JcaPEMWriter(
+                new OutputStreamWriter(bytes, "US-ASCII"))) {
+            for (Object obj: objects) {
+                out.writeObject(obj);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Tells whether the body of the request is a form, which a web page can
+     * post to any origin without a CORS preflight.
+     */
+    static boolean isForm(HttpExchange exch) {
+        String type = exch.getRequestHeaders().getFirst("Content-Type");
+        if (type == null) {
+            return false;
+        }
+        type = type.trim().toLowerCase(Locale.ENGLISH);
+        return type.startsWith(FORM_TYPE) || type.startsWith(MULTIPART_TYPE);
+    }
+
+    static Map<String,String> query(HttpExchange exch)
+            throws UnsupportedEncodingException {
+        Map<String,String> params = new HashMap<>();
+        parse(exch.getRequestURI().getRawQuery(), params);
+        return params;
+    }
+
+    static String get(Map<String,String> params, String name, String def) {
+        String value = params.get(name);
+        return value == null || value.isEmpty() ? def : value;
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void parse(String s, Map<String,String> params)
+            throws UnsupportedEncodingException {
+        if (s == null || s.isEmpty()) {
+            return;
+        }
+        for (String param: s.split("&")) {
+            int ix = param.indexOf('=');
+            String name = ix < 0 ? param : param.substring(0, ix);
+            String value = ix < 0 ? "" : param.substring(ix+1);
+            params.put(URLDecoder.decode(name, "UTF-8").toLowerCase(),
+                    URLDecoder.decode(value, "UTF-8"));
+        }
+    }
+}
@@ -19,38 +19,15 @@ package org.tastefuljava.minica;
 
 import java.awt.CardLayout;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Reader;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.Principal;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Enumeration;
 import java.util.List;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.table.TableCellEditor;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
-import org.bouncycastle.openssl.PEMDecryptorProvider;
-import org.bouncycastle.openssl.PEMEncryptedKeyPair;
-import org.bouncycastle.openssl.PEMKeyPair;
-import org.bouncycastle.openssl.PEMParser;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
-import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
 
 public class ImportDialog extends JDialog {
     private static final String PAGES[] = {"chooser-page", "list-page"};
@@ -61,17 +38,19 @@ public class ImportDialog extends JDialog {
     private static final int CHOOSER_PAGE = 0;
     private static final int LIST_PAGE = 1;
 
-    private final KeyStore keystore;
+    private final KeyStoreIndex index;
     private int currentPage = -1;
     private boolean done;
-    private KeyPair keys;
-    private X509Certificate certs[];
+    private File bulkFile;
+    private final Importer importer = new Importer(
+            (String prompt) -> new PasswordDialog(this, prompt).getPassword());
     private final ImportTableModel model = new ImportTableModel();
     private final Configuration conf;
 
-    public ImportDialog(JFrame parent, Configuration conf, KeyStore keystore) {
+    public ImportDialog(JFrame parent, Configuration conf,
+            KeyStoreIndex index) {
         super(parent, true);
-        this.keystore = keystore;
+        this.index = index;
         this.conf = conf;
         initComponents();
         init();
@@ -101,6 +80,14 @@ public class ImportDialog extends JDialog {
         return done;
     }
 
+    /**
+     * Returns the file to import with the BulkImporter, if it had too many
+     * certificates to be listed, or null.
+     */
+    public File getBulkFile() {
+        return bulkFile;
+    }
+
     private void setButtonStatus() {
         switch (currentPage) {
             case CHOOSER_PAGE:
@@ -123,17 +110,25 @@ public class ImportDialog extends JDialog {
             case CHOOSER_PAGE:
                 if (chooser.getSelectedFile() != null) {
                     try {
-                        if (chooser.getFileFilter() == Filters.PEM_FILEFILTER) {
-                            loadPem(chooser.getSelectedFile());
+                        File file = chooser.getSelectedFile();
+                        Importer.Format format = Importer.Format.forFile(file);
+                        if (chooser.getFileFilter()
+                                == Filters.PEM_FILEFILTER) {
+                            format = Importer.Format.PEM;
                         } else if (chooser.getFileFilter()
                                 == Filters.PKCS12_FILEFILTER) {
-                            loadPkcs12(chooser.getSelectedFile());
+                            format = Importer.Format.PKCS12;
                         } else if (chooser.getFileFilter()
                                 == Filters.JKS_FILEFILTER) {
-                            loadJks(chooser.getSelectedFile());
+                            format = Importer.Format.JKS;
                         } else if (chooser.getFileFilter()
                                 == Filters.CERT_FILEFILTER) {
-                            loadCert(chooser.getSelectedFile());
+                            format = Importer.Format.CERT;
+                        }
+                        importer.load(file, format);
+                        if (!importer.isComplete()) {
+                            confirmBulkImport(file);
+                            return;
                         }
                         fillTable();
                         conf.setString("import.dir",
@@ -167,193 +162,44 @@ public class ImportDialog extends JDialog {
         }
     }
 
-    private void loadPem(File file) throws IOException {
-        try (Reader reader = new FileReader(file)) {
-            PEMParser in = new PEMParser(reader);
-            Object obj = in.readObject();
-            if (obj == null) {
-                // Some PEM files have garbarge at the top
-                for (int i = 0; i < 9 && obj == null; ++i) {
-                    obj = in.readObject();
-                }
-            }
-            keys = null;
-            JcaX509CertificateConverter cconv = new JcaX509CertificateConverter();
-            JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider("BC");
-            if (obj instanceof PEMEncryptedKeyPair) {
-                // Encrypted key - we will use provided password
-                PasswordDialog dlg = new PasswordDialog(this,
-                        "Enter password for" + file);
-                char[] pwd = dlg.getPassword();
-                if (pwd != null) {
-                    PEMDecryptorProvider decProv = new JcePEMDecryptorProviderBuilder().build(pwd);
-                    keys = converter.getKeyPair(((PEMEncryptedKeyPair) obj).decryptKeyPair(decProv));
-                }
-                obj = in.readObject();
-            } else if (obj instanceof PEMKeyPair) {
-                // Unencrypted key - no password needed
-                keys = converter.getKeyPair((PEMKeyPair) obj);
-                obj = in.readObject();
-            }
-            List<X509Certificate> list = new ArrayList<>();
-            while (obj != null) {
-                if (obj instanceof X509CertificateHolder) {
-                    list.add(cconv.getCertificate((X509CertificateHolder) obj));
-                }
-                obj = in.readObject();
-            }
-            certs = list.toArray(new X509Certificate[list.size()]);
-        } catch (CertificateException ex) {
-            throw new IOException(ex.getMessage());
+    private void confirmBulkImport(File file) {
+        String msg = file.getName() + " has more than "
+                + Importer.MAX_CERTIFICATES + " certificates.\n"
+                + "Import them all without listing them?";
+        if (importer.getKeys() != null) {
+            msg += "\nThe private key of the file will not be imported.";
         }
-    }
-
-    private void loadPkcs12(File file)
-            throws IOException, GeneralSecurityException {
-        loadKeystore(file, "PKCS12");
-    }
-
-    private void loadJks(File file)
-            throws IOException, GeneralSecurityException {
-        loadKeystore(file, "JKS");
-    }
-
-    private void loadCert(File file)
-            throws IOException, GeneralSecurityException {
-        InputStream in = new FileInputStream(file);
-        try {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            @SuppressWarnings("unchecked")
-            Collection<X509Certificate> col
-                    = (Collection<X509Certificate>) cf.generateCertificates(in);
-            certs = col.toArray(new X509Certificate[col.size()]);
-        } finally {
-            in.close();
-        }
-    }
-
-    private void loadKeystore(File file, String type)
-            throws IOException, GeneralSecurityException {
-        PasswordDialog dlg = new PasswordDialog(this,
-                "Enter password for" + file);
-        char pwd[] = dlg.getPassword();
-        if (pwd == null) {
-            return;
-        } else if (pwd.length == 0) {
-            pwd = null;
-        }
-        InputStream in = new FileInputStream(file);
-        try {
-            List<X509Certificate> certificates = new ArrayList<>();
-            KeyStore store = KeyStore.getInstance(type);
-            store.load(in, pwd);
-            for (Enumeration<String> enm = store.aliases();
-                    enm.hasMoreElements();) {
-                String alias = enm.nextElement();
-                if (store.entryInstanceOf(alias,
-                        KeyStore.PrivateKeyEntry.class)) {
-                    keys = new KeyPair(store.getCertificate(alias).getPublicKey(),
-                            (PrivateKey) store.getKey(alias, pwd));
-                    Certificate chain[] = store.getCertificateChain(alias);
-                    if (chain != null) {
-                        for (Certificate cert : chain) {
-                            if (cert instanceof X509Certificate) {
-                                certificates.add((X509Certificate) cert);
-                            }
-                        }
-                    }
-                } else if (store.entryInstanceOf(alias,
-                        KeyStore.SecretKeyEntry.class)) {
-                    System.out.println(alias + " is secret key");
-                } else if (store.entryInstanceOf(alias,
-                        KeyStore.TrustedCertificateEntry.class)) {
-                    Certificate cert = store.getCertificate(alias);
-                    if (cert != null) {
-                        if (cert instanceof X509Certificate) {
-                            certificates.add((X509Certificate) cert);
-                        }
-                    }
-                } else {
-                    System.out.println(alias + " is unknown entry type");
-                }
-            }
-            certs = certificates.toArray(
-                    new X509Certificate[certificates.size()]);
-        } finally {
-            in.close();
+        if (JOptionPane.showConfirmDialog(this, msg, "Import",
+                JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+            conf.setString("import.dir", file.getParent());
+            bulkFile = file;
+            done = true;
+            dispose();
         }
     }
 
-    private void fillTable() throws IOException, KeyStoreException {
+    private void fillTable() throws IOException, GeneralSecurityException {
         model.clear();
-        if (keys != null) {
-            X509Certificate cert = findCert(keys.getPublic());
-            if (cert == null) {
-                throw new IOException("Key has no certificate");
-            }
-            String alias = keystore.getCertificateAlias(cert);
-            if (alias == null) {
-                alias = "New key";
-            }
-            model.add(new PrivateKeyEntry(alias, keys.getPrivate(),
-                    findChain(cert)));
-        }
-        int st = keys == null ? 0 : 1;
-        for (int i = st; i < certs.length; ++i) {
-            X509Certificate cert = certs[i];
-            String alias = keystore.getCertificateAlias(cert);
-            if (alias == null) {
-                alias = cert.getSubjectDN().getName();
-                model.add(new CertificateEntry(alias, cert));
-            }
-        }
-    }
-
-    private X509Certificate findCert(Principal subject) {
-        for (int i = 0; i < certs.length; ++i) {
-            X509Certificate cert = certs[i];
-            if (subject.equals(cert.getSubjectDN())) {
-                return cert;
-            }
-        }
-        return null;
-    }
-
-    private X509Certificate findCert(PublicKey key) {
-        for (int i = 0; i < certs.length; ++i) {
-            X509Certificate cert = certs[i];
-            if (key.equals(cert.getPublicKey())) {
-                return cert;
-            }
-        }
-        return null;
-    }
-
-    private X509Certificate[] findChain(X509Certificate cert) {
-        List<X509Certificate> list = new ArrayList<X509Certificate>();
-        list.add(cert);
-        while (!cert.getSubjectDN().equals(cert.getIssuerDN())) {
-            cert = findCert(cert.getIssuerDN());
-            if (cert == null) {
-                break;
-            }
-            list.add(cert);
+        for (KeyStoreEntry entry: importer.getEntries(index)) {
+            model.add(entry);
         }
-        return list.toArray(new X509Certificate[list.size()]);
     }
 
-    private void doImport() throws KeyStoreException {
+    private List<String> doImport() throws KeyStoreException {
         TableCellEditor editor = table.getCellEditor();
         if (editor != null) {
             editor.stopCellEditing();
         }
+        List<String> aliases = new ArrayList<>();
         for (int i = model.getRowCount(); --i >= 0;) {
             KeyStoreEntry entry = model.getEntry(i);
-            entry.addTo(keystore, password.getPassword());
+            entry.addTo(index, password.getPassword());
+            aliases.add(entry.getAlias());
         }
         done = true;
         conf.setString("import.file",
                 chooser.getSelectedFile().getAbsolutePath());
+        return aliases;
     }
 
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
@@ -496,14 +342,16 @@ public class ImportDialog extends JDialog {
     }//GEN-LAST:event_cancelActionPerformed
 
     private void okActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_okActionPerformed
+        List<String> aliases;
         try {
-            doImport();
+            aliases = doImport();
             dispose();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error while importing data",
                     "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
+        Util.warnIfInvalid(getParent(), index, aliases);
     }//GEN-LAST:event_okActionPerformed
 
     private void nextActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_nextActionPerformed
@@ -0,0 +1,380 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.DSAPrivateKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.jce.interfaces.ECPrivateKey;
+import org.bouncycastle.openssl.PEMDecryptorProvider;
+import org.bouncycastle.openssl.PEMEncryptedKeyPair;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+
+/**
+ * Reads a key pair and/or certificates from a file, and turns them into
+ * keystore entries.
+ */
+public class Importer {
+    private static final Logger LOG
+            = Logger.getLogger(Importer.class.getName());
+
+    public enum Format {
+        PEM, PKCS12, JKS, CERT;
+
+        /**
+         * Guesses the format of a file from its extension.
+         */
+        public static Format forFile(File file) {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".p12") || name.endsWith(".pfx")) {
+                return PKCS12;
+            } else if (name.endsWith(".jks")) {
+                return JKS;
+            } else if (name.endsWith(".crt") || name.endsWith(".cer")
+                    || name.endsWith(".der")) {
+                return CERT;
+            } else {
+                return PEM;
+            }
+        }
+    }
+
+    /**
+     * Supplies the passwords of encrypted files. Returns null to cancel.
+     */
+    public interface PasswordSource {
+        char[] getPassword(String prompt);
+    }
+
+    /**
+     * The number of certificates of a PEM file that are loaded at most.
+     */
+    public static final int MAX_CERTIFICATES = 1000;
+
+    private final PasswordSource passwords;
+    private KeyPair keys;
+    private X509Certificate certs[] = {};
+    private boolean complete = true;
+
+    public Importer(PasswordSource passwords) {
+        this.passwords = passwords;
+    }
+
+    public KeyPair getKeys() {
+        return keys;
+    }
+
+    public X509Certificate[] getCertificates() {
+        return certs;
+    }
+
+    /**
+     * Tells whether all the certificates of the file have been loaded.
+     * Beyond MAX_CERTIFICATES, the certificates of a PEM file are skipped:
+     * such a file should be imported with the BulkImporter, which streams
+     * the certificates into the keystore.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void load(File file, Format format)
+            throws IOException, GeneralSecurityException {
+        switch (format) {
+            case PEM:
+                loadPem(file);
+                break;
+            case PKCS12:
+                loadKeystore(file, "PKCS12");
+                break;
+            case JKS:
+                loadKeystore(file, "JKS");
+                break;
+            case CERT:
+                loadCert(file);
+                break;
+        }
+    }
+
+    /**
+     * Returns the entries to import: the key pair, if any, with its chain,
+     * and the certificates that are not already in the keystore.
+     */
+    public List<KeyStoreEntry> getEntries(KeyStoreIndex index)
+            throws IOException, GeneralSecurityException {
+        List<KeyStoreEntry> entries = new ArrayList<>();
+        X509Certificate keyCert = null;
+        if (keys != null) {
+            ChainBuilder chains = new ChainBuilder(index);
+            chains.addAll(certs);
+            keyCert = chains.findByPublicKey(keys.getPublic());
+            if (keyCert == null) {
+                throw new IOException("Key has no certificate");
+            }
+            String alias = findAlias(index, keyCert);
+            if (alias == null) {
+                alias = "New key";
+            }
+            entries.add(new PrivateKeyEntry(alias, keys.getPrivate(),
+                    chains.build(keyCert)));
+        }
+        // the key's certificate can be anywhere in the file
+        for (X509Certificate cert: certs) {
+            if (!cert.equals(keyCert) && findAlias(index, cert) == null) {
+                String alias = cert.getSubjectDN().getName();
+                entries.add(new CertificateEntry(alias, cert));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the chain of a certificate, made of the loaded certificates.
+     */
+    public X509Certificate[] findChain(X509Certificate cert) {
+        ChainBuilder chains = new ChainBuilder();
+        chains.addAll(certs);
+        return chains.build(cert);
+    }
+
+    private static String findAlias(KeyStoreIndex index, X509Certificate cert)
+            throws CertificateException {
+        List<KeyStoreEntry> found = index.findByFingerprint(
+                KeyStoreIndex.fingerprint(cert));
+        return found.isEmpty() ? null : found.get(0).getAlias();
+    }
+
+    /**
+     * Reads the first private key and the certificates of a PEM file, up to
+     * MAX_CERTIFICATES. The key may appear anywhere in the file.
+     */
+    private void loadPem(File file) throws IOException {
+        keys = null;
+        complete = true;
+        List<X509Certificate> list = new ArrayList<>();
+        try (PemScanner in = PemScanner.open(file)) {
+            for (PemScanner.Block block = in.next(); block != null;
+                    block = in.next()) {
+                if (block.isCertificate() && !complete) {
+                    // only the key is still looked for
+                } else if (block.isCertificate()
+                        && list.size() >= MAX_CERTIFICATES) {
+                    complete = false;
+                } else if (block.isCertificate()) {
+                    list.add(X509CertificateBuilder.decode(
+                            block.getContent()));
+                } else if (block.isPrivateKey() && keys == null) {
+                    keys = readKeyPair(block, file);
+                }
+            }
+            certs = list.toArray(new X509Certificate[list.size()]);
+        } catch (CertificateException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Passes the certificates of a PEM or DER file to the consumer as they
+     * are read, so that files of any size can be processed in constant
+     * memory. Other blocks are ignored. Returns the number of certificates.
+     */
+    public static int scanCertificates(File file,
+            Consumer<X509Certificate> consumer) throws IOException {
+        int count = 0;
+        try (PemScanner in = PemScanner.open(file)) {
+            for (PemScanner.Block block = in.next(); block != null;
+                    block = in.next()) {
+                if (block.isCertificate()) {
+                    consumer.accept(X509CertificateBuilder.decode(
+                            block.getContent()));
+                    ++count;
+                }
+            }
+        } catch (CertificateException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a key block with the BouncyCastle PEM parser, which knows the
+     * key formats and their encryption. Returns null if the password is
+     * not given.
+     */
+    private KeyPair readKeyPair(PemScanner.Block block, File file)
+            throws IOException {
+        PEMParser in = new PEMParser(new StringReader(block.getText()));
+        Object obj = in.readObject();
+        JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider("BC");
+        if (obj instanceof PEMEncryptedKeyPair) {
+            // Encrypted key - we will use provided password
+            char[] pwd = passwords.getPassword(
+                    "Enter password for " + file);
+            if (pwd == null) {
+                return null;
+            }
+            PEMDecryptorProvider decProv = new JcePEMDecryptorProviderBuilder().build(pwd);
+            return converter.getKeyPair(((PEMEncryptedKeyPair) obj).decryptKeyPair(decProv));
+        } else if (obj instanceof PEMKeyPair) {
+            // Unencrypted key - no password needed
+            return converter.getKeyPair((PEMKeyPair) obj);
+        } else if (obj instanceof PKCS8EncryptedPrivateKeyInfo) {
+            char[] pwd = passwords.getPassword(
+                    "Enter password for " + file);
+            if (pwd == null) {
+                return null;
+            }
+            try {
+                return keyPair(KeyEncryption.decrypt(
+                        (PKCS8EncryptedPrivateKeyInfo)obj, pwd), converter);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        } else if (obj instanceof PrivateKeyInfo) {
+            return keyPair((PrivateKeyInfo)obj, converter);
+        }
+        LOG.info("Unsupported key format " + block.getType());
+        return null;
+    }
+
+    /**
+     * Completes a PKCS#8 private key with its public key, which is needed
+     * to find the matching certificate.
+     */
+    private static KeyPair keyPair(PrivateKeyInfo info,
+            JcaPEMKeyConverter converter) throws IOException {
+        PrivateKey key = converter.getPrivateKey(info);
+        try {
+            PublicKey pub;
+            if (key instanceof RSAPrivateCrtKey) {
+                RSAPrivateCrtKey rsa = (RSAPrivateCrtKey)key;
+                pub = KeyFactory.getInstance("RSA", "BC").generatePublic(
+                        new RSAPublicKeySpec(rsa.getModulus(),
+                                rsa.getPublicExponent()));
+            } else if (key instanceof ECPrivateKey
+                    && ((ECPrivateKey)key).getParameters() != null) {
+                // same algorithm identifier as the private key, so that
+                // named curves stay named
+                ECPrivateKey ec = (ECPrivateKey)key;
+                pub = converter.getPublicKey(new SubjectPublicKeyInfo(
+                        info.getPrivateKeyAlgorithm(),
+                        ec.getParameters().getG().multiply(ec.getD())
+                                .normalize().getEncoded(false)));
+            } else if (key instanceof DSAPrivateKey) {
+                DSAParams params = ((DSAPrivateKey)key).getParams();
+                pub = KeyFactory.getInstance("DSA", "BC").generatePublic(
+                        new DSAPublicKeySpec(params.getG().modPow(
+                                ((DSAPrivateKey)key).getX(), params.getP()),
+                                params.getP(), params.getQ(), params.getG()));
+            } else {
+                LOG.info("Unsupported key algorithm " + key.getAlgorithm());
+                return null;
+            }
+            return new KeyPair(pub, key);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    private void loadCert(File file)
+            throws IOException, GeneralSecurityException {
+        try (InputStream in = new FileInputStream(file)) {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            @SuppressWarnings("unchecked")
+            Collection<X509Certificate> col
+                    = (Collection<X509Certificate>) cf.generateCertificates(in);
+            certs = col.toArray(new X509Certificate[col.size()]);
+        }
+    }
+
+    private void loadKeystore(File file, String type)
+            throws IOException, GeneralSecurityException {
+        char pwd[] = passwords.getPassword("Enter password for " + file);
+        if (pwd == null) {
+            return;
+        } else if (pwd.length == 0) {
+            pwd = null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            List<X509Certificate> certificates = new ArrayList<>();
+            KeyStore store = KeyStore.getInstance(type);
+            store.load(in, pwd);
+            for (Enumeration<String> enm = store.aliases();
+                    enm.hasMoreElements();) {
+                String alias = enm.nextElement();
+                if (store.entryInstanceOf(alias,
+                        KeyStore.PrivateKeyEntry.class)) {
+                    keys = new KeyPair(store.getCertificate(alias).getPublicKey(),
+                            (PrivateKey) store.getKey(alias, pwd));
+                    Certificate chain[] = store.getCertificateChain(alias);
+                    if (chain != null) {
+                        for (Certificate cert : chain) {
+                            if (cert instanceof X509Certificate) {
+                                certificates.add((X509Certificate) cert);
+                            }
+                        }
+                    }
+                } else if (store.entryInstanceOf(alias,
+                        KeyStore.SecretKeyEntry.class)) {
+                    LOG.info(alias + " is secret key");
+                } else if (store.entryInstanceOf(alias,
+                        KeyStore.TrustedCertificateEntry.class)) {
+                    Certificate cert = store.getCertificate(alias);
+                    if (cert != null) {
+                        if (cert instanceof X509Certificate) {
+                            certificates.add((X509Certificate) cert);
+                        }
+                    }
+                } else {
+                    LOG.info(alias + " is unknown entry type");
+                }
+            }
+            certs = certificates.toArray(
+                    new X509Certificate[certificates.size()]);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.util.encoders.Hex;
+import org.bouncycastle.util.io.pem.PemObject;
+
+/**
+ * Issuance server, listening on the loopback interface. The keystore is
+ * loaded and the issuer key decrypted once, when the server starts.
+ * <pre>
+ * POST /issue?cn=...[&amp;o=..&amp;ou=..&amp;l=..&amp;st=..&amp;c=..][&amp;days=365]
+ *      [&amp;alg=RSA|ECDSA][&amp;keysize=2048][&amp;curve=prime256v1]
+ *      returns the new private key and certificate (PEM)
+ * POST /sign[?days=365]  with a CSR (PEM or DER) as the body
+ *      returns the certificate (PEM)
+ * POST /revoke?serial=&lt;hex&gt;[&amp;reason=keyCompromise]
+ * GET  /cert/&lt;hex serial&gt;
+ * GET  /ca   returns the chain of the issuer (PEM)
+ * GET  /crl  returns the last full CRL (DER)
+ * GET  /crl/delta  returns the delta CRL (DER)
+ * </pre>
+ * The requests to /issue, /sign and /revoke must carry the token of the
+ * server in the X-Minica-Token header. They are refused when they come
+ * from a web page (Origin header, or form content), since any page open in
+ * a browser on the same host could otherwise post them. The validity is
+ * capped at that of the issuer. The serial number of a new certificate is
+ * returned in the X-Serial-Number header.
+ */
+public class IssuanceServer implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(IssuanceServer.class.getName());
+
+    private static final String CRL_TYPE = "application/pkix-crl";
+    private static final String TOKEN_HEADER = "X-Minica-Token";
+    private static final String NODELAY = "sun.net.httpserver.nodelay";
+    // the default (50) drops connections under bursts of clients, which
+    // then retry after a second
+    private static final int BACKLOG = 1024;
+
+    private final CertificateAuthority ca;
+    private final KeyStoreIndex index;
+    private final SerialNumberAllocator serials;
+    private final IssuedCertificates issued;
+    private final RevocationDatabase revocations;
+    private KeyPairPool keyPairPool;
+    private CrlPublisher crlPublisher;
+    private int defaultDays = 365;
+    private String token;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public IssuanceServer(CertificateAuthority ca, KeyStoreIndex index,
+            SerialNumberAllocator serials, IssuedCertificates issued,
+            RevocationDatabase revocations) {
+        this.ca = ca;
+        this.index = index;
+        this.serials = serials;
+        this.issued = issued;
+        this.revocations = revocations;
+    }
+
+    public void setKeyPairPool(KeyPairPool keyPairPool) {
+        this.keyPairPool = keyPairPool;
+    }
+
+    public void setCrlPublisher(CrlPublisher crlPublisher) {
+        this.crlPublisher = crlPublisher;
+    }
+
+    public void setDefaultDays(int defaultDays) {
+        this.defaultDays = defaultDays;
+    }
+
+    /**
+     * Sets the token that the clients must send to issue or revoke
+     * certificates. A random token is generated when none is set.
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void start(int port, int threads) throws IOException {
+        if (System.getProperty(NODELAY) == null) {
+            // without it, small responses wait for the delayed ACK of the
+            // client (40 ms)
+            System.setProperty(NODELAY, "true");
+        }
+        if (token == null) {
+            byte[] bytes = new byte[16];
+            new SecureRandom().nextBytes(bytes);
+            token = Hex.toHexString(bytes);
+        }
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), BACKLOG);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        addContext("/issue", HttpExchanges.handler("POST",
+                authorized(this::issue)));
+        addContext("/sign", HttpExchanges.handler("POST",
+                authorized(this::sign)));
+        addContext("/revoke", HttpExchanges.handler("POST",
+                authorized(this::revoke)));
+        addContext("/cert/", HttpExchanges.handler("GET", this::fetch));
+        addContext("/ca", HttpExchanges.handler("GET", (HttpExchange exch)
+                -> HttpExchanges.sendPem(exch, 200, HttpExchanges.PEM_TYPE,
+                        (Object[])ca.getChain())));
+        if (crlPublisher != null) {
+            addContext("/crl", HttpExchanges.handler("GET,HEAD", this::crl));
+        }
+        server.start();
+        LOG.log(Level.FINE, "Listening on {0}", server.getAddress());
+    }
+
+    /**
+     * Mounts another protocol on the server.
+     */
+    public void addContext(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null) {
+            server.stop(1);
+            executor.shutdown();
+            server = null;
+        }
+        issued.close();
+        revocations.close();
+    }
+
+    /**
+     * Only lets through the requests that carry the token and do not come
+     * from a browser.
+     */
+    private HttpExchanges.Action authorized(HttpExchanges.Action action) {
+        return (HttpExchange exch) -> {
+            Headers headers = exch.getRequestHeaders();
+            String value = headers.getFirst(TOKEN_HEADER);
+            if (headers.containsKey("Origin")) {
+                HttpExchanges.send(exch, 403, "Cross-origin request");
+            } else if (HttpExchanges.isForm(exch)) {
+                HttpExchanges.send(exch, 415, "Forms are not accepted");
+            } else if (value == null || !MessageDigest.isEqual(
+                    value.getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+                HttpExchanges.send(exch, 403, "Missing or invalid token");
+            } else {
+                action.run(exch);
+            }
+        };
+    }
+
+    private void issue(HttpExchange exch) throws Exception {
+        Map<String,String> params = HttpExchanges.query(exch);
+        X500PrincipalBuilder nb = new X500PrincipalBuilder();
+        for (String name: new String[] {"C", "ST", "L", "O", "OU", "CN"}) {
+            String value = params.get(name.toLowerCase());
+            if (value != null && value.trim().length() > 0) {
+                nb.add(name, value.trim());
+            }
+        }
+        if (!params.containsKey("cn")) {
+            throw new IllegalArgumentException("Missing cn");
+        }
+        X509CertificateBuilder gen = newBuilder(nb.build(), params);
+        gen.setKeyPairPool(keyPairPool);
+        String alg = HttpExchanges.get(params, "alg", "RSA").toUpperCase();
+        if (alg.equals("EC") || alg.equals("ECDSA")) {
+            ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec(
+                    HttpExchanges.get(params, "curve", "prime256v1"));
+            if (ecSpec == null) {
+                throw new IllegalArgumentException("Unknown curve");
+            }
+            gen.setAlgorithm("ECDSA", ecSpec);
+        } else {
+            gen.setAlgorithm(alg, Integer.parseInt(
+                    HttpExchanges.get(params, "keysize", "2048")));
+        }
+        X509CertificateHolder holder = issue(gen);
+        record(exch, holder);
+        HttpExchanges.sendPem(exch, 200, HttpExchanges.PEM_TYPE,
+                gen.getPrivateKey(), holder);
+    }
+
+    private void sign(HttpExchange exch) throws Exception {
+        Map<String,String> params = HttpExchanges.query(exch);
+        PKCS10CertificationRequest csr = CertificationRequests.decode(
+                HttpExchanges.readAll(exch.getRequestBody()));
+        CertificationRequests.verify(csr);
+        X509CertificateBuilder gen = newBuilder(
+                CertificationRequests.getSubject(csr), params);
+        gen.setPublicKey(CertificationRequests.getPublicKey(csr));
+        X509CertificateHolder holder = issue(gen);
+        record(exch, holder);
+        HttpExchanges.sendPem(exch, 200, HttpExchanges.PEM_TYPE, holder);
+    }
+
+    private void revoke(HttpExchange exch) throws Exception {
+        Map<String,String> params = HttpExchanges.query(exch);
+        String serial = params.get("serial");
+        if (serial == null) {
+            throw new IllegalArgumentException("Missing serial");
+        }
+        BigInteger sn = new BigInteger(serial, 16);
+        if (!issued.contains(sn) && index.findBySerial(sn).isEmpty()) {
+            HttpExchanges.send(exch, 404, "Unknown serial number: " + serial);
+            return;
+        }
+        RevocationDatabase.Revocation rev = revocations.revoke(
+                RevocationDatabase.issuerId(ca.getCertificate()), sn,
+                RevocationDatabase.reasonCode(
+                        HttpExchanges.get(params, "reason", "unspecified")));
+        HttpExchanges.send(exch, 200, "revoked "
+                + rev.getSerialNumber().toString(16)
+                + " " + RevocationDatabase.reasonName(rev.getReason()));
+    }
+
+    private void fetch(HttpExchange exch) throws Exception {
+        String path = exch.getRequestURI().getPath();
+        BigInteger sn = new BigInteger(
+                path.substring(path.lastIndexOf('/') + 1), 16);
+        byte[] encoded = issued.get(sn);
+        if (encoded != null) {
+            HttpExchanges.sendPem(exch, 200, HttpExchanges.PEM_TYPE,
+                    new PemObject("CERTIFICATE", encoded));
+            return;
+        }
+        List<KeyStoreEntry> entries = index.findBySerial(sn);
+        if (entries.isEmpty()) {
+            HttpExchanges.send(exch, 404,
+                    "Unknown serial number: " + sn.toString(16));
+        } else {
+            HttpExchanges.sendPem(exch, 200, HttpExchanges.PEM_TYPE,
+                    index.getCertificate(entries.get(0).getAlias()));
+        }
+    }
+
+    private void crl(HttpExchange exch) throws Exception {
+        String path = exch.getRequestURI().getPath();
+        byte[] crl;
+        if (path.equals("/crl")) {
+            crl = crlPublisher.getFullCrl();
+        } else if (path.equals("/crl/delta")) {
+            crl = crlPublisher.getDeltaCrl();
+        } else {
+            HttpExchanges.send(exch, 404, "Not found");
+            return;
+        }
+        HttpExchanges.send(exch, 200, CRL_TYPE, crl);
+    }
+
+    /**
+     * Returns a builder without serial number: it is only allocated once
+     * the request has been validated.
+     */
+    private X509CertificateBuilder newBuilder(X500Principal subject,
+            Map<String,String> params) {
+        X509CertificateBuilder gen = new X509CertificateBuilder(null, subject);
+        Date start = new Date();
+        gen.setStart(start);
+        int days = Integer.parseInt(HttpExchanges.get(params, "days",
+                Integer.toString(defaultDays)));
+        if (days <= 0) {
+            throw new IllegalArgumentException("Invalid days: " + days);
+        }
+        Date end = new Date(start.getTime() + days*24L*3600*1000);
+        Date caEnd = ca.getCertificate().getNotAfter();
+        gen.setEnd(end.after(caEnd) ? caEnd : end);
+        gen.setBasicConstraints(-1);
+        return gen;
+    }
+
+    private X509CertificateHolder issue(X509CertificateBuilder gen)
+            throws IOException, GeneralSecurityException,
+            OperatorCreationException {
+        gen.setSerialNumber(serials.next());
+        return ca.issueHolder(gen);
+    }
+
+    private void record(HttpExchange exch, X509CertificateHolder holder)
+            throws IOException {
+        BigInteger sn = holder.getSerialNumber();
+        issued.add(sn, holder.getEncoded());
+        exch.getResponseHeaders().set("X-Serial-Number", sn.toString(16));
+    }
+}
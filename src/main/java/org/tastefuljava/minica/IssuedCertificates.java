@@ -0,0 +1,224 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Certificate;
+
+/**
+ * Append-only log of the certificates issued outside of the keystore (by
+ * the issuance server or the batch signer), in <keystore>.issued. Only the
+ * position of each certificate is kept in memory; the certificates are read
+ * back from the file when they are fetched.
+ */
+public class IssuedCertificates implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(IssuedCertificates.class.getName());
+
+    private static final int MAGIC = 0x4D434931; // MCI1
+    private static final int HEADER_SIZE = 4;
+
+    private final File file;
+    private final Map<BigInteger,Long> positions = new ConcurrentHashMap<>();
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long size;
+    // built on demand, see findBySubject
+    private Map<X500Name,List<BigInteger>> subjects;
+
+    public IssuedCertificates(File file) throws IOException {
+        this.file = file;
+        long length = file.length();
+        long pos = length < HEADER_SIZE ? 0 : load();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (pos != length) {
+            LOG.log(Level.WARNING, "Discarding the end of {0}", file);
+            channel.truncate(pos);
+        }
+        if (pos == 0) {
+            channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC));
+            pos = HEADER_SIZE;
+        }
+        size = pos;
+    }
+
+    public static File fileFor(File keystoreFile) {
+        return new File(keystoreFile.getParentFile(),
+                keystoreFile.getName() + ".issued");
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    public boolean contains(BigInteger sn) {
+        return positions.containsKey(sn);
+    }
+
+    /**
+     * Records a certificate. The record is written to the file, but not
+     * synced: the serial number allocator guarantees uniqueness, the log is
+     * only needed to fetch the certificates.
+     */
+    public void add(BigInteger sn, byte[] encoded) throws IOException {
+        byte[] snBytes = sn.toByteArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                encoded.length + snBytes.length + 6);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(snBytes.length + encoded.length + 2);
+        data.writeShort(snBytes.length);
+        data.write(snBytes);
+        data.write(encoded);
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        synchronized (this) {
+            long pos = size;
+            while (buf.hasRemaining()) {
+                channel.write(buf, pos + buf.position());
+            }
+            size += buf.limit();
+            positions.put(sn, pos);
+            if (subjects != null) {
+                index(sn, encoded);
+            }
+        }
+    }
+
+    /**
+     * Returns the serial numbers of the certificates issued to a subject.
+     * The subjects are only indexed when this is first called, by reading
+     * all the certificates, so that the servers that never need them do not
+     * pay for them.
+     */
+    public synchronized List<BigInteger> findBySubject(X500Name subject)
+            throws IOException {
+        if (subjects == null) {
+            subjects = new HashMap<>();
+            for (BigInteger sn: positions.keySet()) {
+                index(sn, get(sn));
+            }
+        }
+        List<BigInteger> result = subjects.get(subject);
+        return result == null
+                ? new ArrayList<>() : new ArrayList<>(result);
+    }
+
+    /**
+     * Returns the encoded certificate with the given serial number, or null
+     * when there is none.
+     */
+    public byte[] get(BigInteger sn) throws IOException {
+        Long pos = positions.get(sn);
+        if (pos == null) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(6);
+        read(header, pos);
+        int length = header.getInt(0);
+        int snLength = header.getShort(4);
+        ByteBuffer data = ByteBuffer.allocate(length - snLength - 2);
+        read(data, pos + 6 + snLength);
+        return data.array();
+    }
+
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        raf.close();
+    }
+
+    private void index(BigInteger sn, byte[] encoded) {
+        X500Name subject = Certificate.getInstance(encoded).getSubject();
+        List<BigInteger> list = subjects.get(subject);
+        if (list == null) {
+            list = new ArrayList<>();
+            subjects.put(subject, list);
+        }
+        list.add(sn);
+    }
+
+    private void read(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the positions of the records, and returns the end of the last
+     * complete record.
+     */
+    private long load() throws IOException {
+        long length = file.length();
+        long pos = HEADER_SIZE;
+        try (InputStream stream = new FileInputStream(file);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(stream))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid file " + file);
+            }
+            while (pos + 4 <= length) {
+                int recLength = in.readInt();
+                if (recLength <= 2 || pos + 4 + recLength > length) {
+                    break;
+                }
+                byte[] snBytes = new byte[in.readShort()];
+                in.readFully(snBytes);
+                int skip = recLength - snBytes.length - 2;
+                while (skip > 0) {
+                    int n = in.skipBytes(skip);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skip -= n;
+                }
+                positions.put(new BigInteger(snBytes), pos);
+                pos += 4 + recLength;
+            }
+        } catch (EOFException e) {
+            // truncated record
+        }
+        return pos;
+    }
+}
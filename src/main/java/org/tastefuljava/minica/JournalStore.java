@@ -0,0 +1,466 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the modifications of a JKS keystore file. Each
+ * new key entry, certificate entry or deletion is appended to a journal
+ * file (<keystore>.journal) and synced to disk, so that a modification
+ * costs the size of the entry rather than a rewrite of the whole keystore.
+ * When the keystore is opened, the journal is replayed over the keystore
+ * file. Compaction rewrites the keystore file and empties the journal.
+ * Key entries are journaled in their JKS-protected form, so that neither
+ * the journal nor the replay needs the key passwords. A batch of entries
+ * is framed by a begin and a commit record, and is only replayed when the
+ * commit record has been written.
+ * Appends, replays and compactions hold a lock on a sidecar file
+ * (<keystore>.journal.lock), so that processes sharing the keystore do not
+ * interleave their records, nor discard a batch being written by another.
+ */
+public class JournalStore implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(JournalStore.class.getName());
+
+    private static final int MAGIC = 0x4D434A31; // MCJ1
+    // format of the JKS files, see exportJks in BulkExporter
+    static final int JKS_MAGIC = 0xFEEDFEED;
+    static final int JKS_VERSION = 2;
+    static final int JKS_KEY_ENTRY = 1;
+    static final int JKS_CERT_ENTRY = 2;
+    static final String JKS_SALT = "Mighty Aphrodite";
+    private static final byte KEY_ENTRY = 1;
+    private static final byte CERT_ENTRY = 2;
+    private static final byte DELETE = 3;
+    private static final byte BEGIN = 4;
+    private static final byte COMMIT = 5;
+    private static final int HEADER_SIZE = 4;
+    private static final long MIN_COMPACTION_SIZE = 1024*1024;
+    private static final char[] TEMP_PASSWORD = "journal".toCharArray();
+
+    private final File file;
+    private final File journalFile;
+    private final File lockFile;
+    private FileOutputStream out;
+    private long size;
+    private int recordCount;
+    // another process has modified the journal since it was replayed
+    private boolean stale;
+
+    public JournalStore(File file) {
+        this.file = file;
+        this.journalFile = journalFile(file);
+        this.lockFile = new File(journalFile.getParentFile(),
+                journalFile.getName() + ".lock");
+        this.size = journalFile.length();
+    }
+
+    public static File journalFile(File keystoreFile) {
+        return new File(keystoreFile.getParentFile(),
+                keystoreFile.getName() + ".journal");
+    }
+
+    /**
+     * Only JKS keystores can be journaled.
+     */
+    public static boolean isSupported(KeyStore keystore) {
+        return "JKS".equalsIgnoreCase(keystore.getType());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Tells whether the journal has grown larger than the keystore file,
+     * in which case the keystore should be compacted.
+     */
+    public boolean needsCompaction() {
+        return size > Math.max(MIN_COMPACTION_SIZE, file.length());
+    }
+
+    /**
+     * Applies the journal to a keystore that has just been loaded from the
+     * keystore file. A truncated or corrupt record, left by a crash, ends
+     * the journal and is discarded, as is an uncommitted batch.
+     */
+    public synchronized void replay(KeyStore keystore)
+            throws IOException, GeneralSecurityException {
+        FileLock lock = lock();
+        try {
+            replayLocked(keystore);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private void replayLocked(KeyStore keystore)
+            throws IOException, GeneralSecurityException {
+        recordCount = 0;
+        stale = false;
+        if (!journalFile.isFile()) {
+            size = 0;
+            return;
+        }
+        long fileLength = journalFile.length();
+        long pos = HEADER_SIZE;
+        long end = pos; // end of the last record or batch replayed
+        List<byte[]> batch = null;
+        try (InputStream stream = new FileInputStream(journalFile);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(stream))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid journal file " + journalFile);
+            }
+            CertificateFactory cf = CryptoCache.getCertificateFactory();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || pos + length + 8 > fileLength) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if ((int)crc.getValue() != in.readInt()) {
+                        LOG.warning("Corrupt record in " + journalFile);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                pos += record.length + 8;
+                if (record[0] == BEGIN) {
+                    batch = new ArrayList<>();
+                } else if (record[0] == COMMIT) {
+                    if (batch != null) {
+                        for (byte[] r: batch) {
+                            apply(keystore, cf, r);
+                        }
+                        recordCount += batch.size() + 1;
+                    }
+                    ++recordCount;
+                    batch = null;
+                    end = pos;
+                } else if (batch != null) {
+                    batch.add(record);
+                } else {
+                    apply(keystore, cf, record);
+                    ++recordCount;
+                    end = pos;
+                }
+            }
+        } catch (EOFException e) {
+            // empty journal
+            end = 0;
+        }
+        pos = end;
+        if (pos != fileLength) {
+            LOG.log(Level.WARNING, "Discarding the end of {0}", journalFile);
+            try (RandomAccessFile raf = new RandomAccessFile(
+                    journalFile, "rw")) {
+                raf.getChannel().truncate(pos);
+            }
+        }
+        size = pos;
+    }
+
+    public synchronized void appendKeyEntry(String alias, Key key,
+            char[] password, Certificate[] chain)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(KEY_ENTRY);
+        data.writeUTF(alias);
+        writeBytes(data, protectKey(key, password, chain));
+        data.writeInt(chain.length);
+        for (Certificate cert: chain) {
+            writeBytes(data, cert.getEncoded());
+        }
+        append(bytes.toByteArray());
+    }
+
+    public synchronized void appendCertificateEntry(String alias,
+            Certificate cert) throws IOException, GeneralSecurityException {
+        append(certificateRecord(alias, cert));
+    }
+
+    /**
+     * Appends many certificate entries with a single sync, between a begin
+     * and a commit record. If the batch cannot be written completely, the
+     * journal is truncated to its previous size; after a crash, the replay
+     * ignores the batch, unless the commit record made it to the disk.
+     */
+    public synchronized void appendCertificateEntries(
+            Map<String,? extends Certificate> certs)
+            throws IOException, GeneralSecurityException {
+        FileLock lock = lock();
+        try {
+            open();
+            long start = size;
+            int count = recordCount;
+            try {
+                OutputStream buf = new BufferedOutputStream(out, 65536);
+                write(buf, new byte[] {BEGIN});
+                for (Map.Entry<String,? extends Certificate> e
+                        : certs.entrySet()) {
+                    write(buf, certificateRecord(e.getKey(), e.getValue()));
+                }
+                write(buf, new byte[] {COMMIT});
+                buf.flush();
+                out.getChannel().force(false);
+            } catch (IOException | GeneralSecurityException
+                    | RuntimeException e) {
+                out.getChannel().truncate(start);
+                size = start;
+                recordCount = count;
+                throw e;
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    public synchronized void appendDelete(String alias) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(DELETE);
+        data.writeUTF(alias);
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Rewrites the keystore file from the given keystore, and empties the
+     * journal. The previous keystore file is kept as a .bak file. Fails if
+     * another process has appended to the journal since it was replayed,
+     * as its modifications would be lost.
+     */
+    public void compact(KeyStore keystore, char[] password)
+            throws IOException, GeneralSecurityException {
+        compact(keystore, password, null);
+    }
+
+    public synchronized void compact(KeyStore keystore, char[] password,
+            ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        FileLock lock = lock();
+        try {
+            close();
+            if (stale || journalFile.length() != size) {
+                throw new IOException("The journal " + journalFile
+                        + " has been modified by another process");
+            }
+            KeyStoreFiles.store(keystore, file, password, listener);
+            // replaying the old journal over the new file is harmless,
+            // should the deletion fail
+            Files.deleteIfExists(journalFile.toPath());
+            size = 0;
+            recordCount = 0;
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        FileLock lock = lock();
+        try {
+            open();
+            write(out, record);
+            out.getChannel().force(false);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Opens the journal for appending; must be called with the lock held.
+     */
+    private void open() throws IOException {
+        long length = journalFile.length();
+        if (length != size) {
+            // compacted or appended to by another process
+            stale = true;
+            close();
+        }
+        if (out == null) {
+            boolean exists = length >= HEADER_SIZE;
+            out = new FileOutputStream(journalFile, exists);
+            if (!exists) {
+                new DataOutputStream(out).writeInt(MAGIC);
+                length = HEADER_SIZE;
+            }
+        }
+        size = length;
+    }
+
+    private FileLock lock() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+        try {
+            return raf.getChannel().lock();
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static void unlock(FileLock lock) throws IOException {
+        // closing the channel releases the lock and closes the file
+        lock.channel().close();
+    }
+
+    private void write(OutputStream stream, byte[] record)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteArrayOutputStream bytes
+                = new ByteArrayOutputStream(record.length + 8);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(record.length);
+        data.write(record);
+        data.writeInt((int)crc.getValue());
+        bytes.writeTo(stream);
+        size += bytes.size();
+        ++recordCount;
+    }
+
+    private static byte[] certificateRecord(String alias, Certificate cert)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(CERT_ENTRY);
+        data.writeUTF(alias);
+        writeBytes(data, cert.getEncoded());
+        return bytes.toByteArray();
+    }
+
+    private static void apply(KeyStore keystore, CertificateFactory cf,
+            byte[] record) throws IOException, GeneralSecurityException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String alias = in.readUTF();
+        switch (type) {
+            case KEY_ENTRY:
+                byte[] key = readBytes(in);
+                Certificate[] chain = new Certificate[in.readInt()];
+                for (int i = 0; i < chain.length; ++i) {
+                    chain[i] = cf.generateCertificate(
+                            new ByteArrayInputStream(readBytes(in)));
+                }
+                keystore.setKeyEntry(alias, key, chain);
+                break;
+            case CERT_ENTRY:
+                keystore.setCertificateEntry(alias, cf.generateCertificate(
+                        new ByteArrayInputStream(readBytes(in))));
+                break;
+            case DELETE:
+                if (keystore.containsAlias(alias)) {
+                    keystore.deleteEntry(alias);
+                }
+                break;
+            default:
+                throw new IOException("Invalid journal record type " + type);
+        }
+    }
+
+    /**
+     * Returns the key as protected by the JKS keystore, by storing it in a
+     * single-entry keystore, and extracting it from the serialized form.
+     * Also used to write JKS files entry by entry.
+     */
+    static byte[] protectKey(Key key, char[] password,
+            Certificate[] chain) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(null, null);
+        ks.setKeyEntry("key", key, password, chain);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ks.store(bytes, TEMP_PASSWORD);
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        if (in.readInt() != JKS_MAGIC) {
+            throw new KeyStoreException("Unexpected JKS format");
+        }
+        in.readInt(); // version
+        in.readInt(); // entry count
+        if (in.readInt() != JKS_KEY_ENTRY) {
+            throw new KeyStoreException("Unexpected JKS entry type");
+        }
+        in.readUTF(); // alias
+        in.readLong(); // date
+        return readBytes(in);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer. Objects are read as LinkedHashMaps,
+ * arrays as ArrayLists, integral numbers as Longs and other numbers as
+ * Doubles.
+ */
+public class Json {
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    public static Object parse(String text) throws IOException {
+        Json parser = new Json(text);
+        Object value = parser.readValue();
+        parser.skipSpaces();
+        if (parser.pos < text.length()) {
+            throw parser.error("Unexpected data");
+        }
+        return value;
+    }
+
+    /**
+     * Parses a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String,Object> parseObject(String text)
+            throws IOException {
+        Object value = parse(text);
+        if (!(value instanceof Map)) {
+            throw new IOException("JSON object expected");
+        }
+        return (Map<String,Object>)value;
+    }
+
+    public static String toString(Object value) {
+        StringBuilder buf = new StringBuilder();
+        write(value, buf);
+        return buf.toString();
+    }
+
+    public static void write(Object value, StringBuilder buf) {
+        if (value == null) {
+            buf.append("null");
+        } else if (value instanceof String) {
+            writeString((String)value, buf);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            buf.append(value);
+        } else if (value instanceof Map) {
+            buf.append('{');
+            boolean first = true;
+            for (Map.Entry<?,?> e: ((Map<?,?>)value).entrySet()) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                writeString(e.getKey().toString(), buf);
+                buf.append(':');
+                write(e.getValue(), buf);
+            }
+            buf.append('}');
+        } else if (value instanceof Collection) {
+            buf.append('[');
+            boolean first = true;
+            for (Object item: (Collection<?>)value) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                write(item, buf);
+            }
+            buf.append(']');
+        } else {
+            writeString(value.toString(), buf);
+        }
+    }
+
+    private static void writeString(String s, StringBuilder buf) {
+        buf.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        buf.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+
+    private Object readValue() throws IOException {
+        skipSpaces();
+        if (pos >= text.length()) {
+            throw error("Unexpected end");
+        }
+        char c = text.charAt(pos);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String,Object> readObject() throws IOException {
+        Map<String,Object> map = new LinkedHashMap<>();
+        ++pos;
+        skipSpaces();
+        if (peek() == '}') {
+            ++pos;
+            return map;
+        }
+        while (true) {
+            skipSpaces();
+            if (peek() != '"') {
+                throw error("Name expected");
+            }
+            String name = readString();
+            skipSpaces();
+            if (peek() != ':') {
+                throw error("':' expected");
+            }
+            ++pos;
+            map.put(name, readValue());
+            skipSpaces();
+            char c = peek();
+            ++pos;
+            if (c == '}') {
+                return map;
+            } else if (c != ',') {
+                throw error("',' or '}' expected");
+            }
+        }
+    }
+
+    private List<Object> readArray() throws IOException {
+        List<Object> list = new ArrayList<>();
+        ++pos;
+        skipSpaces();
+        if (peek() == ']') {
+            ++pos;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            skipSpaces();
+            char c = peek();
+            ++pos;
+            if (c == ']') {
+                return list;
+            } else if (c != ',') {
+                throw error("',' or ']' expected");
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        StringBuilder buf = new StringBuilder();
+        ++pos;
+        while (true) {
+            if (pos >= text.length()) {
+                throw error("Unterminated string");
+            }
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return buf.toString();
+            } else if (c != '\\') {
+                buf.append(c);
+            } else if (pos >= text.length()) {
+                throw error("Unterminated string");
+            } else {
+                c = text.charAt(pos++);
+                switch (c) {
+                    case 'b':
+                        buf.append('\b');
+                        break;
+                    case 'f':
+                        buf.append('\f');
+                        break;
+                    case 'n':
+                        buf.append('\n');
+                        break;
+                    case 'r':
+                        buf.append('\r');
+                        break;
+                    case 't':
+                        buf.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("Invalid escape");
+                        }
+                        try {
+                            buf.append((char)Integer.parseInt(
+                                    text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        buf.append(c);
+                }
+            }
+        }
+    }
+
+    private Number readNumber() throws IOException {
+        int start = pos;
+        boolean integral = true;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            } else if (!(c >= '0' && c <= '9' || c == '-' || c == '+')) {
+                break;
+            }
+            ++pos;
+        }
+        String s = text.substring(start, pos);
+        try {
+            return integral ? (Number)Long.valueOf(s)
+                    : (Number)Double.valueOf(s);
+        } catch (NumberFormatException e) {
+            throw error("Invalid value");
+        }
+    }
+
+    private void expect(String word) throws IOException {
+        if (!text.startsWith(word, pos)) {
+            throw error("Invalid value");
+        }
+        pos += word.length();
+    }
+
+    private char peek() throws IOException {
+        if (pos >= text.length()) {
+            throw error("Unexpected end");
+        }
+        return text.charAt(pos);
+    }
+
+    private void skipSpaces() {
+        while (pos < text.length()
+                && Character.isWhitespace(text.charAt(pos))) {
+            ++pos;
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at position " + pos);
+    }
+}
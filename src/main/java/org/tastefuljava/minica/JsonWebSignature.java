@@ -0,0 +1,227 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+
+/**
+ * A JSON Web Signature in the flattened JSON serialization (RFC 7515), as
+ * used by ACME. Supports the RS256, ES256 and ES384 algorithms.
+ */
+public class JsonWebSignature {
+    private final Map<String,Object> header;
+    private final String encodedHeader;
+    private final String encodedPayload;
+    private final byte[] signature;
+
+    private JsonWebSignature(Map<String,Object> header, String encodedHeader,
+            String encodedPayload, byte[] signature) {
+        this.header = header;
+        this.encodedHeader = encodedHeader;
+        this.encodedPayload = encodedPayload;
+        this.signature = signature;
+    }
+
+    public static JsonWebSignature parse(String json) throws IOException {
+        Map<String,Object> jws = Json.parseObject(json);
+        Object prot = jws.get("protected");
+        Object payload = jws.get("payload");
+        Object sig = jws.get("signature");
+        if (!(prot instanceof String) || !(payload instanceof String)
+                || !(sig instanceof String)) {
+            throw new IOException("Invalid JWS");
+        }
+        try {
+            return new JsonWebSignature(
+                    Json.parseObject(new String(decode((String)prot),
+                            StandardCharsets.UTF_8)),
+                    (String)prot, (String)payload, decode((String)sig));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid JWS encoding");
+        }
+    }
+
+    public static String encode(byte[] data) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+    }
+
+    public static byte[] decode(String s) {
+        return Base64.getUrlDecoder().decode(s);
+    }
+
+    public String getAlgorithm() {
+        return (String)header.get("alg");
+    }
+
+    public String getNonce() {
+        return (String)header.get("nonce");
+    }
+
+    public String getUrl() {
+        return (String)header.get("url");
+    }
+
+    public String getKeyId() {
+        return (String)header.get("kid");
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String,Object> getJwk() {
+        Object jwk = header.get("jwk");
+        return jwk instanceof Map ? (Map<String,Object>)jwk : null;
+    }
+
+    /**
+     * Returns the payload, or null for an empty payload (POST-as-GET).
+     */
+    public Map<String,Object> getPayload() throws IOException {
+        if (encodedPayload.isEmpty()) {
+            return null;
+        }
+        return Json.parseObject(new String(decode(encodedPayload),
+                StandardCharsets.UTF_8));
+    }
+
+    public void verify(PublicKey key) throws GeneralSecurityException {
+        String alg = getAlgorithm();
+        byte[] sig = signature;
+        Signature verifier;
+        if ("RS256".equals(alg) && key instanceof RSAPublicKey) {
+            verifier = Signature.getInstance("SHA256withRSA");
+        } else if ("ES256".equals(alg) && key instanceof ECPublicKey) {
+            verifier = Signature.getInstance("SHA256withECDSA");
+            sig = toDer(sig, 32);
+        } else if ("ES384".equals(alg) && key instanceof ECPublicKey) {
+            verifier = Signature.getInstance("SHA384withECDSA");
+            sig = toDer(sig, 48);
+        } else {
+            throw new SignatureException("Unsupported algorithm: " + alg);
+        }
+        verifier.initVerify(key);
+        verifier.update((encodedHeader + "." + encodedPayload)
+                .getBytes(StandardCharsets.US_ASCII));
+        if (!verifier.verify(sig)) {
+            throw new SignatureException("Invalid JWS signature");
+        }
+    }
+
+    public static PublicKey toPublicKey(Map<String,Object> jwk)
+            throws GeneralSecurityException {
+        Object kty = jwk.get("kty");
+        if ("RSA".equals(kty)) {
+            return KeyFactory.getInstance("RSA").generatePublic(
+                    new RSAPublicKeySpec(integer(jwk, "n"),
+                            integer(jwk, "e")));
+        } else if ("EC".equals(kty)) {
+            String curve;
+            if ("P-256".equals(jwk.get("crv"))) {
+                curve = "secp256r1";
+            } else if ("P-384".equals(jwk.get("crv"))) {
+                curve = "secp384r1";
+            } else {
+                throw new GeneralSecurityException("Unsupported curve");
+            }
+            AlgorithmParameters params
+                    = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec(curve));
+            ECParameterSpec spec = params.getParameterSpec(
+                    ECParameterSpec.class);
+            return KeyFactory.getInstance("EC").generatePublic(
+                    new ECPublicKeySpec(new ECPoint(integer(jwk, "x"),
+                            integer(jwk, "y")), spec));
+        } else {
+            throw new GeneralSecurityException("Unsupported key type");
+        }
+    }
+
+    /**
+     * Returns the base64url-encoded SHA-256 thumbprint of the key (RFC
+     * 7638).
+     */
+    public static String thumbprint(Map<String,Object> jwk)
+            throws GeneralSecurityException {
+        // the required members, in lexicographic order
+        Map<String,Object> members = new LinkedHashMap<>();
+        if ("RSA".equals(jwk.get("kty"))) {
+            members.put("e", jwk.get("e"));
+            members.put("kty", "RSA");
+            members.put("n", jwk.get("n"));
+        } else if ("EC".equals(jwk.get("kty"))) {
+            members.put("crv", jwk.get("crv"));
+            members.put("kty", "EC");
+            members.put("x", jwk.get("x"));
+            members.put("y", jwk.get("y"));
+        } else {
+            throw new GeneralSecurityException("Unsupported key type");
+        }
+        return encode(MessageDigest.getInstance("SHA-256").digest(
+                Json.toString(members).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static BigInteger integer(Map<String,Object> jwk, String name)
+            throws GeneralSecurityException {
+        Object value = jwk.get(name);
+        if (!(value instanceof String)) {
+            throw new GeneralSecurityException("Missing JWK member " + name);
+        }
+        return new BigInteger(1, decode((String)value));
+    }
+
+    /**
+     * Converts a signature from the JWS form (R and S concatenated) to DER.
+     */
+    private static byte[] toDer(byte[] sig, int size)
+            throws SignatureException {
+        if (sig.length != 2*size) {
+            throw new SignatureException("Invalid signature length");
+        }
+        ASN1EncodableVector v = new ASN1EncodableVector();
+        v.add(new ASN1Integer(new BigInteger(1,
+                Arrays.copyOfRange(sig, 0, size))));
+        v.add(new ASN1Integer(new BigInteger(1,
+                Arrays.copyOfRange(sig, size, 2*size))));
+        try {
+            return new DERSequence(v).getEncoded();
+        } catch (IOException e) {
+            throw new SignatureException(e.getMessage());
+        }
+    }
+}
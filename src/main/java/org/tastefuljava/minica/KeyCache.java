@@ -0,0 +1,195 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unlocked private keys of a keystore, by alias, so that a key is only
+ * decrypted once per session. A key is locked again (forgotten) when its
+ * time to live has elapsed since it was unlocked, when its entry changes,
+ * or explicitly. The passwords given to unlock keys are erased; only a
+ * salted hash is kept with the key, so that an unlocked key is only
+ * returned for the right password. The aliases are case-insensitive, as
+ * in KeyStoreIndex.
+ * Note that the key objects themselves cannot generally be erased: they
+ * are only dereferenced.
+ */
+public class KeyCache {
+    public static final long DEFAULT_TTL = 5*60*1000L;
+
+    private static final ScheduledExecutorService SCHEDULER
+            = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+                Thread thread = new Thread(r, "Key cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Map<String,Unlocked> keys = new ConcurrentHashMap<>();
+    private final byte[] salt = new byte[16];
+    private volatile long ttl;
+
+    public KeyCache(long ttl) {
+        this.ttl = ttl;
+        CryptoCache.getSecureRandom().nextBytes(salt);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets the time to live of the keys unlocked from now on, in
+     * milliseconds. A zero TTL disables the cache.
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isUnlocked(String alias) {
+        return get(alias) != null;
+    }
+
+    /**
+     * Returns the unlocked key of the given alias, or null. No password is
+     * checked: this is for operations that only use the key, and must not
+     * be used to export it.
+     */
+    public PrivateKey get(String alias) {
+        Unlocked unlocked = unlocked(alias);
+        return unlocked == null ? null : unlocked.key;
+    }
+
+    /**
+     * Returns the key of the given alias, decrypting it with the password
+     * unless it is already unlocked. The password is erased in any case.
+     */
+    public PrivateKey unlock(KeyStore keystore, String alias,
+            char[] password) throws GeneralSecurityException {
+        try {
+            byte[] hash = hash(password);
+            Unlocked cached = unlocked(alias);
+            if (cached != null && MessageDigest.isEqual(hash, cached.hash)) {
+                return cached.key;
+            }
+            Key k = keystore.getKey(alias, password);
+            if (!(k instanceof PrivateKey)) {
+                throw new KeyStoreException("Not a private key: " + alias);
+            }
+            PrivateKey key = (PrivateKey)k;
+            long time = ttl;
+            if (time > 0) {
+                String name = key(alias);
+                Unlocked unlocked = new Unlocked(key, hash,
+                        System.currentTimeMillis() + time);
+                Unlocked previous = keys.put(name, unlocked);
+                if (previous != null) {
+                    CryptoCache.forget(previous.key);
+                }
+                SCHEDULER.schedule(() -> forget(name, unlocked),
+                        time, TimeUnit.MILLISECONDS);
+            }
+            return key;
+        } finally {
+            if (password != null) {
+                Arrays.fill(password, '\0');
+            }
+        }
+    }
+
+    /**
+     * Forgets the key of the given alias, and the signers cached for it by
+     * CryptoCache.
+     */
+    public void lock(String alias) {
+        Unlocked unlocked = keys.remove(key(alias));
+        if (unlocked != null) {
+            CryptoCache.forget(unlocked.key);
+        }
+    }
+
+    /**
+     * Forgets all the keys, including the signers cached by CryptoCache.
+     */
+    public void wipe() {
+        keys.clear();
+        CryptoCache.clearAll();
+    }
+
+    private Unlocked unlocked(String alias) {
+        String name = key(alias);
+        Unlocked unlocked = keys.get(name);
+        if (unlocked != null
+                && unlocked.expiry <= System.currentTimeMillis()) {
+            forget(name, unlocked);
+            return null;
+        }
+        return unlocked;
+    }
+
+    private void forget(String name, Unlocked unlocked) {
+        if (keys.remove(name, unlocked)) {
+            CryptoCache.forget(unlocked.key);
+        }
+    }
+
+    private byte[] hash(char[] password) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(salt);
+        if (password != null) {
+            for (char c: password) {
+                md.update((byte)(c >> 8));
+                md.update((byte)c);
+            }
+        }
+        return md.digest();
+    }
+
+    private static String key(String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static class Unlocked {
+        private final PrivateKey key;
+        private final byte[] hash;
+        private final long expiry;
+
+        private Unlocked(PrivateKey key, byte[] hash, long expiry) {
+            this.key = key;
+            this.hash = hash;
+            this.expiry = expiry;
+        }
+    }
+}
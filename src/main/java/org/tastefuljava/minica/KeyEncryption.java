@@ -0,0 +1,387 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.EncryptedPrivateKeyInfo;
+import org.bouncycastle.asn1.pkcs.EncryptionScheme;
+import org.bouncycastle.asn1.pkcs.KeyDerivationFunc;
+import org.bouncycastle.asn1.pkcs.PBES2Parameters;
+import org.bouncycastle.asn1.pkcs.PBKDF2Params;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.openssl.PEMEncryptor;
+import org.bouncycastle.openssl.jcajce.JcaMiscPEMGenerator;
+import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8DecryptorProviderBuilder;
+import org.bouncycastle.openssl.jcajce.JcePEMEncryptorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.pkcs.PKCSException;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemObjectGenerator;
+
+/**
+ * Encryption of the private keys written to PEM files. The LEGACY scheme is
+ * the traditional OpenSSL format (DES-EDE3-CBC, with a key derived by a
+ * single round of MD5); the other schemes produce PKCS#8
+ * EncryptedPrivateKeyInfo structures (PBES2), with a key derived by
+ * PBKDF2-HMAC-SHA256 or scrypt, and encrypted with AES-256 in CBC or GCM
+ * mode. The cost of the derivation is configurable.
+ *
+ * By default, the derived key is computed once and reused for all the keys
+ * encrypted with the same password, each with its own IV, so that exporting
+ * many keys costs a single derivation. With a salt per key, the derivations
+ * are independent, and run in parallel on the threads of a bulk export.
+ */
+public class KeyEncryption {
+    public enum Scheme {
+        LEGACY, PBKDF2_AES_256_CBC, PBKDF2_AES_256_GCM, SCRYPT_AES_256_CBC,
+        SCRYPT_AES_256_GCM;
+
+        public static Scheme forName(String name) {
+            return valueOf(name.toUpperCase(Locale.ENGLISH).replace('-', '_'));
+        }
+
+        boolean isScrypt() {
+            return this == SCRYPT_AES_256_CBC || this == SCRYPT_AES_256_GCM;
+        }
+
+        boolean isGcm() {
+            return this == PBKDF2_AES_256_GCM || this == SCRYPT_AES_256_GCM;
+        }
+    }
+
+    public static final int DEFAULT_ITERATIONS = 600000;
+    public static final int DEFAULT_SCRYPT_COST = 1 << 14;
+
+    private static final ASN1ObjectIdentifier ID_SCRYPT
+            = new ASN1ObjectIdentifier("1.3.6.1.4.1.11591.4.11");
+    private static final AlgorithmIdentifier HMAC_SHA256
+            = new AlgorithmIdentifier(PKCSObjectIdentifiers.id_hmacWithSHA256,
+                    DERNull.INSTANCE);
+    private static final int KEY_SIZE = 32;
+    private static final int SALT_SIZE = 16;
+    private static final int GCM_TAG_SIZE = 16;
+
+    private final Scheme scheme;
+    private int iterations = DEFAULT_ITERATIONS;
+    private int scryptCost = DEFAULT_SCRYPT_COST;
+    private int scryptBlockSize = 8;
+    private int scryptParallelization = 1;
+    private boolean sharedSalt = true;
+    private char[] cachedPassword;
+    private DerivedKey cachedKey;
+
+    public KeyEncryption() {
+        this(Scheme.PBKDF2_AES_256_CBC);
+    }
+
+    public KeyEncryption(Scheme scheme) {
+        this.scheme = scheme;
+    }
+
+    public Scheme getScheme() {
+        return scheme;
+    }
+
+    public synchronized int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Sets the iteration count of PBKDF2.
+     */
+    public synchronized void setIterations(int iterations) {
+        this.iterations = Math.max(1, iterations);
+        clearCache();
+    }
+
+    public synchronized int getScryptCost() {
+        return scryptCost;
+    }
+
+    /**
+     * Sets the CPU/memory cost of scrypt (N), a power of two. The memory
+     * used by a derivation is 128*N*r bytes; OpenSSL refuses more than
+     * 32 MB by default.
+     */
+    public synchronized void setScryptCost(int cost) {
+        if (cost < 2 || Integer.bitCount(cost) != 1) {
+            throw new IllegalArgumentException(
+                    "The scrypt cost must be a power of two: " + cost);
+        }
+        this.scryptCost = cost;
+        clearCache();
+    }
+
+    public synchronized int getScryptBlockSize() {
+        return scryptBlockSize;
+    }
+
+    public synchronized void setScryptBlockSize(int blockSize) {
+        this.scryptBlockSize = Math.max(1, blockSize);
+        clearCache();
+    }
+
+    public synchronized int getScryptParallelization() {
+        return scryptParallelization;
+    }
+
+    public synchronized void setScryptParallelization(int parallelization) {
+        this.scryptParallelization = Math.max(1, parallelization);
+        clearCache();
+    }
+
+    /**
+     * Tells whether all the keys encrypted with the same password share
+     * the salt, and therefore the derived key.
+     */
+    public synchronized void setSharedSalt(boolean sharedSalt) {
+        this.sharedSalt = sharedSalt;
+        clearCache();
+    }
+
+    /**
+     * Sets the cost of the derivation: the iteration count of PBKDF2, or
+     * the cost (N) of scrypt.
+     */
+    public void setCost(int cost) {
+        if (scheme.isScrypt()) {
+            setScryptCost(cost);
+        } else {
+            setIterations(cost);
+        }
+    }
+
+    /**
+     * Forgets the cached password and derived key.
+     */
+    public synchronized void clearCache() {
+        if (cachedPassword != null) {
+            Arrays.fill(cachedPassword, '\0');
+            cachedPassword = null;
+        }
+        cachedKey = null;
+    }
+
+    /**
+     * Returns the PEM object of the key encrypted with the password.
+     */
+    public PemObjectGenerator encrypt(Key key, char[] password)
+            throws IOException, GeneralSecurityException {
+        if (scheme == Scheme.LEGACY) {
+            JcePEMEncryptorBuilder builder
+                    = new JcePEMEncryptorBuilder("DES-EDE3-CBC");
+            builder.setSecureRandom(CryptoCache.getSecureRandom());
+            PEMEncryptor encryptor = builder.build(password);
+            return new JcaMiscPEMGenerator(key, encryptor);
+        }
+        DerivedKey dk = derive(password);
+        byte[] iv = new byte[scheme.isGcm() ? 12 : 16];
+        CryptoCache.getSecureRandom().nextBytes(iv);
+        AlgorithmIdentifier encryption = scheme.isGcm()
+                ? new AlgorithmIdentifier(NISTObjectIdentifiers.id_aes256_GCM,
+                        new GCMParameters(iv, GCM_TAG_SIZE))
+                : new AlgorithmIdentifier(NISTObjectIdentifiers.id_aes256_CBC,
+                        new DEROctetString(iv));
+        Cipher cipher = cipher(encryption, Cipher.ENCRYPT_MODE, dk.key);
+        byte[] data = cipher.doFinal(key.getEncoded());
+        AlgorithmIdentifier algorithm = new AlgorithmIdentifier(
+                PKCSObjectIdentifiers.id_PBES2, new PBES2Parameters(
+                        dk.kdf, EncryptionScheme.getInstance(
+                                encryption.toASN1Primitive())));
+        return new PemObject("ENCRYPTED PRIVATE KEY",
+                new EncryptedPrivateKeyInfo(algorithm, data).getEncoded());
+    }
+
+    /**
+     * Decrypts a PKCS#8 encrypted private key. PBES2 with PBKDF2 or scrypt
+     * and AES in CBC or GCM mode is handled here, other schemes are left to
+     * BouncyCastle.
+     */
+    public static PrivateKeyInfo decrypt(PKCS8EncryptedPrivateKeyInfo info,
+            char[] password) throws IOException, GeneralSecurityException {
+        EncryptedPrivateKeyInfo epki = info.toASN1Structure();
+        AlgorithmIdentifier algorithm = epki.getEncryptionAlgorithm();
+        if (algorithm.getAlgorithm().equals(PKCSObjectIdentifiers.id_PBES2)) {
+            PBES2Parameters params
+                    = PBES2Parameters.getInstance(algorithm.getParameters());
+            AlgorithmIdentifier encryption = AlgorithmIdentifier.getInstance(
+                    params.getEncryptionScheme().toASN1Primitive());
+            byte[] key = derive(params.getKeyDerivationFunc(), password);
+            if (key != null && isAes256(encryption)) {
+                Cipher cipher = cipher(encryption, Cipher.DECRYPT_MODE, key);
+                return PrivateKeyInfo.getInstance(
+                        cipher.doFinal(epki.getEncryptedData()));
+            }
+        }
+        try {
+            return info.decryptPrivateKeyInfo(
+                    new JceOpenSSLPKCS8DecryptorProviderBuilder()
+                            .setProvider("BC").build(password));
+        } catch (OperatorCreationException | PKCSException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+    }
+
+    private DerivedKey derive(char[] password) {
+        int n, r, p, count;
+        boolean shared;
+        synchronized (this) {
+            if (cachedKey != null && Arrays.equals(password, cachedPassword)) {
+                return cachedKey;
+            }
+            n = scryptCost;
+            r = scryptBlockSize;
+            p = scryptParallelization;
+            count = iterations;
+            shared = sharedSalt;
+            if (shared) {
+                // the other threads wait for the key rather than derive it
+                DerivedKey dk = derive(password, n, r, p, count);
+                clearCache();
+                cachedPassword = password.clone();
+                cachedKey = dk;
+                return dk;
+            }
+        }
+        return derive(password, n, r, p, count);
+    }
+
+    private DerivedKey derive(char[] password, int n, int r, int p,
+            int count) {
+        byte[] salt = new byte[SALT_SIZE];
+        CryptoCache.getSecureRandom().nextBytes(salt);
+        KeyDerivationFunc kdf;
+        if (scheme.isScrypt()) {
+            // scrypt-params, RFC 7914
+            ASN1EncodableVector params = new ASN1EncodableVector();
+            params.add(new DEROctetString(salt));
+            params.add(new ASN1Integer(n));
+            params.add(new ASN1Integer(r));
+            params.add(new ASN1Integer(p));
+            params.add(new ASN1Integer(KEY_SIZE));
+            kdf = new KeyDerivationFunc(ID_SCRYPT, new DERSequence(params));
+        } else {
+            kdf = new KeyDerivationFunc(PKCSObjectIdentifiers.id_PBKDF2,
+                    new PBKDF2Params(salt, count, KEY_SIZE, HMAC_SHA256));
+        }
+        return new DerivedKey(kdf, derive(kdf, password));
+    }
+
+    /**
+     * Computes the key of a PBKDF2 or scrypt key derivation function, or
+     * returns null for other functions.
+     */
+    private static byte[] derive(KeyDerivationFunc kdf, char[] password) {
+        byte[] pwd = PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(password);
+        try {
+            if (kdf.getAlgorithm().equals(PKCSObjectIdentifiers.id_PBKDF2)) {
+                PBKDF2Params params = PBKDF2Params.getInstance(
+                        kdf.getParameters());
+                if (!params.isDefaultPrf() && !params.getPrf().getAlgorithm()
+                        .equals(PKCSObjectIdentifiers.id_hmacWithSHA256)) {
+                    return null;
+                }
+                PKCS5S2ParametersGenerator gen = params.isDefaultPrf()
+                        ? new PKCS5S2ParametersGenerator()
+                        : new PKCS5S2ParametersGenerator(new SHA256Digest());
+                gen.init(pwd, params.getSalt(),
+                        params.getIterationCount().intValue());
+                return ((KeyParameter)gen.generateDerivedParameters(
+                        KEY_SIZE*8)).getKey();
+            } else if (kdf.getAlgorithm().equals(ID_SCRYPT)) {
+                ASN1Sequence seq = ASN1Sequence.getInstance(
+                        kdf.getParameters());
+                return SCrypt.generate(pwd,
+                        ASN1OctetString.getInstance(
+                                seq.getObjectAt(0)).getOctets(),
+                        intValue(seq, 1), intValue(seq, 2), intValue(seq, 3),
+                        KEY_SIZE);
+            }
+            return null;
+        } finally {
+            Arrays.fill(pwd, (byte)0);
+        }
+    }
+
+    private static int intValue(ASN1Sequence seq, int i) {
+        return ASN1Integer.getInstance(seq.getObjectAt(i))
+                .getValue().intValue();
+    }
+
+    private static boolean isAes256(AlgorithmIdentifier encryption) {
+        ASN1ObjectIdentifier oid = encryption.getAlgorithm();
+        return oid.equals(NISTObjectIdentifiers.id_aes256_CBC)
+                || oid.equals(NISTObjectIdentifiers.id_aes256_GCM);
+    }
+
+    private static Cipher cipher(AlgorithmIdentifier encryption, int mode,
+            byte[] key) throws GeneralSecurityException {
+        SecretKeySpec spec = new SecretKeySpec(key, "AES");
+        Cipher cipher;
+        if (encryption.getAlgorithm().equals(
+                NISTObjectIdentifiers.id_aes256_GCM)) {
+            GCMParameters params
+                    = GCMParameters.getInstance(encryption.getParameters());
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, spec, new GCMParameterSpec(
+                    params.getIcvLen()*8, params.getNonce()));
+        } else {
+            byte[] iv = ASN1OctetString.getInstance(
+                    encryption.getParameters()).getOctets();
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(mode, spec, new IvParameterSpec(iv));
+        }
+        return cipher;
+    }
+
+    private static class DerivedKey {
+        private final KeyDerivationFunc kdf;
+        private final byte[] key;
+
+        private DerivedKey(KeyDerivationFunc kdf, byte[] key) {
+            this.kdf = kdf;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+
+/**
+ * A pool of pre-generated key pairs. Each kind of key (algorithm and key
+ * size, or algorithm and named curve) has its own queue, which is kept
+ * filled up to a target depth by low-priority background threads.
+ * Kinds are registered either explicitly with setDepth, or on the first
+ * call to take.
+ */
+public class KeyPairPool {
+    private static final Logger LOG
+            = Logger.getLogger(KeyPairPool.class.getName());
+
+    private final Map<String,Slot> slots = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final int defaultDepth;
+
+    public KeyPairPool(int threads, int defaultDepth) {
+        this.defaultDepth = defaultDepth;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads),
+                (Runnable r) -> {
+                    Thread thread = new Thread(r, "key-pair-pool");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    /**
+     * Sets the target depth for a kind of key, given as "algorithm:size" or
+     * "algorithm:curve", for instance "RSA:2048" or "ECDSA:prime256v1". EC
+     * is accepted as a synonym of ECDSA.
+     */
+    public void setDepth(String spec, int depth) {
+        int ix = spec.indexOf(':');
+        if (ix < 0) {
+            throw new IllegalArgumentException("Invalid key spec: " + spec);
+        }
+        String algorithm = spec.substring(0, ix).trim();
+        String param = spec.substring(ix+1).trim();
+        Slot slot = param.length() > 0 && Character.isDigit(param.charAt(0))
+                ? getSlot(algorithm, Integer.parseInt(param), null)
+                : getSlot(algorithm, 0, param);
+        slot.depth = depth;
+        slot.refill();
+    }
+
+    public KeyPair take(String algorithm, int keySize)
+            throws GeneralSecurityException {
+        return getSlot(algorithm, keySize, null).take();
+    }
+
+    public KeyPair take(String algorithm, String curve)
+            throws GeneralSecurityException {
+        return getSlot(algorithm, 0, curve).take();
+    }
+
+    public int available(String algorithm, int keySize) {
+        Slot slot = slots.get(canonical(algorithm) + ":" + keySize);
+        return slot == null ? 0 : slot.queue.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Slot getSlot(String algorithm, int keySize, String curve) {
+        String alg = canonical(algorithm);
+        String key = alg + ":" + (curve == null ? keySize : curve);
+        return slots.computeIfAbsent(key,
+                (String k) -> new Slot(alg, keySize, curve));
+    }
+
+    /**
+     * Returns the algorithm name used by the certificate builder, so that
+     * the keys of "EC:" specs are actually taken.
+     */
+    private static String canonical(String algorithm) {
+        String name = algorithm.toUpperCase(Locale.ENGLISH);
+        return name.equals("EC") ? "ECDSA" : name;
+    }
+
+    private class Slot {
+        private final String algorithm;
+        private final int keySize;
+        private final String curve;
+        private final BlockingQueue<KeyPair> queue
+                = new LinkedBlockingQueue<>();
+        private final AtomicBoolean filling = new AtomicBoolean();
+        private volatile int depth = defaultDepth;
+
+        private Slot(String algorithm, int keySize, String curve) {
+            this.algorithm = algorithm;
+            this.keySize = keySize;
+            this.curve = curve;
+        }
+
+        private KeyPair take() throws GeneralSecurityException {
+            KeyPair pair = queue.poll();
+            refill();
+            return pair != null ? pair : generate();
+        }
+
+        private void refill() {
+            if (queue.size() < depth && filling.compareAndSet(false, true)) {
+                executor.execute(this::fill);
+            }
+        }
+
+        private void fill() {
+            try {
+                while (queue.size() < depth) {
+                    queue.add(generate());
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                LOG.log(Level.SEVERE, "Cannot generate key pair", e);
+                return;
+            } finally {
+                filling.set(false);
+            }
+            // a key may have been taken between the test and the reset
+            refill();
+        }
+
+        private KeyPair generate() throws GeneralSecurityException {
+            if (curve == null) {
+                return X509CertificateBuilder.generateKeyPair(
+                        algorithm, keySize, null);
+            }
+            ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec(curve);
+            if (ecSpec == null) {
+                throw new GeneralSecurityException("Unknown curve " + curve);
+            }
+            return X509CertificateBuilder.generateKeyPair(
+                    algorithm, 0, ecSpec);
+        }
+    }
+}
@@ -27,15 +27,11 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 public class KeyStoreEntry {
     public static final Comparator<KeyStoreEntry> TYPE_ALIAS_ORDER;
     public static final Comparator<KeyStoreEntry> ALIAS_ORDER;
-    private static final Pattern RDN_PATTERN
-            = Pattern.compile("^\\s*([^\\s,=]+)\\s*=\\s*([^,]*)\\s*(?:,(.*))?$");
 
     private final String alias;
     private final boolean key;
@@ -47,21 +43,17 @@ public class KeyStoreEntry {
 
     public String subjectName(KeyStore keystore)
             throws KeyStoreException {
-        X509Certificate cert = (X509Certificate)keystore.getCertificate(alias);
-        String name = cert.getSubjectX500Principal().getName();
-        while (name != null) {
-            Matcher matcher = RDN_PATTERN.matcher(name);
-            if (!matcher.matches()) {
-                break;
-            }
-            String key = matcher.group(1);
-            String value = matcher.group(2);
-            name = matcher.group(3);
-            if (key.equalsIgnoreCase("cn")) {
-                return value;
-            }
-        }
-        return alias;
+        return subjectName(getCertificate(keystore));
+    }
+
+    public String subjectName(KeyStoreIndex index) {
+        return subjectName(index.getCertificate(alias));
+    }
+
+    private String subjectName(X509Certificate cert) {
+        String cn = cert == null
+                ? null : DistinguishedName.of(cert).getCommonName();
+        return cn == null ? alias : cn;
     }
 
     public X509Certificate getCertificate(KeyStore keystore)
@@ -115,7 +107,8 @@ public class KeyStoreEntry {
         throw new UnsupportedOperationException("clone not implemented");
     }
 
-    public void addTo(KeyStore ks, char[] password) throws KeyStoreException {
+    public void addTo(KeyStoreIndex index, char[] password)
+            throws KeyStoreException {
         throw new UnsupportedOperationException("addTo not implemented");
     }
 
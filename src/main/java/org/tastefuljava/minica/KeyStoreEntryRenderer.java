@@ -19,6 +19,8 @@ package org.tastefuljava.minica;
 
 import java.awt.Component;
 import java.awt.SystemColor;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
@@ -36,12 +38,29 @@ public class KeyStoreEntryRenderer
     private static final Icon CERT_ICON = new ImageIcon(
             KeyStoreEntryRenderer.class.getResource("/images/cert-sn.png"));
 
+    private static final DateFormat DATE_FORMAT
+            = new SimpleDateFormat("dd-MM-yyyy");
+
     private final JLabel label = new JLabel();
 
     @Override
     public Component getListCellRendererComponent(JList list, Object value,
             int index, boolean isSelected, boolean hasFocus) {
-        return getCellRenderer(list, value, isSelected, hasFocus);
+        Component comp = getCellRenderer(list, value, isSelected, hasFocus);
+        if (list.getModel() instanceof KeyStoreListModel) {
+            KeyStoreListModel model = (KeyStoreListModel)list.getModel();
+            // the prototype value is rendered with an index of 0
+            KeyStoreListModel.Info info = index < model.getSize()
+                    && model.getElementAt(index) == value
+                    ? model.getInfo(index) : null;
+            if (info != null) {
+                label.setToolTipText(toolTip(info));
+                if (info.isExpired() && !isSelected) {
+                    label.setForeground(SystemColor.textInactiveText);
+                }
+            }
+        }
+        return comp;
     }
 
     @Override
@@ -50,6 +69,19 @@ public class KeyStoreEntryRenderer
         return getCellRenderer(table, value, isSelected, hasFocus);
     }
 
+    private String toolTip(KeyStoreListModel.Info info) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(label.getText());
+        if (info.getCommonName() != null) {
+            buf.append(" - ").append(info.getCommonName());
+        }
+        if (info.getNotAfter() != null) {
+            buf.append(info.isExpired() ? " - expired " : " - expires ");
+            buf.append(DATE_FORMAT.format(info.getNotAfter()));
+        }
+        return buf.toString();
+    }
+
     private Component getCellRenderer(JComponent comp, Object value,
             boolean isSelected, boolean cellHasFocus) {
         if (value instanceof KeyStoreEntry) {
@@ -70,6 +102,7 @@ public class KeyStoreEntryRenderer
         label.setEnabled(comp.isEnabled());
         label.setFont(comp.getFont());
         label.setOpaque(true);
+        label.setToolTipText(null);
         return label;
     }
 }
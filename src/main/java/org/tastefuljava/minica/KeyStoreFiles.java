@@ -0,0 +1,102 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+public class KeyStoreFiles {
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private KeyStoreFiles() {
+    }
+
+    /**
+     * Returns the keystore type of a file, according to its extension.
+     */
+    public static String getType(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".p12") || name.endsWith(".pfx")
+                ? "PKCS12" : "JKS";
+    }
+
+    /**
+     * Loads a keystore file. The password may be null, in which case the
+     * integrity of the keystore is not checked.
+     */
+    public static KeyStore load(File file, char[] password,
+            ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        KeyStore keystore = KeyStore.getInstance(getType(file));
+        try (InputStream stream = new FileInputStream(file)) {
+            InputStream in = new BufferedInputStream(stream);
+            if (listener != null) {
+                in = new ProgressInputStream(in, file.length(), listener);
+            }
+            keystore.load(in, password);
+        }
+        return keystore;
+    }
+
+    /**
+     * Writes a keystore file. The keystore is written to a temporary file,
+     * which then replaces the keystore file, so that the file is left
+     * untouched if the operation fails or is cancelled. The previous
+     * version of the file is kept as a .bak file.
+     */
+    public static void store(KeyStore keystore, File file, char[] password,
+            ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                OutputStream out = new BufferedOutputStream(stream);
+                if (listener != null) {
+                    // the size of the previous version is the best estimate
+                    out = new ProgressOutputStream(out, file.length(),
+                            listener);
+                }
+                keystore.store(out, password);
+                out.flush();
+                stream.getFD().sync();
+            }
+            if (file.isFile()) {
+                File backup = new File(file.getParentFile(),
+                        file.getName() + ".bak");
+                Files.copy(file.toPath(), backup.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
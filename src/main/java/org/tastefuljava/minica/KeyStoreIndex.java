@@ -0,0 +1,504 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * In-memory index over the entries of a keystore. Entries can be looked up
+ * by alias, serial number, subject, issuer, subject and authority key
+ * identifiers, public key, and SHA-256 fingerprint of their certificate. All
+ * modifications of the keystore must go through the index, which is then
+ * updated incrementally.
+ */
+public class KeyStoreIndex {
+    private static final Logger LOG
+            = Logger.getLogger(KeyStoreIndex.class.getName());
+
+    private final KeyStore keystore;
+    private final Map<String,Item> items = new HashMap<>();
+    private final NavigableSet<KeyStoreEntry> entries
+            = new TreeSet<>(KeyStoreEntry.TYPE_ALIAS_ORDER);
+    private final Map<BigInteger,Set<String>> bySerial = new HashMap<>();
+    private final Map<X500Principal,Set<String>> bySubject = new HashMap<>();
+    private final Map<X500Principal,Set<String>> byIssuer = new HashMap<>();
+    private final Map<String,Set<String>> bySki = new HashMap<>();
+    private final Map<String,Set<String>> byAki = new HashMap<>();
+    private final Map<String,Set<String>> byFingerprint = new HashMap<>();
+    private final Map<String,Set<String>> byKeyHash = new HashMap<>();
+    private final KeyCache keys = new KeyCache(KeyCache.DEFAULT_TTL);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private JournalStore journal;
+
+    /**
+     * Notified when an entry has been added, replaced or deleted, in the
+     * thread that modified the index.
+     */
+    public interface Listener {
+        void entryChanged(String alias);
+    }
+
+    public KeyStoreIndex(KeyStore keystore) throws KeyStoreException {
+        this(keystore, null);
+    }
+
+    /**
+     * Builds the index, passing each entry to the consumer as soon as it
+     * has been indexed, in the order of the keystore.
+     */
+    public KeyStoreIndex(KeyStore keystore, Consumer<KeyStoreEntry> consumer)
+            throws KeyStoreException {
+        this.keystore = keystore;
+        rebuild(consumer);
+    }
+
+    public KeyStore getKeyStore() {
+        return keystore;
+    }
+
+    /**
+     * Returns the keys unlocked during this session. A key is locked when
+     * its entry is modified through the index.
+     */
+    public KeyCache getKeyCache() {
+        return keys;
+    }
+
+    /**
+     * Returns the private key of an entry, unlocking it with the password
+     * if needed. The password is erased.
+     */
+    public synchronized PrivateKey getPrivateKey(String alias,
+            char[] password) throws GeneralSecurityException {
+        return keys.unlock(keystore, alias, password);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized JournalStore getJournal() {
+        return journal;
+    }
+
+    /**
+     * Sets the journal to which all subsequent modifications are appended,
+     * before being applied to the keystore.
+     */
+    public synchronized void setJournal(JournalStore journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Re-reads the whole keystore. Only needed when the keystore has been
+     * modified without going through the index.
+     */
+    public void rebuild() throws KeyStoreException {
+        rebuild(null);
+    }
+
+    private synchronized void rebuild(Consumer<KeyStoreEntry> consumer)
+            throws KeyStoreException {
+        items.clear();
+        entries.clear();
+        bySerial.clear();
+        bySubject.clear();
+        byIssuer.clear();
+        bySki.clear();
+        byAki.clear();
+        byFingerprint.clear();
+        byKeyHash.clear();
+        for (Enumeration<String> enm = keystore.aliases();
+                enm.hasMoreElements(); ) {
+            KeyStoreEntry entry = add(enm.nextElement());
+            if (consumer != null) {
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public synchronized boolean containsAlias(String alias) {
+        return items.containsKey(key(alias));
+    }
+
+    public synchronized KeyStoreEntry[] getAll() {
+        return entries.toArray(new KeyStoreEntry[entries.size()]);
+    }
+
+    public synchronized KeyStoreEntry[] getAllKeys() {
+        List<KeyStoreEntry> result = new ArrayList<>();
+        for (KeyStoreEntry entry: entries) {
+            if (!entry.isKey()) {
+                // keys are sorted first
+                break;
+            }
+            result.add(entry);
+        }
+        return result.toArray(new KeyStoreEntry[result.size()]);
+    }
+
+    public synchronized KeyStoreEntry[] getAllCerts() {
+        List<KeyStoreEntry> result = new ArrayList<>();
+        for (KeyStoreEntry entry: entries.descendingSet()) {
+            if (entry.isKey()) {
+                break;
+            }
+            result.add(entry);
+        }
+        Collections.reverse(result);
+        return result.toArray(new KeyStoreEntry[result.size()]);
+    }
+
+    public synchronized KeyStoreEntry get(String alias) {
+        Item item = items.get(key(alias));
+        return item == null ? null : item.entry;
+    }
+
+    public synchronized X509Certificate getCertificate(String alias) {
+        Item item = items.get(key(alias));
+        return item == null ? null : item.cert;
+    }
+
+    public synchronized List<KeyStoreEntry> findBySerial(BigInteger sn) {
+        return lookup(bySerial, sn);
+    }
+
+    public synchronized List<KeyStoreEntry> findBySubject(
+            X500Principal subject) {
+        return lookup(bySubject, subject);
+    }
+
+    public synchronized List<KeyStoreEntry> findByIssuer(
+            X500Principal issuer) {
+        return lookup(byIssuer, issuer);
+    }
+
+    public synchronized List<KeyStoreEntry> findBySubjectKeyId(byte[] ski) {
+        return lookup(bySki, Hex.toHexString(ski));
+    }
+
+    public synchronized List<KeyStoreEntry> findByAuthorityKeyId(
+            byte[] aki) {
+        return lookup(byAki, Hex.toHexString(aki));
+    }
+
+    public synchronized List<KeyStoreEntry> findByFingerprint(
+            byte[] fingerprint) {
+        return lookup(byFingerprint, Hex.toHexString(fingerprint));
+    }
+
+    public synchronized List<KeyStoreEntry> findByPublicKey(PublicKey key) {
+        return lookup(byKeyHash, Hex.toHexString(keyHash(key)));
+    }
+
+    public synchronized void setKeyEntry(String alias, Key key,
+            char[] password, Certificate[] chain) throws KeyStoreException {
+        if (journal != null) {
+            try {
+                journal.appendKeyEntry(alias, key, password, chain);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new KeyStoreException(e.getMessage(), e);
+            }
+        }
+        keystore.setKeyEntry(alias, key, password, chain);
+        keys.lock(alias);
+        remove(alias);
+        add(alias);
+        fireEntryChanged(alias);
+    }
+
+    public synchronized void setCertificateEntry(String alias,
+            Certificate cert) throws KeyStoreException {
+        if (journal != null) {
+            try {
+                journal.appendCertificateEntry(alias, cert);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new KeyStoreException(e.getMessage(), e);
+            }
+        }
+        keystore.setCertificateEntry(alias, cert);
+        keys.lock(alias);
+        remove(alias);
+        add(alias);
+        fireEntryChanged(alias);
+    }
+
+    /**
+     * Adds many certificate entries at once. With a journal, the entries
+     * are appended in a single batch, which is only replayed if it was
+     * completely written, should the process crash.
+     */
+    public synchronized void setCertificateEntries(
+            Map<String,? extends Certificate> certs)
+            throws KeyStoreException {
+        if (journal != null) {
+            try {
+                journal.appendCertificateEntries(certs);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new KeyStoreException(e.getMessage(), e);
+            }
+        }
+        for (Map.Entry<String,? extends Certificate> e: certs.entrySet()) {
+            String alias = e.getKey();
+            keystore.setCertificateEntry(alias, e.getValue());
+            keys.lock(alias);
+            remove(alias);
+            add(alias);
+            fireEntryChanged(alias);
+        }
+    }
+
+    public synchronized void deleteEntry(String alias)
+            throws KeyStoreException {
+        if (journal != null) {
+            try {
+                journal.appendDelete(alias);
+            } catch (IOException e) {
+                throw new KeyStoreException(e.getMessage(), e);
+            }
+        }
+        keystore.deleteEntry(alias);
+        keys.lock(alias);
+        remove(alias);
+        fireEntryChanged(alias);
+    }
+
+    /**
+     * Renames an entry. The password is only needed for key entries.
+     */
+    public synchronized void rename(String oldName, String newName,
+            char[] password) throws GeneralSecurityException {
+        if (keystore.containsAlias(newName)) {
+            throw new KeyStoreException("Alias already exists: " + newName);
+        }
+        if (keystore.isKeyEntry(oldName)) {
+            Key key = keystore.getKey(oldName, password);
+            Certificate[] chain = keystore.getCertificateChain(oldName);
+            setKeyEntry(newName, key, password, chain);
+        } else {
+            setCertificateEntry(newName, keystore.getCertificate(oldName));
+        }
+        deleteEntry(oldName);
+    }
+
+    public synchronized void changePassword(String alias, char[] password,
+            char[] newPassword) throws GeneralSecurityException {
+        Key key = keystore.getKey(alias, password);
+        if (key == null) {
+            throw new KeyStoreException("Not a key entry: " + alias);
+        }
+        setKeyEntry(alias, key, newPassword,
+                keystore.getCertificateChain(alias));
+    }
+
+    private void fireEntryChanged(String alias) {
+        for (Listener listener: listeners) {
+            listener.entryChanged(alias);
+        }
+    }
+
+    public static byte[] fingerprint(X509Certificate cert)
+            throws CertificateEncodingException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(
+                    cert.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of the encoded public key.
+     */
+    public static byte[] keyHash(PublicKey key) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(
+                    key.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public static byte[] getSubjectKeyId(X509Certificate cert)
+            throws IOException {
+        byte[] ext = cert.getExtensionValue(
+                Extension.subjectKeyIdentifier.getId());
+        return ext == null ? null : SubjectKeyIdentifier.getInstance(
+                JcaX509ExtensionUtils.parseExtensionValue(ext))
+                .getKeyIdentifier();
+    }
+
+    public static byte[] getAuthorityKeyId(X509Certificate cert)
+            throws IOException {
+        byte[] ext = cert.getExtensionValue(
+                Extension.authorityKeyIdentifier.getId());
+        return ext == null ? null : AuthorityKeyIdentifier.getInstance(
+                JcaX509ExtensionUtils.parseExtensionValue(ext))
+                .getKeyIdentifier();
+    }
+
+    private List<KeyStoreEntry> lookup(Map<?,Set<String>> map, Object key) {
+        Set<String> aliases = map.get(key);
+        if (aliases == null) {
+            return Collections.emptyList();
+        }
+        List<KeyStoreEntry> result = new ArrayList<>(aliases.size());
+        for (String alias: aliases) {
+            result.add(items.get(alias).entry);
+        }
+        return result;
+    }
+
+    private KeyStoreEntry add(String alias) throws KeyStoreException {
+        Certificate c = keystore.getCertificate(alias);
+        X509Certificate cert = c instanceof X509Certificate
+                ? (X509Certificate)c : null;
+        Item item = new Item(new KeyStoreEntry(alias,
+                keystore.isKeyEntry(alias)), cert);
+        String key = key(alias);
+        items.put(key, item);
+        entries.add(item.entry);
+        if (cert != null) {
+            put(bySerial, cert.getSerialNumber(), key);
+            put(bySubject, cert.getSubjectX500Principal(), key);
+            put(byIssuer, cert.getIssuerX500Principal(), key);
+            put(bySki, item.ski, key);
+            put(byAki, item.aki, key);
+            put(byFingerprint, item.fingerprint, key);
+            put(byKeyHash, item.keyHash, key);
+        }
+        return item.entry;
+    }
+
+    private void remove(String alias) {
+        String key = key(alias);
+        Item item = items.remove(key);
+        if (item != null) {
+            entries.remove(item.entry);
+            X509Certificate cert = item.cert;
+            if (cert != null) {
+                remove(bySerial, cert.getSerialNumber(), key);
+                remove(bySubject, cert.getSubjectX500Principal(), key);
+                remove(byIssuer, cert.getIssuerX500Principal(), key);
+                remove(bySki, item.ski, key);
+                remove(byAki, item.aki, key);
+                remove(byFingerprint, item.fingerprint, key);
+                remove(byKeyHash, item.keyHash, key);
+            }
+        }
+    }
+
+    private static <K> void put(Map<K,Set<String>> map, K key,
+            String alias) {
+        if (key != null) {
+            Set<String> aliases = map.get(key);
+            if (aliases == null) {
+                aliases = new LinkedHashSet<>(2);
+                map.put(key, aliases);
+            }
+            aliases.add(alias);
+        }
+    }
+
+    private static <K> void remove(Map<K,Set<String>> map, K key,
+            String alias) {
+        if (key != null) {
+            Set<String> aliases = map.get(key);
+            if (aliases != null) {
+                aliases.remove(alias);
+                if (aliases.isEmpty()) {
+                    map.remove(key);
+                }
+            }
+        }
+    }
+
+    private static String key(String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static class Item {
+        private final KeyStoreEntry entry;
+        private final X509Certificate cert;
+        private String ski;
+        private String aki;
+        private String fingerprint;
+        private String keyHash;
+
+        private Item(KeyStoreEntry entry, X509Certificate cert) {
+            this.entry = entry;
+            this.cert = cert;
+            if (cert != null) {
+                try {
+                    fingerprint = Hex.toHexString(fingerprint(cert));
+                    keyHash = Hex.toHexString(keyHash(cert.getPublicKey()));
+                    byte[] id = getSubjectKeyId(cert);
+                    ski = id == null ? null : Hex.toHexString(id);
+                    id = getAuthorityKeyId(cert);
+                    aki = id == null ? null : Hex.toHexString(id);
+                } catch (IOException | CertificateEncodingException e) {
+                    LOG.log(Level.WARNING, "Invalid certificate "
+                            + entry.getAlias(), e);
+                }
+            }
+        }
+    }
+}
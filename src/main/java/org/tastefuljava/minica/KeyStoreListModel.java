@@ -0,0 +1,202 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * List model over the entries of a keystore index, sorted keys first, then
+ * by alias. Entries are added and removed individually, without rebuilding
+ * the list. The information displayed for each entry (common name, expiry
+ * date) is only computed when a row is rendered, and is kept in a bounded
+ * cache, from which it is dropped when the index reports a change to the
+ * entry.
+ */
+public class KeyStoreListModel extends AbstractListModel<KeyStoreEntry>
+        implements KeyStoreIndex.Listener {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_CACHED = 1024;
+
+    private final KeyStoreIndex index;
+    private final List<KeyStoreEntry> entries;
+    private final Map<String,Info> cache
+            = new LinkedHashMap<String,Info>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Info> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /**
+     * Creates an empty model, to which entries can be appended while a
+     * keystore is being loaded.
+     */
+    public KeyStoreListModel() {
+        this.index = null;
+        this.entries = new ArrayList<>();
+    }
+
+    public KeyStoreListModel(KeyStoreIndex index) {
+        this.index = index;
+        this.entries = new ArrayList<>(Arrays.asList(index.getAll()));
+        index.addListener(this);
+    }
+
+    /**
+     * Stops listening to the index, when the model is replaced.
+     */
+    public void dispose() {
+        if (index != null) {
+            index.removeListener(this);
+        }
+    }
+
+    @Override
+    public void entryChanged(final String alias) {
+        // the index can be modified by background tasks
+        SwingUtilities.invokeLater(() -> {
+            cache.remove(alias.toLowerCase(Locale.ENGLISH));
+            for (boolean key: new boolean[] {true, false}) {
+                int row = indexOf(new KeyStoreEntry(alias, key));
+                if (row >= 0) {
+                    fireContentsChanged(this, row, row);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public KeyStoreEntry getElementAt(int row) {
+        return entries.get(row);
+    }
+
+    public int indexOf(KeyStoreEntry entry) {
+        int row = Collections.binarySearch(entries, entry,
+                KeyStoreEntry.TYPE_ALIAS_ORDER);
+        return row < 0 ? -1 : row;
+    }
+
+    /**
+     * Appends entries at the end of the list, without sorting them.
+     */
+    public void append(Collection<KeyStoreEntry> added) {
+        if (!added.isEmpty()) {
+            int first = entries.size();
+            entries.addAll(added);
+            fireIntervalAdded(this, first, entries.size()-1);
+        }
+    }
+
+    /**
+     * Inserts an entry at its place in the list, and returns its position.
+     */
+    public int add(KeyStoreEntry entry) {
+        int row = Collections.binarySearch(entries, entry,
+                KeyStoreEntry.TYPE_ALIAS_ORDER);
+        cache.remove(key(entry));
+        if (row >= 0) {
+            entries.set(row, entry);
+            fireContentsChanged(this, row, row);
+        } else {
+            row = -row-1;
+            entries.add(row, entry);
+            fireIntervalAdded(this, row, row);
+        }
+        return row;
+    }
+
+    public void remove(KeyStoreEntry entry) {
+        int row = indexOf(entry);
+        if (row >= 0) {
+            entries.remove(row);
+            cache.remove(key(entry));
+            fireIntervalRemoved(this, row, row);
+        }
+    }
+
+    /**
+     * Returns the information about the entry at the given row, or null
+     * if it is not available.
+     */
+    public Info getInfo(int row) {
+        if (index == null || row < 0 || row >= entries.size()) {
+            return null;
+        }
+        KeyStoreEntry entry = entries.get(row);
+        String key = key(entry);
+        Info info = cache.get(key);
+        if (info == null) {
+            info = new Info(entry, index.getCertificate(entry.getAlias()));
+            cache.put(key, info);
+        }
+        return info;
+    }
+
+    private static String key(KeyStoreEntry entry) {
+        return entry.getAlias().toLowerCase(Locale.ENGLISH);
+    }
+
+    public static class Info {
+        private final boolean key;
+        private final String commonName;
+        private final Date notAfter;
+
+        private Info(KeyStoreEntry entry, X509Certificate cert) {
+            key = entry.isKey();
+            if (cert == null) {
+                commonName = null;
+                notAfter = null;
+            } else {
+                commonName = DistinguishedName.of(cert).getCommonName();
+                notAfter = cert.getNotAfter();
+            }
+        }
+
+        public boolean isKey() {
+            return key;
+        }
+
+        public String getCommonName() {
+            return commonName;
+        }
+
+        public Date getNotAfter() {
+            return notAfter;
+        }
+
+        public boolean isExpired() {
+            return notAfter != null && notAfter.before(new Date());
+        }
+    }
+}
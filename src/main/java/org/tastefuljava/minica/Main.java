@@ -19,22 +19,31 @@ package org.tastefuljava.minica;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.Security;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class Main {
     private static final Logger LOG
             = Logger.getLogger(Main.class.getName());
 
     public static void main(String[] args) {
+        CertificateAuthority.installProvider();
+        if (args.length > 0) {
+            System.exit(Cli.run(args));
+        }
+        startGui();
+    }
+
+    /**
+     * Kept apart from main, so that the command-line interface does not
+     * load AWT.
+     */
+    private static void startGui() {
         try {
-            Security.addProvider(new BouncyCastleProvider());
             new MainFrame().setVisible(true);
         } catch (IOException | GeneralSecurityException e) {
             LOG.log(Level.SEVERE, "Exception in main", e);
@@ -17,23 +17,19 @@
 */
 package org.tastefuljava.minica;
 
+import java.awt.Component;
+import java.awt.Cursor;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.DSAPublicKey;
@@ -41,31 +37,34 @@ import java.security.interfaces.RSAPublicKey;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.DefaultListModel;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.ToolTipManager;
 import javax.swing.filechooser.FileFilter;
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
-import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.pkcs.PKCS10CertificationRequest;
-import org.bouncycastle.pkcs.PKCS10CertificationRequestBuilder;
-import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
 
 public class MainFrame extends javax.swing.JFrame {
+    private static final Logger LOG
+            = Logger.getLogger(MainFrame.class.getName());
     private static final DateFormat dateFormat
             = new SimpleDateFormat("dd-MM-yyyy");
 
     private KeyStore keystore;
+    private KeyStoreIndex index;
     private File keystoreFile;
     private boolean changed;
     private final File confFile = new File(System.getProperty("user.home"),
             "minica.properties");
     private final Configuration conf = new Configuration(confFile);
+    private KeyPairPool keyPairPool;
+    private SerialNumberAllocator serials;
 
     public MainFrame() throws IOException, GeneralSecurityException {
         initComponents();
@@ -74,10 +73,17 @@ public class MainFrame extends javax.swing.JFrame {
 
     private void init() throws IOException, GeneralSecurityException {
         list.setCellRenderer(new KeyStoreEntryRenderer());
+        // fixed cell sizes spare the list from measuring every entry
+        list.setPrototypeCellValue(
+                new KeyStoreEntry("MMMMMMMMMMMMMMMMMMMMMMMM", true));
+        ToolTipManager.sharedInstance().registerComponent(list);
+        initGlassPane();
         keystore = KeyStore.getInstance("JKS");
         keystore.load(null, null);
+        index = new KeyStoreIndex(keystore);
         keystoreChanged();
         conf.load();
+        initKeyPairPool();
         refreshInfo();
         setBounds(conf.getInt("frame.x", getX()),
                 conf.getInt("frame.y", getY()),
@@ -85,31 +91,83 @@ public class MainFrame extends javax.swing.JFrame {
                 conf.getInt("frame.height", getHeight()));
     }
 
-    private void keystoreChanged() {
-        try {
-            newButton.setEnabled(true);
-            openButton.setEnabled(true);
-            saveButton.setEnabled(true);
-            DefaultListModel model = new DefaultListModel();
-            if (keystore != null) {
-                KeyStoreEntry entries[] = KeyStoreEntry.getAll(keystore);
-                Arrays.sort(entries, KeyStoreEntry.TYPE_ALIAS_ORDER);
-                for (int i = 0; i < entries.length; ++i) {
-                    model.addElement(entries[i]);
+    private void initKeyPairPool() {
+        int depth = conf.getInt("keypool.depth", 2);
+        keyPairPool = new KeyPairPool(conf.getInt("keypool.threads", 1),
+                depth);
+        String specs = conf.getString("keypool.specs", "RSA:2048");
+        for (String spec: specs.split(",")) {
+            if (spec.trim().length() > 0) {
+                try {
+                    keyPairPool.setDepth(spec, depth);
+                } catch (IllegalArgumentException e) {
+                    LOG.log(Level.WARNING, "Invalid key pool spec " + spec, e);
                 }
             }
-            list.setModel(model);
-            if (keystoreFile == null) {
-                setTitle("Untitled");
-            } else {
-                setTitle(keystoreFile.getPath());
+        }
+    }
+
+    private SerialNumberAllocator getSerialNumberAllocator()
+            throws IOException {
+        if (serials == null) {
+            serials = SerialNumberAllocator.forKeyStore(keystoreFile, index);
+            serials.setBlockSize(conf.getInt("serial.block-size", 1));
+        }
+        return serials;
+    }
+
+    /**
+     * Journaled modifications are already on disk: the keystore only needs
+     * to be saved when it has no journal, or when the journal has grown too
+     * large.
+     */
+    private void storeChanged() {
+        JournalStore journal = index.getJournal();
+        changed = journal == null || journal.needsCompaction();
+    }
+
+    private void closeJournal() {
+        JournalStore journal = index == null ? null : index.getJournal();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not close journal", e);
             }
-            changed = false;
-        } catch (KeyStoreException e) {
-            JOptionPane.showMessageDialog(this, "Error while reading keystore "
-                    + keystoreFile, "Error",
-                    JOptionPane.ERROR_MESSAGE);
+            index.setJournal(null);
+        }
+    }
+
+    private void keystoreChanged() {
+        serials = null;
+        index.getKeyCache().setTtl(
+                conf.getLong("keys.ttl", KeyCache.DEFAULT_TTL/1000)*1000);
+        newButton.setEnabled(true);
+        openButton.setEnabled(true);
+        saveButton.setEnabled(true);
+        refreshList();
+        if (keystoreFile == null) {
+            setTitle("Untitled");
+        } else {
+            setTitle(keystoreFile.getPath());
         }
+        changed = false;
+    }
+
+    private void refreshList() {
+        setListModel(index == null
+                ? new KeyStoreListModel() : new KeyStoreListModel(index));
+    }
+
+    private void setListModel(KeyStoreListModel model) {
+        if (list.getModel() instanceof KeyStoreListModel) {
+            getListModel().dispose();
+        }
+        list.setModel(model);
+    }
+
+    private KeyStoreListModel getListModel() {
+        return (KeyStoreListModel)list.getModel();
     }
 
     private static String formatDN(String dn) {
@@ -131,14 +189,7 @@ public class MainFrame extends javax.swing.JFrame {
         KeyStoreEntry entry = null;
         if (entries.length == 1) {
             entry = (KeyStoreEntry)entries[0];
-            try {
-                cert = (X509Certificate)keystore.getCertificate(
-                        entry.getAlias());
-            } catch (KeyStoreException e) {
-                JOptionPane.showMessageDialog(this,
-                        "Invalid certificate in keystore", "Error",
-                        JOptionPane.ERROR_MESSAGE);
-            }
+            cert = index.getCertificate(entry.getAlias());
         }
         delete.setEnabled(entries.length > 0);
         rename.setEnabled(cert != null);
@@ -179,7 +230,11 @@ public class MainFrame extends javax.swing.JFrame {
         issuer.setRows(issuer.getLineCount());
     }
 
-    private boolean save(boolean chooseFile) {
+    /**
+     * Saves the keystore in the background. The continuation, if any, is
+     * run on the event dispatch thread once the keystore has been saved.
+     */
+    private void save(boolean chooseFile, final Runnable then) {
         File file = keystoreFile;
         if (chooseFile || file == null) {
             JFileChooser chooser = new JFileChooser();
@@ -217,35 +272,170 @@ public class MainFrame extends javax.swing.JFrame {
                             file.getParentFile().getAbsolutePath());
                 }
             } else {
-                return false;
+                return;
             }
         }
         PasswordDialog dlg = new PasswordDialog(this, "Enter password for "
                 + file.getName());
-        char pwd[] = dlg.getPassword();
-        if (pwd != null) {
-            try {
-                if (file.isFile()) {
-                    File backup = new File(file.getParentFile(),
-                            file.getName() + ".bak");
-                    if (backup.isFile()) {
-                        backup.delete();
-                    }
-                    file.renameTo(backup);
+        final char pwd[] = dlg.getPassword();
+        if (pwd == null) {
+            return;
+        }
+        final JournalStore previous = index.getJournal();
+        final JournalStore journal;
+        if (previous != null && file.equals(previous.getFile())) {
+            journal = previous;
+        } else {
+            journal = JournalStore.isSupported(keystore)
+                    ? new JournalStore(file) : null;
+        }
+        final File target = file;
+        setBusy(true);
+        new ProgressTask<Void,Void>(this, "Saving " + file.getName()) {
+            @Override
+            protected Void doInBackground() throws Exception {
+                if (journal != null) {
+                    journal.compact(keystore, pwd, this);
+                } else {
+                    KeyStoreFiles.store(keystore, target, pwd, this);
+                }
+                return null;
+            }
+
+            @Override
+            protected void finished() {
+                Arrays.fill(pwd, '\0');
+                setBusy(false);
+            }
+
+            @Override
+            protected void succeeded(Void result) {
+                if (journal != previous) {
+                    closeJournal();
                 }
-                try (OutputStream out = new FileOutputStream(file)) {
-                    keystore.store(out, pwd);
+                index.setJournal(journal);
+                keystoreFile = target;
+                keystoreChanged();
+                if (then != null) {
+                    then.run();
                 }
+            }
+
+            @Override
+            protected void failed(Throwable e) {
+                LOG.log(Level.SEVERE, "Error while saving " + target, e);
+                JOptionPane.showMessageDialog(MainFrame.this,
+                        "Error while saving the keystore " + target,
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Loads a keystore in the background. The list is filled as the
+     * entries are indexed; the current keystore is kept if the operation
+     * fails or is cancelled.
+     */
+    private void open(final File file) {
+        final KeyStoreListModel model = new KeyStoreListModel();
+        setListModel(model);
+        setBusy(true);
+        new ProgressTask<KeyStoreIndex,KeyStoreEntry>(this,
+                "Opening " + file.getName()) {
+            @Override
+            protected KeyStoreIndex doInBackground() throws Exception {
+                // loading and indexing count for half of the work each
+                KeyStore ks = KeyStoreFiles.load(file, null,
+                        (long done, long total) -> progress(done, 2*total));
+                JournalStore journal = null;
+                if (JournalStore.isSupported(ks)) {
+                    journal = new JournalStore(file);
+                    journal.replay(ks);
+                }
+                final int size = ks.size();
+                final int[] count = {0};
+                KeyStoreIndex result = new KeyStoreIndex(ks,
+                        (KeyStoreEntry entry) -> {
+                    if (!progress(size + ++count[0], 2*size)) {
+                        throw new CancellationException();
+                    }
+                    publish(entry);
+                });
+                result.setJournal(journal);
+                return result;
+            }
+
+            @Override
+            protected void process(List<KeyStoreEntry> entries) {
+                model.append(entries);
+            }
+
+            @Override
+            protected void finished() {
+                setBusy(false);
+            }
+
+            @Override
+            protected void succeeded(KeyStoreIndex result) {
+                closeJournal();
+                index.getKeyCache().wipe();
+                index = result;
+                keystore = result.getKeyStore();
                 keystoreFile = file;
                 keystoreChanged();
-                return true;
-            } catch (IOException | GeneralSecurityException e) {
-                JOptionPane.showMessageDialog(this,
-                        "Error while saving the keystore " + keystoreFile,
-                        "Error", JOptionPane.ERROR_MESSAGE);
             }
+
+            @Override
+            protected void failed(Throwable e) {
+                LOG.log(Level.SEVERE, "Could not open file " + file, e);
+                refreshList();
+                JOptionPane.showMessageDialog(MainFrame.this,
+                        "Could not open file " + file, "Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+
+            @Override
+            protected void cancelled() {
+                refreshList();
+            }
+        }.execute();
+    }
+
+    private void setBusy(boolean busy) {
+        Component glass = getGlassPane();
+        glass.setVisible(busy);
+        if (busy) {
+            glass.requestFocusInWindow();
         }
-        return false;
+    }
+
+    /**
+     * Input is blocked by a glass pane while the keystore is being loaded
+     * or saved.
+     */
+    private void initGlassPane() {
+        JPanel glass = new JPanel();
+        glass.setOpaque(false);
+        glass.setFocusable(true);
+        glass.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        glass.addMouseListener(new MouseAdapter() { });
+        glass.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                e.consume();
+            }
+
+            @Override
+            public void keyReleased(KeyEvent e) {
+                e.consume();
+            }
+
+            @Override
+            public void keyTyped(KeyEvent e) {
+                e.consume();
+            }
+        });
+        setGlassPane(glass);
     }
 
     /** This method is called from within the constructor to
@@ -302,10 +492,12 @@ public class MainFrame extends javax.swing.JFrame {
         signItem = new javax.swing.JMenuItem();
         generateCSR = new javax.swing.JMenuItem();
         impor = new javax.swing.JMenuItem();
+        bulkImport = new javax.swing.JMenuItem();
         export = new javax.swing.JMenuItem();
         delete = new javax.swing.JMenuItem();
         rename = new javax.swing.JMenuItem();
         changePwd = new javax.swing.JMenuItem();
+        lockKeys = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
         sshEncode = new javax.swing.JMenuItem();
 
@@ -660,6 +852,14 @@ public class MainFrame extends javax.swing.JFrame {
         });
         certMenu.add(impor);
 
+        bulkImport.setText("Bulk import...");
+        bulkImport.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                bulkImportActionPerformed(evt);
+            }
+        });
+        certMenu.add(bulkImport);
+
         export.setIcon(new javax.swing.ImageIcon(getClass().getResource("/images/export-sn.png"))); // NOI18N
         export.setText("Export...");
         export.addActionListener(new java.awt.event.ActionListener() {
@@ -692,6 +892,14 @@ public class MainFrame extends javax.swing.JFrame {
             }
         });
         certMenu.add(changePwd);
+
+        lockKeys.setText("Lock keys");
+        lockKeys.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                lockKeysActionPerformed(evt);
+            }
+        });
+        certMenu.add(lockKeys);
         certMenu.add(jSeparator1);
 
         sshEncode.setText("SSH encoding...");
@@ -714,6 +922,8 @@ public class MainFrame extends javax.swing.JFrame {
         conf.setInt("frame.y", getY());
         conf.setInt("frame.width", getWidth());
         conf.setInt("frame.height", getHeight());
+        closeJournal();
+        index.getKeyCache().wipe();
         try {
             conf.store();
         } catch (IOException e) {
@@ -732,10 +942,15 @@ public class MainFrame extends javax.swing.JFrame {
 
     private void imporActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_imporActionPerformed
         try {
-            ImportDialog dlg = new ImportDialog(this, conf, keystore);
+            ImportDialog dlg = new ImportDialog(this, conf, index);
             if (dlg.doDialog()) {
                 conf.store();
-                keystoreChanged();
+                if (dlg.getBulkFile() != null) {
+                    importFiles(Collections.singletonList(dlg.getBulkFile()));
+                } else {
+                    storeChanged();
+                    refreshList();
+                }
             }
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Error during import",
@@ -757,12 +972,12 @@ public class MainFrame extends javax.swing.JFrame {
 
     private void exportActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportActionPerformed
         try {
-            if (KeyStoreEntry.getAll(keystore).length == 0) {
+            if (index.size() == 0) {
                 JOptionPane.showMessageDialog(this,
                         "The keystore is empty", "Error",
                         JOptionPane.ERROR_MESSAGE);
             } else {
-                ExportDialog dlg = new ExportDialog(this, conf, keystore,
+                ExportDialog dlg = new ExportDialog(this, conf, index,
                         (KeyStoreEntry)list.getSelectedValue());
                 if (dlg.doDialog()) {
                     conf.store();
@@ -783,37 +998,37 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_newButtonActionPerformed
 
     private void signItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_signItemActionPerformed
-        try {
-            if (KeyStoreEntry.getAllKeys(keystore).length == 0) {
-                JOptionPane.showMessageDialog(this,
-                        "There are no keys in the keystore", "Error",
-                        JOptionPane.ERROR_MESSAGE);
-            } else {
-                SignDialog dlg = new SignDialog(this, keystore,
-                        (KeyStoreEntry)list.getSelectedValue());
-                if (dlg.doDialog()) {
-                    changed = true;
-                    refreshInfo();
-                }
+        if (index.getAllKeys().length == 0) {
+            JOptionPane.showMessageDialog(this,
+                    "There are no keys in the keystore", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+        } else {
+            SignDialog dlg = new SignDialog(this, index,
+                    (KeyStoreEntry)list.getSelectedValue());
+            if (dlg.doDialog()) {
+                storeChanged();
+                refreshInfo();
             }
-        } catch (KeyStoreException e) {
-            JOptionPane.showMessageDialog(this, "Could not add key to the keystore",
-                    "Error", JOptionPane.ERROR_MESSAGE);
         }
     }//GEN-LAST:event_signItemActionPerformed
 
     private void genKeyItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_genKeyItemActionPerformed
         try {
-            GenerateKeyDialog dlg = new GenerateKeyDialog(this, conf, keystore);
+            GenerateKeyDialog dlg = new GenerateKeyDialog(this, conf, index,
+                    keyPairPool, getSerialNumberAllocator());
             if (dlg.showDialog()) {
-                keystore.setKeyEntry(dlg.getAlias(), dlg.getKey(),
+                index.setKeyEntry(dlg.getAlias(), dlg.getKey(),
                         dlg.getPassword(), dlg.getChain());
-                changed = true;
+                storeChanged();
                 KeyStoreEntry entry = new KeyStoreEntry(dlg.getAlias(), true);
-                DefaultListModel model = (DefaultListModel)list.getModel();
-                model.addElement(entry);
-                list.setSelectedValue(entry, true);
+                int row = getListModel().add(entry);
+                list.setSelectedIndex(row);
+                list.ensureIndexIsVisible(row);
             }
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this,
+                    "Could not open the serial number file",
+                    "Error", JOptionPane.ERROR_MESSAGE);
         } catch (KeyStoreException e) {
             JOptionPane.showMessageDialog(this, "Could not add key to the keystore",
                     "Error", JOptionPane.ERROR_MESSAGE);
@@ -821,15 +1036,16 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_genKeyItemActionPerformed
 
     private void saveStoreAsItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveStoreAsItemActionPerformed
-        save(true);
+        save(true, null);
     }//GEN-LAST:event_saveStoreAsItemActionPerformed
 
     private void saveStoreItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveStoreItemActionPerformed
-        save(false);
+        save(false, null);
     }//GEN-LAST:event_saveStoreItemActionPerformed
 
     private void openStoreItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_openStoreItemActionPerformed
-        if (changed && !save(false)) {
+        if (changed) {
+            save(false, () -> openStoreItemActionPerformed(evt));
             return;
         }
         JFileChooser chooser = new JFileChooser();
@@ -856,36 +1072,24 @@ public class MainFrame extends javax.swing.JFrame {
         chooser.setDialogTitle("Open keystore");
         if (JFileChooser.APPROVE_OPTION == chooser.showOpenDialog(this)) {
             File file = chooser.getSelectedFile();
-            try {
-                String type = "JKS";
-                if (file.getName().toLowerCase().endsWith(".p12")) {
-                    type = "PKCS12";
-                }
-                KeyStore ks = KeyStore.getInstance(type);
-                try (InputStream in = new FileInputStream(file)) {
-                    ks.load(in, null);
-                }
-                keystore = ks;
-                keystoreFile = file;
-                conf.setString("keystore.dir",
-                        file.getParentFile().getAbsolutePath());
-                keystoreChanged();
-            } catch (IOException | GeneralSecurityException e) {
-                JOptionPane.showMessageDialog(this, "Could not open file "
-                        + chooser.getSelectedFile(), "Error",
-                        JOptionPane.ERROR_MESSAGE);
-            }
+            conf.setString("keystore.dir",
+                    file.getParentFile().getAbsolutePath());
+            open(file);
         }
     }//GEN-LAST:event_openStoreItemActionPerformed
 
     private void newStoreItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_newStoreItemActionPerformed
-        if (changed && !save(false)) {
+        if (changed) {
+            save(false, () -> newStoreItemActionPerformed(evt));
             return;
         }
         try {
+            closeJournal();
+            index.getKeyCache().wipe();
             keystoreFile = null;
             keystore = KeyStore.getInstance("JKS");
             keystore.load(null, null);
+            index = new KeyStoreIndex(keystore);
             keystoreChanged();
         } catch (IOException | GeneralSecurityException e) {
             JOptionPane.showMessageDialog(this, "Could create keystore",
@@ -905,10 +1109,9 @@ public class MainFrame extends javax.swing.JFrame {
                         "Delete entry " + entry.getAlias() + "?",
                         "Delete confirmation", JOptionPane.YES_NO_OPTION);
                 if (result == JOptionPane.YES_OPTION) {
-                    keystore.deleteEntry(entry.getAlias());
-                    changed = true;
-                    DefaultListModel model = (DefaultListModel)list.getModel();
-                    model.remove(list.getSelectedIndex());
+                    index.deleteEntry(entry.getAlias());
+                    storeChanged();
+                    getListModel().remove(entry);
                 }
             }
         } catch (GeneralSecurityException e) {
@@ -941,34 +1144,29 @@ public class MainFrame extends javax.swing.JFrame {
                 String oldName = entry.getAlias();
                 String newName = RenameDialog.doDialog(this, oldName);
                 if (newName != null) {
-                    if (keystore.containsAlias(newName)) {
+                    if (index.containsAlias(newName)) {
                         JOptionPane.showMessageDialog(this,
                                 "Alias already exists: " + newName,
                                 "Error", JOptionPane.ERROR_MESSAGE);
                         return;
                     }
+                    char[] pwd = null;
                     if (entry.isKey()) {
                         PasswordDialog dlg = new PasswordDialog(
                                 this, "Key password");
-                        char[] pwd = dlg.getPassword();
+                        pwd = dlg.getPassword();
                         if (pwd == null) {
                             return;
                         }
-                        Key privateKey = keystore.getKey(oldName, pwd);
-                        Certificate[] certs
-                                = keystore.getCertificateChain(oldName);
-                        keystore.setKeyEntry(newName, privateKey, pwd, certs);
-                        keystore.deleteEntry(oldName);
-                    } else {
-                        Certificate cert = keystore.getCertificate(oldName);
-                        keystore.setCertificateEntry(newName, cert);
-                        keystore.deleteEntry(oldName);
                     }
-                    keystore.deleteEntry(oldName);
-                    changed = true;
-                    DefaultListModel model = (DefaultListModel)list.getModel();
-                    model.set(list.getSelectedIndex(),
+                    index.rename(oldName, newName, pwd);
+                    storeChanged();
+                    KeyStoreListModel model = getListModel();
+                    model.remove(entry);
+                    int row = model.add(
                             new KeyStoreEntry(newName, entry.isKey()));
+                    list.setSelectedIndex(row);
+                    list.ensureIndexIsVisible(row);
                 }
             }
         } catch (GeneralSecurityException e) {
@@ -1000,7 +1198,7 @@ public class MainFrame extends javax.swing.JFrame {
     private void changePwdActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_changePwdActionPerformed
         KeyStoreEntry entry = (KeyStoreEntry)list.getSelectedValue();
         if (entry != null && entry.isKey()) {
-            ChangePasswordDialog dlg = new ChangePasswordDialog(this, keystore,
+            ChangePasswordDialog dlg = new ChangePasswordDialog(this, index,
                     entry.getAlias());
             if (dlg.doDialog()) {
                 // done
@@ -1038,7 +1236,7 @@ public class MainFrame extends javax.swing.JFrame {
                 });
                 chooser.setCurrentDirectory(dir);
                 chooser.setSelectedFile(
-                        new File(dir, subjectName(entry)+ ".csr"));
+                        new File(dir, entry.subjectName(index)+ ".csr"));
                 chooser.setDialogTitle("Save CSR");
                 if (JFileChooser.APPROVE_OPTION
                         == chooser.showSaveDialog(this)) {
@@ -1049,20 +1247,80 @@ public class MainFrame extends javax.swing.JFrame {
                     }
                     generateCSR(entry, file);
                 }
-            } catch (NoSuchAlgorithmException | UnrecoverableKeyException
-                    | OperatorCreationException | IOException
-                    | KeyStoreException ex) {
+            } catch (GeneralSecurityException | OperatorCreationException
+                    | IOException ex) {
                 JOptionPane.showMessageDialog(this, "Could not generate CSR",
                         "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }//GEN-LAST:event_generateCSRActionPerformed
 
+    private void lockKeysActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_lockKeysActionPerformed
+        index.getKeyCache().wipe();
+    }//GEN-LAST:event_lockKeysActionPerformed
+
     private void listGenerateCSRActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_listGenerateCSRActionPerformed
         generateCSR.doClick();
     }//GEN-LAST:event_listGenerateCSRActionPerformed
 
+    private void bulkImportActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_bulkImportActionPerformed
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        chooser.setMultiSelectionEnabled(true);
+        File dir = new File(conf.getString("import.dir",
+                System.getProperty("user.home")));
+        if (dir.isDirectory()) {
+            chooser.setCurrentDirectory(dir);
+        }
+        chooser.setDialogTitle("Bulk import");
+        if (JFileChooser.APPROVE_OPTION != chooser.showOpenDialog(this)) {
+            return;
+        }
+        conf.setString("import.dir",
+                chooser.getCurrentDirectory().getAbsolutePath());
+        importFiles(Arrays.asList(chooser.getSelectedFiles()));
+    }//GEN-LAST:event_bulkImportActionPerformed
+
+    /**
+     * Imports the certificates of the files with the BulkImporter.
+     */
+    private void importFiles(final List<File> files) {
+        setBusy(true);
+        new ProgressTask<BulkImporter.Result,Void>(this, "Importing") {
+            @Override
+            protected BulkImporter.Result doInBackground() throws Exception {
+                return new BulkImporter(index).importFiles(files, this);
+            }
+
+            @Override
+            protected void finished() {
+                setBusy(false);
+                // batches may have been added, even on failure
+                storeChanged();
+                refreshList();
+            }
+
+            @Override
+            protected void succeeded(BulkImporter.Result result) {
+                JOptionPane.showMessageDialog(MainFrame.this,
+                        result.getImported() + " certificates imported, "
+                        + result.getDuplicates() + " duplicates, "
+                        + result.getErrors() + " errors",
+                        "Bulk import", JOptionPane.INFORMATION_MESSAGE);
+            }
+
+            @Override
+            protected void failed(Throwable e) {
+                LOG.log(Level.SEVERE, "Error during bulk import", e);
+                JOptionPane.showMessageDialog(MainFrame.this,
+                        "Error during import: " + e.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JMenuItem bulkImport;
     private javax.swing.JMenu certMenu;
     private javax.swing.JMenuItem changePwd;
     private javax.swing.JMenuItem delete;
@@ -1095,6 +1353,7 @@ public class MainFrame extends javax.swing.JFrame {
     private javax.swing.JScrollPane listScroll;
     private javax.swing.JMenuItem listSign;
     private javax.swing.JMenuItem listSshEncode;
+    private javax.swing.JMenuItem lockKeys;
     private javax.swing.JMenuBar menuBar;
     private javax.swing.JButton newButton;
     private javax.swing.JMenuItem newStoreItem;
@@ -1117,58 +1376,32 @@ public class MainFrame extends javax.swing.JFrame {
     // End of variables declaration//GEN-END:variables
 
     private String defaultKeyStoreName() {
-        if (keystore != null) {
-            try {
-                KeyStoreEntry key = null;
-                KeyStoreEntry[] entries = KeyStoreEntry.getAll(keystore);
-                for (KeyStoreEntry entry: entries) {
-                    if (entry.isKey()) {
-                        if (key != null) {
-                            key = null;
-                            break;
-                        } else {
-                            key = entry;
-                        }
-                    }
-                }
-                if (key != null) {
-                    return subjectName(key) + ".jks";
-                } else if (entries.length == 1) {
-                    return subjectName(entries[0]) + ".jks";
-                }
-            } catch (KeyStoreException ex) {
-                // ignore
+        if (index != null) {
+            KeyStoreEntry[] keys = index.getAllKeys();
+            if (keys.length == 1) {
+                return keys[0].subjectName(index) + ".jks";
+            } else if (keys.length == 0 && index.size() == 1) {
+                return index.getAll()[0].subjectName(index) + ".jks";
             }
         }
         return "keystore.jks";
     }
 
-    private String subjectName(KeyStoreEntry key) throws KeyStoreException {
-        return key.subjectName(keystore);
-    }
-
     private void generateCSR(KeyStoreEntry entry, File file)
-            throws KeyStoreException, NoSuchAlgorithmException,
-            UnrecoverableKeyException, OperatorCreationException, FileNotFoundException, IOException {
+            throws GeneralSecurityException, OperatorCreationException,
+            IOException {
         X509Certificate cert = entry.getCertificate(keystore);
-        keystore.getCertificateChain(entry.getAlias());
-        PasswordDialog dlg = new PasswordDialog(
-                this, "Key password");
-        char[] pwd = dlg.getPassword();
-        if (pwd == null) {
-            return;
-        }
-        PrivateKey priKey = entry.getPrivateKey(keystore, pwd);
-        PKCS10CertificationRequestBuilder p10Builder
-                = new JcaPKCS10CertificationRequestBuilder(
-                        cert.getSubjectX500Principal(), cert.getPublicKey());
-        JcaContentSignerBuilder csBuilder = new JcaContentSignerBuilder(cert.getSigAlgName());
-        ContentSigner signer = csBuilder.build(priKey);
-        PKCS10CertificationRequest csr = p10Builder.build(signer);
-        try (OutputStream stream = new FileOutputStream(file);
-                Writer writer = new OutputStreamWriter(stream, "UTF-8");
-                JcaPEMWriter out = new JcaPEMWriter(writer)) {
-            out.writeObject(csr);
+        PrivateKey priKey = index.getKeyCache().get(entry.getAlias());
+        if (priKey == null) {
+            PasswordDialog dlg = new PasswordDialog(
+                    this, "Key password");
+            char[] pwd = dlg.getPassword();
+            if (pwd == null) {
+                return;
+            }
+            priKey = index.getPrivateKey(entry.getAlias(), pwd);
         }
+        CertificationRequests.write(
+                CertificationRequests.create(priKey, cert), file);
     }
 }
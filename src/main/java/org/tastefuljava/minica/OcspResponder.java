@@ -0,0 +1,382 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * OCSP responder (RFC 6960) for the certificates of an issuer, answering
+ * from the revocation database. Requests are accepted as POST to /ocsp, or
+ * as GET /ocsp/&lt;base64 request&gt;.
+ * The responses for single-certificate requests are signed once and
+ * cached per certificate id until shortly before their next update: a
+ * background task re-signs the cached responses that are about to expire,
+ * and drops those that have not been requested for a whole validity
+ * period. As in the lightweight profile (RFC 5019), nonces are ignored so
+ * that cached responses can be used. A response is re-signed when the
+ * certificate has been revoked or issued since it was cached; responses
+ * for the certificates of other issuers are only re-signed when they
+ * expire.
+ */
+public class OcspResponder implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(OcspResponder.class.getName());
+
+    private static final String REQUEST_TYPE = "application/ocsp-request";
+    private static final String RESPONSE_TYPE = "application/ocsp-response";
+    private static final String PREFIX = "/ocsp";
+
+    private final CertificateAuthority ca;
+    private final KeyStoreIndex index;
+    private final IssuedCertificates issued;
+    private final RevocationDatabase revocations;
+    private final String issuerId;
+    private final X509CertificateHolder issuer;
+    private final DigestCalculatorProvider digests;
+    private final Map<CertificateID,Response> cache
+            = new ConcurrentHashMap<>();
+    private final byte[] malformed;
+    private final byte[] internalError;
+    private volatile Signer signer;
+    private volatile long validity = 3600*1000L;
+    private volatile int maxCacheSize = 100000;
+    private ScheduledExecutorService scheduler;
+
+    public OcspResponder(CertificateAuthority ca, KeyStoreIndex index,
+            IssuedCertificates issued, RevocationDatabase revocations)
+            throws IOException, GeneralSecurityException,
+            OperatorCreationException {
+        this.ca = ca;
+        this.index = index;
+        this.issued = issued;
+        this.revocations = revocations;
+        this.issuerId = RevocationDatabase.issuerId(ca.getCertificate());
+        this.issuer = new X509CertificateHolder(
+                ca.getCertificate().getEncoded());
+        this.digests = new JcaDigestCalculatorProviderBuilder()
+                .setProvider("BC").build();
+        try {
+            this.malformed = new OCSPRespBuilder().build(
+                    OCSPRespBuilder.MALFORMED_REQUEST, null).getEncoded();
+            this.internalError = new OCSPRespBuilder().build(
+                    OCSPRespBuilder.INTERNAL_ERROR, null).getEncoded();
+        } catch (OCSPException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        // the issuer signs the responses, unless a responder is designated
+        setSigner(ca.getKey(), ca.getCertificate(),
+                ca.getSignatureAlgorithm());
+    }
+
+    /**
+     * Designates the key that signs the responses. Its certificate must be
+     * issued by the CA, with the OCSPSigning extended key usage (RFC 6960,
+     * 4.2.2.2); it is included in the responses.
+     */
+    public void setSigner(PrivateKey key, X509Certificate cert,
+            String signatureAlgorithm) throws GeneralSecurityException,
+            IOException, OperatorCreationException {
+        boolean designated = !cert.equals(ca.getCertificate());
+        if (designated) {
+            checkResponder(cert);
+        }
+        X509CertificateHolder[] chain = designated
+                ? new X509CertificateHolder[] {
+                    new X509CertificateHolder(cert.getEncoded())}
+                : new X509CertificateHolder[0];
+        try {
+            signer = new Signer(key, chain, signatureAlgorithm,
+                    new RespID(SubjectPublicKeyInfo.getInstance(
+                            cert.getPublicKey().getEncoded()),
+                            digests.get(CertificateID.HASH_SHA1)));
+        } catch (OCSPException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        cache.clear();
+    }
+
+    private void checkResponder(X509Certificate cert)
+            throws GeneralSecurityException {
+        X509Certificate caCert = ca.getCertificate();
+        if (!cert.getIssuerX500Principal().equals(
+                caCert.getSubjectX500Principal())) {
+            throw new CertificateException(
+                    "The OCSP responder is not issued by the CA");
+        }
+        cert.verify(caCert.getPublicKey());
+        List<String> usage = cert.getExtendedKeyUsage();
+        if (usage == null || !usage.contains(
+                KeyPurposeId.id_kp_OCSPSigning.getId())) {
+            throw new CertificateException(
+                    "The OCSP responder cannot sign OCSP responses");
+        }
+    }
+
+    /**
+     * Sets the validity of the responses, in milliseconds.
+     */
+    public void setValidity(long validity) {
+        this.validity = validity;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Starts the background refresh of the cached responses.
+     */
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    (Runnable r) -> {
+                        Thread thread = new Thread(r, "OCSP refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            long period = Math.max(1000, validity/8);
+            scheduler.scheduleWithFixedDelay(this::refresh, period, period,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    public HttpHandler getHandler() {
+        return HttpExchanges.handler("GET,POST", this::handle);
+    }
+
+    /**
+     * Returns the encoded response to an encoded request.
+     */
+    public byte[] respond(byte[] request) {
+        Req[] list;
+        try {
+            list = new OCSPReq(request).getRequestList();
+        } catch (IOException | RuntimeException e) {
+            return malformed;
+        }
+        try {
+            // the revoke command may have been used meanwhile
+            revocations.refresh(false);
+            if (list.length == 1) {
+                return lookup(list[0].getCertID()).encoded;
+            }
+            Date now = new Date();
+            BasicOCSPRespBuilder builder
+                    = new BasicOCSPRespBuilder(signer.responderId);
+            for (Req req: list) {
+                builder.addResponse(req.getCertID(), status(req.getCertID()),
+                        now, new Date(now.getTime() + validity), null);
+            }
+            return build(builder, now);
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Could not sign the OCSP response", e);
+            return internalError;
+        }
+    }
+
+    private void handle(HttpExchange exch) throws IOException {
+        byte[] request;
+        if ("POST".equals(exch.getRequestMethod())) {
+            String type = exch.getRequestHeaders().getFirst("Content-Type");
+            if (type != null && !type.startsWith(REQUEST_TYPE)) {
+                throw new IllegalArgumentException(
+                        "Unsupported content type: " + type);
+            }
+            request = HttpExchanges.readAll(exch.getRequestBody());
+        } else {
+            String path = exch.getRequestURI().getRawPath();
+            if (!path.startsWith(PREFIX + "/")) {
+                HttpExchanges.send(exch, 404, "Not found");
+                return;
+            }
+            // the base64 '+' is not an encoded space
+            request = Base64.getDecoder().decode(URLDecoder.decode(
+                    path.substring(PREFIX.length() + 1)
+                            .replace("+", "%2B"), "US-ASCII"));
+        }
+        HttpExchanges.send(exch, 200, RESPONSE_TYPE, respond(request));
+    }
+
+    /**
+     * Returns the response for a certificate id from the cache, or signs
+     * it.
+     */
+    private Response lookup(CertificateID id) throws Exception {
+        long now = System.currentTimeMillis();
+        BigInteger sn = id.getSerialNumber();
+        Response resp = cache.get(id);
+        if (resp == null || resp.nextUpdate <= now
+                || resp.matchesIssuer && (
+                    resp.revoked != revocations.isRevoked(issuerId, sn)
+                    || resp.unknown && isKnown(sn))) {
+            resp = sign(id);
+            // the size limit protects against floods of random requests
+            if (cache.size() < maxCacheSize || cache.containsKey(id)) {
+                cache.put(id, resp);
+            }
+        }
+        resp.lastAccess = now;
+        return resp;
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<CertificateID,Response>> it
+                = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<CertificateID,Response> entry = it.next();
+            Response resp = entry.getValue();
+            if (now - resp.lastAccess > validity) {
+                it.remove();
+            } else if (resp.nextUpdate - now < validity/4) {
+                try {
+                    Response fresh = sign(entry.getKey());
+                    fresh.lastAccess = resp.lastAccess;
+                    entry.setValue(fresh);
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Could not refresh the response", e);
+                }
+            }
+        }
+    }
+
+    private CertificateStatus status(CertificateID id)
+            throws OCSPException {
+        if (!id.matchesIssuer(issuer, digests)) {
+            return new UnknownStatus();
+        }
+        return status(id.getSerialNumber());
+    }
+
+    private CertificateStatus status(BigInteger sn) {
+        RevocationDatabase.Revocation rev = revocations.get(issuerId, sn);
+        if (rev != null) {
+            return new RevokedStatus(rev.getDate(), rev.getReason());
+        } else if (isKnown(sn)) {
+            return CertificateStatus.GOOD;
+        } else {
+            return new UnknownStatus();
+        }
+    }
+
+    private boolean isKnown(BigInteger sn) {
+        return issued.contains(sn) || !index.findBySerial(sn).isEmpty();
+    }
+
+    private Response sign(CertificateID id) throws Exception {
+        boolean matchesIssuer = id.matchesIssuer(issuer, digests);
+        CertificateStatus status = matchesIssuer
+                ? status(id.getSerialNumber()) : new UnknownStatus();
+        Date now = new Date();
+        Date next = new Date(now.getTime() + validity);
+        BasicOCSPRespBuilder builder
+                = new BasicOCSPRespBuilder(signer.responderId);
+        builder.addResponse(id, status, now, next, null);
+        return new Response(build(builder, now), next.getTime(),
+                matchesIssuer, status);
+    }
+
+    private byte[] build(BasicOCSPRespBuilder builder, Date now)
+            throws Exception {
+        Signer s = signer;
+        return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL,
+                builder.build(CryptoCache.getContentSigner(s.algorithm,
+                        s.key), s.chain, now)).getEncoded();
+    }
+
+    private static class Signer {
+        private final PrivateKey key;
+        private final X509CertificateHolder[] chain;
+        private final String algorithm;
+        private final RespID responderId;
+
+        private Signer(PrivateKey key, X509CertificateHolder[] chain,
+                String algorithm, RespID responderId) {
+            this.key = key;
+            this.chain = chain;
+            this.algorithm = algorithm;
+            this.responderId = responderId;
+        }
+    }
+
+    private static class Response {
+        private final byte[] encoded;
+        private final long nextUpdate;
+        private final boolean matchesIssuer;
+        private final boolean revoked;
+        private final boolean unknown;
+        private volatile long lastAccess;
+
+        private Response(byte[] encoded, long nextUpdate,
+                boolean matchesIssuer, CertificateStatus status) {
+            this.encoded = encoded;
+            this.nextUpdate = nextUpdate;
+            this.matchesIssuer = matchesIssuer;
+            this.revoked = status instanceof RevokedStatus;
+            this.unknown = status instanceof UnknownStatus;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Reads the blocks of a PEM file, or the structures of a DER file, one at a
+ * time. The block boundaries are found by scanning the bytes directly, so
+ * that any amount of text can precede or separate the blocks, and the
+ * base64 content is only decoded when asked for. Only the current block is
+ * kept in memory, and the size of its lines and of the block itself is
+ * bounded, so that malformed input cannot exhaust the memory. The input is
+ * only read as DER if it starts with well-formed SEQUENCEs, so that text
+ * starting with a '0' is still scanned for PEM blocks.
+ */
+public class PemScanner implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(PemScanner.class.getName());
+    private static final byte[] BEGIN
+            = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END
+            = "-----END ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES
+            = "-----".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_LINE = 256;
+    // the base64 content may be on a single line
+    private static final int MAX_BODY_LINE = 65536;
+    private static final int MAX_BLOCK = 4*1024*1024;
+
+    private final InputStream in;
+    private final ByteBuffer source;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private Boolean der;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    public PemScanner(InputStream in) {
+        this.in = in;
+        this.source = null;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Scans the remaining bytes of a buffer, typically a memory-mapped file.
+     */
+    public PemScanner(ByteBuffer source) {
+        this.in = null;
+        this.source = source;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    public static PemScanner open(File file) throws IOException {
+        return new PemScanner(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Returns the next block, or null at the end of the input. Text outside
+     * of the blocks, and blocks that are not terminated, are skipped.
+     */
+    public Block next() throws IOException {
+        if (der == null) {
+            if (!fill()) {
+                return null;
+            }
+            boolean complete = fillBuffer();
+            der = isDer(ByteBuffer.wrap(buf, pos, limit - pos), complete);
+        }
+        return der ? nextDer() : nextPem();
+    }
+
+    /**
+     * Tells whether the data starts with DER structures: SEQUENCEs whose
+     * elements fill them exactly, possibly separated or followed by
+     * whitespace. When the data is not complete, the last structure may
+     * extend past its end.
+     */
+    static boolean isDer(ByteBuffer data, boolean complete) {
+        int limit = data.limit();
+        int pos = data.position();
+        boolean found = false;
+        while (pos < limit) {
+            byte b = data.get(pos);
+            if (b == '\n' || b == '\r' || b == ' ' || b == '\t') {
+                ++pos;
+                continue;
+            }
+            if (b != 0x30) {
+                return false;
+            }
+            long end = derEnd(data, pos);
+            if (end < 0) {
+                // a header cut by the end of the data is fine
+                return found && !complete && end == -2;
+            }
+            int header = headerLength(data, pos);
+            long inner = pos + header;
+            while (inner < end && inner < limit) {
+                inner = derEnd(data, (int)inner);
+                if (inner == -2 && !complete) {
+                    inner = end;
+                } else if (inner < 0) {
+                    return false;
+                }
+            }
+            // elements must not overflow the structure, nor end before it,
+            // unless they were cut by the end of the data
+            if (inner > end || inner < end && complete
+                    || end > limit && complete) {
+                return false;
+            }
+            found = true;
+            if (end > limit) {
+                break;
+            }
+            pos = (int)end;
+        }
+        return found;
+    }
+
+    /**
+     * Returns the end of the DER structure at the given position, -1 if
+     * its header is invalid, or -2 if it is truncated.
+     */
+    private static long derEnd(ByteBuffer data, int pos) {
+        int limit = data.limit();
+        if (pos + 2 > limit) {
+            return -2;
+        }
+        if (data.get(pos) == 0) {
+            return -1;
+        }
+        long len = data.get(pos + 1) & 0xFF;
+        if (len > 0x7F) {
+            int n = (int)len & 0x7F;
+            if (n == 0 || n > 4) {
+                return -1;
+            } else if (pos + 2 + n > limit) {
+                return -2;
+            }
+            len = 0;
+            for (int i = 0; i < n; ++i) {
+                len = (len << 8) | (data.get(pos + 2 + i) & 0xFF);
+            }
+        }
+        return pos + headerLength(data, pos) + len;
+    }
+
+    private static int headerLength(ByteBuffer data, int pos) {
+        int len = data.get(pos + 1) & 0xFF;
+        return len > 0x7F ? 2 + (len & 0x7F) : 2;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    private Block nextPem() throws IOException {
+        String type = null;
+        ByteArrayOutputStream text = null;
+        ByteArrayOutputStream body = null;
+        List<String> headers = null;
+        boolean inHeaders = false;
+        while (readLine(type == null ? MAX_LINE : MAX_BODY_LINE)) {
+            byte[] bytes = line.toByteArray();
+            int len = trimmedLength(bytes);
+            if (startsWith(bytes, BEGIN) && endsWith(bytes, len, DASHES)) {
+                if (type != null) {
+                    LOG.warning("Unterminated PEM block " + type);
+                }
+                type = new String(bytes, BEGIN.length,
+                        len - BEGIN.length - DASHES.length,
+                        StandardCharsets.US_ASCII);
+                text = new ByteArrayOutputStream();
+                body = new ByteArrayOutputStream();
+                headers = new ArrayList<>();
+                inHeaders = true;
+                text.write(bytes, 0, len);
+                text.write('\n');
+            } else if (type == null) {
+                // text outside of a block
+            } else if (startsWith(bytes, END)) {
+                text.write(bytes, 0, len);
+                text.write('\n');
+                return new Block(type, headers, text.toByteArray(),
+                        body.toByteArray());
+            } else {
+                text.write(bytes, 0, len);
+                text.write('\n');
+                if (inHeaders && indexOf(bytes, len, ':') > 0) {
+                    headers.add(new String(bytes, 0, len,
+                            StandardCharsets.US_ASCII));
+                } else {
+                    inHeaders = false;
+                    for (int i = 0; i < len; ++i) {
+                        byte b = bytes[i];
+                        if (b > ' ') {
+                            body.write(b);
+                        }
+                    }
+                }
+                if (text.size() > MAX_BLOCK) {
+                    LOG.warning("PEM block " + type + " is too large");
+                    // the rest of the block is skipped as text
+                    type = null;
+                    text = null;
+                    body = null;
+                }
+            }
+        }
+        if (type != null) {
+            LOG.warning("Unterminated PEM block " + type);
+        }
+        return null;
+    }
+
+    /**
+     * Reads a complete top-level DER structure. Only the definite length
+     * form is supported, as in certificates.
+     */
+    private Block nextDer() throws IOException {
+        // tolerate line ends after the last structure
+        while (fill() && (buf[pos] == '\n' || buf[pos] == '\r'
+                || buf[pos] == ' ' || buf[pos] == '\t')) {
+            ++pos;
+        }
+        if (!fill()) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(read()); // tag
+        int len = read();
+        out.write(len);
+        if (len > 0x7F) {
+            int n = len & 0x7F;
+            if (n == 0 || n > 4) {
+                throw new IOException("Invalid DER length");
+            }
+            len = 0;
+            for (int i = 0; i < n; ++i) {
+                int b = read();
+                out.write(b);
+                len = (len << 8) | b;
+            }
+            if (len < 0) {
+                throw new IOException("Invalid DER length");
+            } else if (len > MAX_BLOCK) {
+                throw new IOException("DER structure too large");
+            }
+        }
+        while (len > 0) {
+            if (!fill()) {
+                throw new IOException("Truncated DER structure");
+            }
+            int n = Math.min(len, limit - pos);
+            out.write(buf, pos, n);
+            pos += n;
+            len -= n;
+        }
+        byte[] data = out.toByteArray();
+        return new Block(null, Collections.<String>emptyList(), null, data);
+    }
+
+    private int read() throws IOException {
+        if (!fill()) {
+            throw new IOException("Truncated DER structure");
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    /**
+     * Reads a line, without its terminator, keeping at most max bytes of
+     * it. Returns false at the end of the input.
+     */
+    private boolean readLine(int max) throws IOException {
+        line.reset();
+        if (!fill()) {
+            return false;
+        }
+        while (fill()) {
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                ++pos;
+            }
+            int n = Math.min(pos - start, max - line.size());
+            if (n > 0) {
+                line.write(buf, start, n);
+            }
+            if (pos < limit) {
+                ++pos;
+                break;
+            }
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        pos = 0;
+        if (in != null) {
+            limit = Math.max(0, in.read(buf));
+        } else {
+            limit = Math.min(buf.length, source.remaining());
+            source.get(buf, 0, limit);
+        }
+        return limit > 0;
+    }
+
+    /**
+     * Fills the rest of the buffer, and tells whether the end of the input
+     * has been reached.
+     */
+    private boolean fillBuffer() throws IOException {
+        if (in == null) {
+            int n = Math.min(buf.length - limit, source.remaining());
+            source.get(buf, limit, n);
+            limit += n;
+            return !source.hasRemaining();
+        }
+        while (limit < buf.length) {
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                return true;
+            }
+            limit += n;
+        }
+        return false;
+    }
+
+    private static int trimmedLength(byte[] bytes) {
+        int len = bytes.length;
+        while (len > 0 && bytes[len-1] <= ' ') {
+            --len;
+        }
+        return len;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWith(byte[] bytes, int len, byte[] suffix) {
+        if (len < BEGIN.length + suffix.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; ++i) {
+            if (bytes[len - suffix.length + i] != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int len, char c) {
+        for (int i = 0; i < len; ++i) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A PEM block, or a DER structure, in which case the type is null.
+     */
+    public static class Block {
+        private final String type;
+        private final List<String> headers;
+        private final byte[] text;
+        private final byte[] body;
+
+        private Block(String type, List<String> headers, byte[] text,
+                byte[] body) {
+            this.type = type;
+            this.headers = headers;
+            this.text = text;
+            this.body = body;
+        }
+
+        /**
+         * Returns the type of the PEM block, such as CERTIFICATE, or null
+         * for a DER structure.
+         */
+        public String getType() {
+            return type;
+        }
+
+        public boolean isCertificate() {
+            return type == null || type.equals("CERTIFICATE")
+                    || type.equals("X509 CERTIFICATE")
+                    || type.equals("TRUSTED CERTIFICATE");
+        }
+
+        public boolean isPrivateKey() {
+            return type != null && type.endsWith("PRIVATE KEY");
+        }
+
+        /**
+         * Returns the RFC 1421 headers of the block, such as the DEK-Info of
+         * an encrypted key.
+         */
+        public List<String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Returns the block as it appeared in the file, with normalized
+         * line ends, or null for a DER structure.
+         */
+        public String getText() {
+            return text == null
+                    ? null : new String(text, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Returns the DER encoded content of the block.
+         */
+        public byte[] getContent() throws IOException {
+            if (type == null) {
+                return body.clone();
+            }
+            try {
+                return Base64.decode(body);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid base64 content in " + type
+                        + " block", e);
+            }
+        }
+    }
+}
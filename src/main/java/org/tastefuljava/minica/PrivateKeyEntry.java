@@ -17,7 +17,6 @@
 */
 package org.tastefuljava.minica;
 
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
@@ -47,8 +46,8 @@ public class PrivateKeyEntry extends KeyStoreEntry {
     }
 
     @Override
-    public void addTo(KeyStore ks, char[] password) throws KeyStoreException {
-        ks.setKeyEntry(getAlias(), key,
-                        password, chain);
+    public void addTo(KeyStoreIndex index, char[] password)
+            throws KeyStoreException {
+        index.setKeyEntry(getAlias(), key, password, chain);
     }
 }
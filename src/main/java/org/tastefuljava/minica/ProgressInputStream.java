@@ -0,0 +1,96 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input stream reporting the number of bytes read to a progress listener,
+ * every STEP bytes and at the end of the input. An InterruptedIOException
+ * is thrown when the listener cancels the operation.
+ */
+public class ProgressInputStream extends FilterInputStream {
+    private static final long STEP = 64*1024;
+
+    private final ProgressListener listener;
+    private final long total;
+    private long done;
+    private long reported;
+
+    public ProgressInputStream(InputStream in, long total,
+            ProgressListener listener) {
+        super(in);
+        this.total = total;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = super.read();
+        if (c >= 0) {
+            progress(1);
+        } else {
+            finished();
+        }
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            progress(n);
+        } else if (n < 0) {
+            finished();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        progress(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void progress(long n) throws InterruptedIOException {
+        done += n;
+        if (done - reported >= STEP || done == total) {
+            reported = done;
+            if (!listener.progress(done, total)) {
+                throw new InterruptedIOException("Cancelled");
+            }
+        }
+    }
+
+    private void finished() {
+        if (done != reported) {
+            reported = done;
+            // too late to cancel
+            listener.progress(done, total);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+/**
+ * Receives the progress of a long operation, such as loading or storing a
+ * keystore.
+ */
+public interface ProgressListener {
+    /**
+     * Reports that done units of work out of total have been performed.
+     * The total is zero or negative when it is not known. Returns false to
+     * cancel the operation.
+     */
+    boolean progress(long done, long total);
+}
@@ -0,0 +1,79 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream reporting the number of bytes written to a progress
+ * listener, every STEP bytes and when the stream is flushed. An
+ * InterruptedIOException is thrown when the listener cancels the
+ * operation.
+ */
+public class ProgressOutputStream extends FilterOutputStream {
+    private static final long STEP = 64*1024;
+
+    private final ProgressListener listener;
+    private final long total;
+    private long done;
+    private long reported;
+
+    public ProgressOutputStream(OutputStream out, long total,
+            ProgressListener listener) {
+        super(out);
+        this.total = total;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        progress(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        progress(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        if (done != reported) {
+            report();
+        }
+    }
+
+    private void progress(long n) throws InterruptedIOException {
+        done += n;
+        if (done - reported >= STEP || done == total) {
+            report();
+        }
+    }
+
+    private void report() throws InterruptedIOException {
+        reported = done;
+        if (!listener.progress(done, total)) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+}
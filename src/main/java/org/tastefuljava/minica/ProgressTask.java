@@ -0,0 +1,88 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.awt.Component;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/**
+ * Background task showing its progress in a progress monitor, which lets
+ * the user cancel the task. The task is passed as a progress listener to
+ * the operations it performs; they stop when the task is cancelled. The
+ * outcome is reported on the event dispatch thread through succeeded,
+ * failed or cancelled, each preceded by finished.
+ */
+public abstract class ProgressTask<T,V> extends SwingWorker<T,V>
+        implements ProgressListener {
+    private final ProgressMonitor monitor;
+    private final Timer timer;
+
+    public ProgressTask(Component parent, String message) {
+        monitor = new ProgressMonitor(parent, message, null, 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        monitor.setMillisToPopup(500);
+        addPropertyChangeListener((evt) -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                monitor.setProgress((Integer)evt.getNewValue());
+            }
+        });
+        // the cancel button must be polled
+        timer = new Timer(100, (evt) -> {
+            if (monitor.isCanceled()) {
+                cancel(false);
+            }
+        });
+        timer.start();
+    }
+
+    @Override
+    public boolean progress(long done, long total) {
+        if (total > 0) {
+            setProgress((int)Math.min(99, done*100/total));
+        }
+        return !isCancelled();
+    }
+
+    @Override
+    protected final void done() {
+        timer.stop();
+        monitor.close();
+        finished();
+        try {
+            succeeded(get());
+        } catch (CancellationException | InterruptedException e) {
+            cancelled();
+        } catch (ExecutionException e) {
+            failed(e.getCause());
+        }
+    }
+
+    protected void finished() {
+    }
+
+    protected abstract void succeeded(T result);
+
+    protected abstract void failed(Throwable e);
+
+    protected void cancelled() {
+    }
+}
@@ -0,0 +1,298 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * The revoked certificates of a keystore, persisted in a text file
+ * (<keystore>.revoked), one line per revocation: the issuer id, the serial
+ * number in hexadecimal, the revocation date in milliseconds and the CRL
+ * reason code. Lines are appended and synced to disk as the certificates
+ * are revoked. The issuer id is the SHA-1 hash of the public key of the
+ * issuer, as in the CertID of OCSP (RFC 6960).
+ * Other processes may append to the file (the revoke command while a server
+ * is running): the lines they add are read by refresh().
+ */
+public class RevocationDatabase implements Closeable {
+    private static final Logger LOG
+            = Logger.getLogger(RevocationDatabase.class.getName());
+
+    /**
+     * The CRL reason names, indexed by reason code (RFC 5280).
+     */
+    private static final String[] REASONS = {
+        "unspecified", "keyCompromise", "cACompromise", "affiliationChanged",
+        "superseded", "cessationOfOperation", "certificateHold", null,
+        "removeFromCRL", "privilegeWithdrawn", "aACompromise"
+    };
+
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private final File file;
+    private final Map<String,Issuer> issuers = new ConcurrentHashMap<>();
+    private FileOutputStream out;
+    // the end of the last complete line read
+    private long position;
+    private long lastRefresh;
+
+    public RevocationDatabase(File file) throws IOException {
+        this.file = file;
+        refresh(true);
+    }
+
+    public static File fileFor(File keystoreFile) {
+        return new File(keystoreFile.getParentFile(),
+                keystoreFile.getName() + ".revoked");
+    }
+
+    /**
+     * Returns the id of an issuer: the hexadecimal SHA-1 hash of its public
+     * key.
+     */
+    public static String issuerId(X509Certificate issuer) {
+        byte[] key = SubjectPublicKeyInfo.getInstance(
+                issuer.getPublicKey().getEncoded()).getPublicKeyData()
+                .getBytes();
+        try {
+            return Hex.toHexString(
+                    MessageDigest.getInstance("SHA-1").digest(key));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the reason code for a reason name or number.
+     */
+    public static int reasonCode(String reason) {
+        for (int i = 0; i < REASONS.length; ++i) {
+            if (reason.equalsIgnoreCase(REASONS[i])) {
+                return i;
+            }
+        }
+        int code = Integer.parseInt(reason);
+        if (code < 0 || code >= REASONS.length || REASONS[code] == null) {
+            throw new IllegalArgumentException("Invalid reason: " + reason);
+        }
+        return code;
+    }
+
+    public static String reasonName(int code) {
+        return code >= 0 && code < REASONS.length && REASONS[code] != null
+                ? REASONS[code] : Integer.toString(code);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        int result = 0;
+        for (Issuer issuer: issuers.values()) {
+            result += issuer.bySerial.size();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of certificates revoked by an issuer.
+     */
+    public int size(String issuerId) {
+        Issuer issuer = issuers.get(issuerId);
+        return issuer == null ? 0 : issuer.bySerial.size();
+    }
+
+    public Revocation get(String issuerId, BigInteger sn) {
+        Issuer issuer = issuers.get(issuerId);
+        return issuer == null ? null : issuer.bySerial.get(sn);
+    }
+
+    public boolean isRevoked(String issuerId, BigInteger sn) {
+        return get(issuerId, sn) != null;
+    }
+
+    /**
+     * Returns the revocations of an issuer, in the order they were made.
+     */
+    public List<Revocation> getAll(String issuerId) {
+        return getSince(issuerId, 0);
+    }
+
+    /**
+     * Returns the revocations of an issuer made after the given number of
+     * revocations (as returned by size(issuerId)), in the order they were
+     * made.
+     */
+    public synchronized List<Revocation> getSince(String issuerId,
+            int count) {
+        Issuer issuer = issuers.get(issuerId);
+        if (issuer == null || count >= issuer.log.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(issuer.log.subList(count, issuer.log.size()));
+    }
+
+    /**
+     * Revokes a certificate. A certificate that is already revoked keeps its
+     * first revocation, which is returned.
+     */
+    public synchronized Revocation revoke(String issuerId, BigInteger sn,
+            int reason) throws IOException {
+        refresh(true);
+        Revocation rev = get(issuerId, sn);
+        if (rev != null) {
+            return rev;
+        }
+        rev = new Revocation(sn, new Date(), reason);
+        if (out == null) {
+            out = new FileOutputStream(file, true);
+        }
+        // a line truncated by a crash must not swallow this one
+        String sep = file.length() > position ? "\n" : "";
+        out.write((sep + issuerId + " " + sn.toString(16) + " "
+                + rev.date.getTime() + " " + reason + "\n")
+                .getBytes("US-ASCII"));
+        out.getChannel().force(false);
+        // the line is read back by the next refresh, as a duplicate
+        add(issuerId, rev);
+        return rev;
+    }
+
+    /**
+     * Reads the lines appended to the file since it was last read. Unless
+     * forced, the file is checked at most once per second.
+     */
+    public synchronized void refresh(boolean force) throws IOException {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastRefresh < REFRESH_INTERVAL) {
+            return;
+        }
+        lastRefresh = now;
+        if (file.length() <= position) {
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(file))) {
+            long pos = 0;
+            while (pos < position) {
+                long n = in.skip(position - pos);
+                if (n <= 0) {
+                    return;
+                }
+                pos += n;
+            }
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c >= 0; c = in.read()) {
+                ++pos;
+                if (c != '\n') {
+                    line.append((char)c);
+                } else {
+                    parse(line.toString());
+                    line.setLength(0);
+                    position = pos;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void parse(String line) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        String[] fields = line.trim().split(" ");
+        try {
+            add(fields[0], new Revocation(
+                    new BigInteger(fields[1], 16),
+                    new Date(Long.parseLong(fields[2])),
+                    Integer.parseInt(fields[3])));
+        } catch (RuntimeException e) {
+            // typically a line truncated by a crash
+            LOG.warning("Invalid line in " + file + ": " + line);
+        }
+    }
+
+    private void add(String issuerId, Revocation rev) {
+        Issuer issuer = issuers.get(issuerId);
+        if (issuer == null) {
+            issuer = new Issuer();
+            issuers.put(issuerId, issuer);
+        }
+        if (issuer.bySerial.putIfAbsent(rev.serialNumber, rev) == null) {
+            issuer.log.add(rev);
+        }
+    }
+
+    private static class Issuer {
+        private final Map<BigInteger,Revocation> bySerial
+                = new ConcurrentHashMap<>();
+        private final List<Revocation> log = new ArrayList<>();
+    }
+
+    public static class Revocation {
+        private final BigInteger serialNumber;
+        private final Date date;
+        private final int reason;
+
+        private Revocation(BigInteger serialNumber, Date date, int reason) {
+            this.serialNumber = serialNumber;
+            this.date = date;
+            this.reason = reason;
+        }
+
+        public BigInteger getSerialNumber() {
+            return serialNumber;
+        }
+
+        public Date getDate() {
+            return new Date(date.getTime());
+        }
+
+        public int getReason() {
+            return reason;
+        }
+    }
+}
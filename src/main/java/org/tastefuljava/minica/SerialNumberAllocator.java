@@ -0,0 +1,217 @@
+/*
+    Minica, a very simple certificate authority
+    Copyright (C) 2011  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tastefuljava.minica;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+/**
+ * Allocates certificate serial numbers. In monotonic mode, the numbers are
+ * reserved in blocks: the upper bound of the current block is written to
+ * the serial file before any number of the block is handed out, so a
+ * number is never given twice, even after a crash or when several
+ * processes share the file (the unused numbers of a block are lost). In
+ * random mode, the numbers are 128-bit random values.
+ */
+public class SerialNumberAllocator {
+    public enum Mode {MONOTONIC, RANDOM}
+
+    private static final BigInteger MONOTONIC_LIMIT
+            = BigInteger.ONE.shiftLeft(64);
+
+    private final File file;
+    private Mode mode = Mode.MONOTONIC;
+    private int blockSize = 1;
+    private BigInteger next = BigInteger.ONE;
+    private BigInteger limit = BigInteger.ONE;
+
+    /**
+     * Creates an allocator that does not persist its state.
+     */
+    public SerialNumberAllocator(Mode mode) {
+        this.file = null;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates an allocator persisted in the given file. The file is created
+     * on the first reservation.
+     */
+    public SerialNumberAllocator(File file) throws IOException {
+        this.file = file;
+        if (file.isFile()) {
+            Properties props = load();
+            mode = Mode.valueOf(props.getProperty("mode", mode.name()));
+            blockSize = Integer.parseInt(props.getProperty("block-size",
+                    Integer.toString(blockSize)));
+            next = limit = new BigInteger(props.getProperty("next", "1"));
+        }
+    }
+
+    public static File fileFor(File keystoreFile) {
+        return new File(keystoreFile.getParentFile(),
+                keystoreFile.getName() + ".serial");
+    }
+
+    /**
+     * Returns the allocator attached to the given keystore file, or an
+     * in-memory allocator when the file is null. A new allocator starts
+     * after the highest monotonic serial number found in the index.
+     */
+    public static SerialNumberAllocator forKeyStore(File keystoreFile,
+            KeyStoreIndex index) throws IOException {
+        SerialNumberAllocator result;
+        if (keystoreFile == null) {
+            result = new SerialNumberAllocator(Mode.MONOTONIC);
+        } else {
+            File file = fileFor(keystoreFile);
+            boolean exists = file.isFile();
+            result = new SerialNumberAllocator(file);
+            if (exists) {
+                return result;
+            }
+        }
+        BigInteger max = BigInteger.ZERO;
+        for (KeyStoreEntry entry: index.getAll()) {
+            X509Certificate cert = index.getCertificate(entry.getAlias());
+            if (cert != null) {
+                BigInteger sn = cert.getSerialNumber();
+                if (sn.compareTo(MONOTONIC_LIMIT) < 0
+                        && sn.compareTo(max) > 0) {
+                    max = sn;
+                }
+            }
+        }
+        result.markUsed(max);
+        return result;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    public synchronized void setMode(Mode mode) throws IOException {
+        this.mode = mode;
+        store(limit);
+    }
+
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the number of serial numbers reserved at once. Large blocks make
+     * reservations less frequent, but more numbers are lost when the
+     * process stops.
+     */
+    public synchronized void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    public synchronized BigInteger next() throws IOException {
+        if (mode == Mode.RANDOM) {
+            return new BigInteger(128,
+                    CryptoCache.getSecureRandom()).setBit(127);
+        }
+        if (next.compareTo(limit) >= 0) {
+            reserve(next);
+        }
+        BigInteger result = next;
+        next = next.add(BigInteger.ONE);
+        return result;
+    }
+
+    /**
+     * Records that a serial number has been used (for instance when it has
+     * been entered manually), so that it is not allocated again.
+     */
+    public synchronized void markUsed(BigInteger sn) throws IOException {
+        if (mode == Mode.MONOTONIC && sn.compareTo(next) >= 0) {
+            next = sn.add(BigInteger.ONE);
+            if (next.compareTo(limit) > 0) {
+                reserve(next);
+            }
+        }
+    }
+
+    private void reserve(BigInteger from) throws IOException {
+        if (file == null) {
+            next = from;
+            limit = from.add(BigInteger.valueOf(blockSize));
+            return;
+        }
+        File lockFile = new File(file.getParentFile(),
+                file.getName() + ".lock");
+        try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw")) {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                // another process may have reserved numbers meanwhile
+                BigInteger start = from;
+                if (file.isFile()) {
+                    BigInteger stored = new BigInteger(
+                            load().getProperty("next", "1"));
+                    if (stored.compareTo(start) > 0) {
+                        start = stored;
+                    }
+                }
+                BigInteger end = start.add(BigInteger.valueOf(blockSize));
+                store(end);
+                next = start;
+                limit = end;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private Properties load() throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    private void store(BigInteger high) throws IOException {
+        if (file == null) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty("mode", mode.name());
+        props.setProperty("block-size", Integer.toString(blockSize));
+        props.setProperty("next", high.toString());
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, "serial numbers");
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -21,20 +21,18 @@ import java.awt.Frame;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Calendar;
+import java.util.Date;
 import javax.swing.JDialog;
 import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
@@ -44,26 +42,27 @@ import org.bouncycastle.operator.OperatorCreationException;
 public class SignDialog extends JDialog {
     private final DateFormat dateFormat
             = new SimpleDateFormat("dd-MM-yyyy");
+    private final KeyStoreIndex index;
     private final KeyStore keystore;
     private boolean done;
 
-    public SignDialog(Frame parent, KeyStore keystore, KeyStoreEntry current)
-            throws KeyStoreException {
+    public SignDialog(Frame parent, KeyStoreIndex index,
+            KeyStoreEntry current) {
         super(parent, true);
-        this.keystore = keystore;
+        this.index = index;
+        this.keystore = index.getKeyStore();
         initComponents();
-        init(keystore, current, parent);
+        init(current, parent);
     }
 
-    private void init(KeyStore keystore1, KeyStoreEntry current, Frame parent) throws KeyStoreException {
+    private void init(KeyStoreEntry current, Frame parent) {
         Util.clearWidthAll(this, JTextField.class);
         Util.clearWidthAll(this, JPasswordField.class);
         int textHeight = startDate.getPreferredSize().height;
         Util.adjustHeight(subjectPassword, textHeight);
         Util.adjustHeight(signerPassword, textHeight);
         // fill subject and signer comboboxes
-        KeyStoreEntry[] entries = KeyStoreEntry.getAll(keystore1);
-        Arrays.sort(entries, KeyStoreEntry.TYPE_ALIAS_ORDER);
+        KeyStoreEntry[] entries = index.getAll();
         subject.setRenderer(new KeyStoreEntryRenderer());
         signer.setRenderer(new KeyStoreEntryRenderer());
         subject.removeAllItems();
@@ -272,10 +271,9 @@ public class SignDialog extends JDialog {
             return;
         }
 
-        X509CertificateBuilder gen = new X509CertificateBuilder(cert);
-
+        Date start;
         try {
-            gen.setStart(dateFormat.parse(startDate.getText()));
+            start = dateFormat.parse(startDate.getText());
         } catch (ParseException e) {
             JOptionPane.showMessageDialog(this, "Invalid start date",
                     "Error", JOptionPane.ERROR_MESSAGE);
@@ -283,8 +281,9 @@ public class SignDialog extends JDialog {
             return;
         }
 
+        Date end;
         try {
-            gen.setEnd(dateFormat.parse(endDate.getText()));
+            end = dateFormat.parse(endDate.getText());
         } catch (ParseException e) {
             JOptionPane.showMessageDialog(this, "Invalid end date",
                     "Error", JOptionPane.ERROR_MESSAGE);
@@ -296,26 +295,22 @@ public class SignDialog extends JDialog {
         char sgnrpwd[] = signerPassword.getPassword();
         SignatureAlgorithm sigalg = (SignatureAlgorithm)algorithm.getSelectedItem();
 
-        Certificate sgnrchain[];
-        PrivateKey sgnrkey;
+        CertificateAuthority ca;
         try {
-            sgnrchain = keystore.getCertificateChain(sgnr.getAlias());
-            sgnrkey = (PrivateKey)keystore.getKey(sgnr.getAlias(), sgnrpwd);
+            ca = CertificateAuthority.fromKeyStore(index, sgnr.getAlias(),
+                    sgnrpwd);
          } catch (GeneralSecurityException e) {
             JOptionPane.showMessageDialog(this, "Keystore error", "Error",
                     JOptionPane.ERROR_MESSAGE);
             return;
         }
+        ca.setSignatureAlgorithm(sigalg.name());
 
-        X509Certificate ic = (X509Certificate)sgnrchain[0];
-        gen.setSignatureAlgorithm(sigalg.name());
-        gen.setIssuer(ic.getSubjectX500Principal(), sgnrkey);
-
+        X509Certificate certs[];
         try {
-            cert = gen.build();
-        } catch (IOException | InvalidAlgorithmParameterException
-                | NoSuchAlgorithmException | NoSuchProviderException
-                | CertificateException | OperatorCreationException e) {
+            certs = ca.sign(cert, start, end);
+        } catch (IOException | GeneralSecurityException
+                | OperatorCreationException e) {
             JOptionPane.showMessageDialog(this, "Signature error",
                     e.getMessage(), JOptionPane.ERROR_MESSAGE);
             return;
@@ -323,23 +318,24 @@ public class SignDialog extends JDialog {
 
         try {
             if (!subj.isKey()) {
-                keystore.setCertificateEntry(subj.getAlias(), cert);
+                index.setCertificateEntry(subj.getAlias(), certs[0]);
             } else {
-                Certificate certs[] = new Certificate[sgnrchain.length+1];
-                for (int i = 0; i < sgnrchain.length; ++i) {
-                    certs[i+1] = sgnrchain[i];
-                }
-                certs[0] = cert;
-                keystore.setKeyEntry(subj.getAlias(), subjkey, subjpwd, certs);
+                index.setKeyEntry(subj.getAlias(), subjkey, subjpwd, certs);
             }
         } catch (KeyStoreException e) {
             JOptionPane.showMessageDialog(this, "Keystore error", "Error",
                     JOptionPane.ERROR_MESSAGE);
             return;
+        } finally {
+            if (subjpwd != null) {
+                Arrays.fill(subjpwd, '\0');
+            }
         }
 
         done = true;
         dispose();
+        Util.warnIfInvalid(getParent(), index,
+                Collections.singleton(subj.getAlias()));
     }//GEN-LAST:event_okActionPerformed
 
     private void signerActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_signerActionPerformed
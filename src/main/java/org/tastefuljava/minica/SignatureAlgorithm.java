@@ -56,6 +56,23 @@ public enum SignatureAlgorithm {
                 new SignatureAlgorithm[list.size()]);
     }
 
+    /**
+     * Returns the preferred algorithm for keys of the given type: SHA-256
+     * when available, else the first one that matches.
+     */
+    public static SignatureAlgorithm defaultFor(String crypto) {
+        if ("EC".equalsIgnoreCase(crypto)) {
+            crypto = "ECDSA";
+        }
+        SignatureAlgorithm[] algs = getForCrypto(crypto);
+        for (SignatureAlgorithm alg: algs) {
+            if (alg.digest.equals("SHA256")) {
+                return alg;
+            }
+        }
+        return algs.length == 0 ? null : algs[0];
+    }
+
     @Override
     public String toString() {
         return digest + "/" + crypto;
@@ -20,9 +20,15 @@ package org.tastefuljava.minica;
 import java.awt.Component;
 import java.awt.Container;
 import java.awt.Dimension;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
 import javax.swing.JComponent;
+import javax.swing.JOptionPane;
 
 public class Util {
+    private static final int MAX_WARNINGS = 10;
     
     /** Private constructor to disallow instanciation */
     private Util() {
@@ -69,4 +75,41 @@ public class Util {
         }
         return buf.toString();
     }
+
+    /**
+     * Shows a warning if the chains of the given entries do not validate.
+     * Only the first entries that do not are listed.
+     */
+    public static void warnIfInvalid(Component parent, KeyStoreIndex index,
+            Collection<String> aliases) {
+        CertificateValidator validator = new CertificateValidator(index);
+        ChainBuilder chains = new ChainBuilder(index);
+        StringBuilder buf = new StringBuilder();
+        int count = 0;
+        for (String alias: aliases) {
+            CertificateValidator.Result result;
+            try {
+                X509Certificate[] chain = chains.getChain(alias);
+                if (chain == null) {
+                    continue;
+                }
+                result = validator.validate(chain, new Date());
+            } catch (GeneralSecurityException e) {
+                continue;
+            }
+            if (!result.isValid() && ++count <= MAX_WARNINGS) {
+                buf.append(alias).append(" does not validate: ")
+                        .append(String.join("; ", result.getProblems()))
+                        .append('\n');
+            }
+        }
+        if (count > MAX_WARNINGS) {
+            buf.append("... and ").append(count - MAX_WARNINGS)
+                    .append(" more\n");
+        }
+        if (count > 0) {
+            JOptionPane.showMessageDialog(parent, buf.toString().trim(),
+                    "Warning", JOptionPane.WARNING_MESSAGE);
+        }
+    }
 }
@@ -21,31 +21,34 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Calendar;
 import java.util.Date;
 import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
 import org.bouncycastle.asn1.x509.X509Extension;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
 import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 public class X509CertificateBuilder {
-    private final BigInteger sn;
+    private BigInteger sn;
     private final X500Principal principal;
     private Date start = today();
     private Date end = addYears(start, 2);
@@ -58,6 +61,8 @@ public class X509CertificateBuilder {
     private PrivateKey issuerKey;
     private int basicConstraints = Integer.MAX_VALUE;
     private ECParameterSpec ecSpec;
+    private KeyPairPool keyPairPool;
+    private final ExtensionsGenerator extensions = new ExtensionsGenerator();
 
     public X509CertificateBuilder(BigInteger sn, X500Principal principal) {
         this.sn = sn;
@@ -76,6 +81,10 @@ public class X509CertificateBuilder {
         this.basicConstraints = cert.getBasicConstraints();
     }
 
+    public void setSerialNumber(BigInteger sn) {
+        this.sn = sn;
+    }
+
     public void setStart(Date start) {
         this.start = start;
     }
@@ -98,6 +107,11 @@ public class X509CertificateBuilder {
         this.ecSpec = ecSpec;
     }
 
+    public void setPublicKey(PublicKey publicKey) {
+        this.publicKey = publicKey;
+        this.privateKey = null;
+    }
+
     public void setIssuer(X500Principal issuer, PrivateKey issuerKey) {
         this.issuer = issuer;
         this.issuerKey = issuerKey;
@@ -107,6 +121,22 @@ public class X509CertificateBuilder {
         basicConstraints = newValue;
     }
 
+    /**
+     * Adds an extension other than the basic constraints, for instance the
+     * subject alternative names.
+     */
+    public void addExtension(ASN1ObjectIdentifier oid, boolean critical,
+            ASN1Encodable value) throws IOException {
+        extensions.addExtension(oid, critical, value);
+    }
+
+    /**
+     * Takes the key pair from the given pool instead of generating it.
+     */
+    public void setKeyPairPool(KeyPairPool keyPairPool) {
+        this.keyPairPool = keyPairPool;
+    }
+
     public PrivateKey getPrivateKey() {
         return privateKey;
     }
@@ -115,6 +145,18 @@ public class X509CertificateBuilder {
             throws OperatorCreationException, CertificateException,
             IOException, NoSuchAlgorithmException, NoSuchProviderException,
             InvalidAlgorithmParameterException {
+        return toCertificate(buildHolder());
+    }
+
+    /**
+     * Builds and signs the certificate, without converting it to a
+     * java.security.cert.X509Certificate, which requires a full parse of
+     * the encoded certificate.
+     */
+    public X509CertificateHolder buildHolder()
+            throws OperatorCreationException, IOException,
+            NoSuchAlgorithmException, NoSuchProviderException,
+            InvalidAlgorithmParameterException {
         if (publicKey == null) {
             KeyPair pair = generateKeyPair();
             publicKey = pair.getPublic();
@@ -134,38 +176,54 @@ public class X509CertificateBuilder {
             certGen.addExtension(X509Extension.basicConstraints, true,
                     new BasicConstraints(basicConstraints));
         }
-        JcaContentSignerBuilder builder
-                = new JcaContentSignerBuilder(signatureAlgorithm);
-        builder.setProvider("BC");
-        ContentSigner signr = builder.build(issuerKey);
-        X509CertificateHolder certHolder = certGen.build(signr);
-        return decode(certHolder.getEncoded());
+        if (!extensions.isEmpty()) {
+            Extensions exts = extensions.generate();
+            for (ASN1ObjectIdentifier oid: exts.getExtensionOIDs()) {
+                certGen.addExtension(exts.getExtension(oid));
+            }
+        }
+        ContentSigner signr = CryptoCache.getContentSigner(
+                signatureAlgorithm, issuerKey);
+        return certGen.build(signr);
     }
 
     private KeyPair generateKeyPair()
             throws NoSuchAlgorithmException, NoSuchProviderException,
             InvalidAlgorithmParameterException {
-        KeyPairGenerator gen = getKeyPairGenerator();
-        return gen.generateKeyPair();
+        if (keyPairPool != null) {
+            try {
+                if (!"ECDSA".equals(algorithm) || ecSpec == null) {
+                    return keyPairPool.take(algorithm, keySize);
+                } else if (ecSpec instanceof ECNamedCurveParameterSpec) {
+                    return keyPairPool.take(algorithm,
+                            ((ECNamedCurveParameterSpec)ecSpec).getName());
+                }
+            } catch (NoSuchAlgorithmException | NoSuchProviderException
+                    | InvalidAlgorithmParameterException e) {
+                throw e;
+            } catch (GeneralSecurityException e) {
+                throw new InvalidAlgorithmParameterException(e.getMessage());
+            }
+        }
+        return generateKeyPair(algorithm, keySize, ecSpec);
     }
 
-    private KeyPairGenerator getKeyPairGenerator()
+    static KeyPair generateKeyPair(String algorithm, int keySize,
+            ECParameterSpec ecSpec)
             throws NoSuchAlgorithmException, NoSuchProviderException,
             InvalidAlgorithmParameterException {
-        KeyPairGenerator gen;
-        if ("ECDSA".equals(algorithm) && ecSpec != null) {
-            gen = KeyPairGenerator.getInstance("ECDSA", "BC");
-            gen.initialize(ecSpec, new SecureRandom());
-        } else {
-            gen = KeyPairGenerator.getInstance(algorithm);
-            gen.initialize(keySize, new SecureRandom());
-        }
-        return gen;
+        return CryptoCache.getKeyPairGenerator(algorithm, keySize, ecSpec)
+                .generateKeyPair();
+    }
+
+    public static X509Certificate toCertificate(X509CertificateHolder holder)
+            throws CertificateException, IOException {
+        return decode(holder.getEncoded());
     }
 
     public static X509Certificate decode(byte[] data)
             throws CertificateException, IOException {
-        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        CertificateFactory factory = CryptoCache.getCertificateFactory();
         try (InputStream in = new ByteArrayInputStream(data)) {
             return (X509Certificate)factory.generateCertificate(in);
         }
@@ -190,4 +248,8 @@ public class X509CertificateBuilder {
     public void setECSpec(ECParameterSpec ecSpec) {
         this.ecSpec = ecSpec;
     }
+
+    static {
+        CertificateAuthority.installProvider();
+    }
 }